@@ -0,0 +1,86 @@
+import java.net.InetAddress;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Wire over the real classes. Created reflectively by the benchmarks, and
+ * single-threaded like their state: each benchmark thread has its own.
+ */
+public class WireTargets implements bench.Wire {
+	private final NameServer nameServer = new NameServer();
+	private final StubResolver stubResolver = new StubResolver();
+	private final Resolver resolver = new Resolver();
+	private final ResponseCache cache = new ResponseCache();
+	private final DnsMessage message = new DnsMessage();
+	private final DnsWriter writer = new DnsWriter();
+	private final byte[] out = new byte[65535];
+
+	@Override
+	public void walk(byte[] data, Blackhole blackhole) {
+		message.wrap(data, data.length);
+		blackhole.consume(message.id());
+		message.rewind();
+		while (message.nextRecord()) {
+			blackhole.consume(message.type());
+			blackhole.consume(message.ttl());
+			blackhole.consume(message.rdataLength());
+			blackhole.consume(message.skipName(message.nameOffset()));
+		}
+	}
+
+	@Override
+	public String questionName(byte[] query) {
+		return message.wrap(query, query.length).readName(DnsMessage.HEADER_LENGTH);
+	}
+
+	@Override
+	public boolean isValidQuery(byte[] query) {
+		return nameServer.isValidQuery(message.wrap(query, query.length));
+	}
+
+	@Override
+	public Object getNextServer(byte[] referral, String askedZone) throws Exception {
+		return nameServer.getNextServer(referral, askedZone);
+	}
+
+	@Override
+	public byte[] buildQueryPacket(String domain, int type) {
+		return nameServer.buildQueryPacket(domain, type);
+	}
+
+	@Override
+	public int copy(byte[] data) {
+		return writer.start(out, out.length).copy(message.wrap(data, data.length));
+	}
+
+	@Override
+	public byte[] buildDNSQuery(String domain, int type) {
+		return stubResolver.buildDNSQuery(domain, type);
+	}
+
+	@Override
+	public InetAddress parseInetAddress(byte[] response) throws Exception {
+		message.wrap(response, response.length).hasRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A);
+		return stubResolver.parseInetAddress(message);
+	}
+
+	@Override
+	public byte[] buildRequest(String domain, int type) {
+		return resolver.buildRequest(domain, type);
+	}
+
+	@Override
+	public void cache(byte[] query, byte[] response) {
+		message.wrap(query, query.length);
+		cache.put(new ResponseCache.Key(NameKey.of(message, DnsMessage.HEADER_LENGTH), message.questionType(),
+				message.questionClass()), response);
+	}
+
+	@Override
+	public int cacheLookup(byte[] query) {
+		message.wrap(query, query.length);
+		ResponseCache.Key key = new ResponseCache.Key(NameKey.of(message, DnsMessage.HEADER_LENGTH),
+				message.questionType(), message.questionClass());
+		return cache.copyTo(key, out);
+	}
+}
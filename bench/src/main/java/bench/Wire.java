@@ -0,0 +1,38 @@
+package bench;
+
+import java.net.InetAddress;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The hot paths of the server, as the benchmarks call them. JMH only runs
+ * benchmarks in a named package, and a named package cannot refer to the
+ * server's classes in the unnamed one, so WireTargets implements this there.
+ * It is the only implementation, so every call site stays monomorphic.
+ */
+public interface Wire {
+	/** Visit every record the way the resolver does, touching each owner name. */
+	void walk(byte[] message, Blackhole blackhole);
+
+	String questionName(byte[] query);
+
+	boolean isValidQuery(byte[] query);
+
+	Object getNextServer(byte[] referral, String askedZone) throws Exception;
+
+	byte[] buildQueryPacket(String domain, int type);
+
+	/** Copy a message through a DnsWriter, compressing its names again. */
+	int copy(byte[] message);
+
+	byte[] buildDNSQuery(String domain, int type);
+
+	InetAddress parseInetAddress(byte[] response) throws Exception;
+
+	byte[] buildRequest(String domain, int type);
+
+	void cache(byte[] query, byte[] response);
+
+	/** The lookup processQuery makes: a key viewing the query, copied out on a hit. */
+	int cacheLookup(byte[] query);
+}
@@ -0,0 +1,31 @@
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of byte arrays for outbound datagrams, so serving an answer
+ * does not allocate. When the pool is empty a fresh array is handed out and
+ * simply dropped on release if the pool has filled up again.
+ */
+class BufferPool {
+	private final ArrayBlockingQueue<byte[]> free;
+	private final int bufferSize;
+
+	BufferPool(int buffers, int bufferSize) {
+		this.free = new ArrayBlockingQueue<>(buffers);
+		this.bufferSize = bufferSize;
+	}
+
+	byte[] acquire() {
+		byte[] buffer = free.poll();
+		return buffer != null ? buffer : new byte[bufferSize];
+	}
+
+	void release(byte[] buffer) {
+		if (buffer.length == bufferSize) {
+			free.offer(buffer);
+		}
+	}
+
+	int bufferSize() {
+		return bufferSize;
+	}
+}
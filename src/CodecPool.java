@@ -0,0 +1,33 @@
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of message views and writers, so parsing and building
+ * messages does not allocate. Queries may run on virtual threads, one per
+ * query, where a ThreadLocal would cost a fresh set for every query; the pool
+ * holds only as many sets as there are queries being worked on at once. When
+ * it is empty a fresh set is handed out and dropped again on release if the
+ * pool has filled up meanwhile.
+ */
+class CodecPool {
+	// One set, used by one thread at a time between acquire and release
+	static final class Codec {
+		final DnsMessage request = new DnsMessage(); // The client's query
+		final DnsMessage response = new DnsMessage(); // Any other message being read
+		final DnsWriter writer = new DnsWriter();
+	}
+
+	private final ArrayBlockingQueue<Codec> free;
+
+	CodecPool(int codecs) {
+		this.free = new ArrayBlockingQueue<>(codecs);
+	}
+
+	Codec acquire() {
+		Codec codec = free.poll();
+		return codec != null ? codec : new Codec();
+	}
+
+	void release(Codec codec) {
+		free.offer(codec);
+	}
+}
@@ -1,5 +1,3 @@
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -19,7 +17,7 @@ public class DNSReferral {
         packet = new DatagramPacket(response, response.length);
         socket.receive(packet);
         
-        printDNSResponse(response);
+        printDNSResponse(response, packet.getLength());
         socket.close();
     }
     
@@ -29,44 +27,13 @@ public class DNSReferral {
         return new byte[0]; // Replace with actual query bytes
     }
     
-    private static void printDNSResponse(byte[] response) throws Exception {
-        ByteArrayInputStream bais = new ByteArrayInputStream(response);
-        DataInputStream dis = new DataInputStream(bais);
-        
-        // Skip the header (12 bytes)
-        dis.skipBytes(12);
-        
-        // Read number of Authority RRs
-        int authorityRRs = dis.readUnsignedShort();
-        
-        System.out.println("Number of Authority RRs: " + authorityRRs);
-        
-        // Process Authority RRs if any
-        for (int i = 0; i < authorityRRs; i++) {
-            // Read and print Authority RRs (nameservers)
-            String nsName = readName(dis);
-            int type = dis.readUnsignedShort();
-            int classType = dis.readUnsignedShort();
-            int ttl = dis.readInt();
-            int rdLength = dis.readUnsignedShort();
-            byte[] rdata = new byte[rdLength];
-            dis.readFully(rdata);
-            
-            System.out.println("Nameserver: " + nsName);
-        }
-    }
-    
-    private static String readName(DataInputStream dis) throws Exception {
-        StringBuilder name = new StringBuilder();
-        int length;
-        while ((length = dis.readUnsignedByte()) > 0) {
-            byte[] label = new byte[length];
-            dis.readFully(label);
-            if (name.length() > 0) {
-                name.append(".");
-            }
-            name.append(new String(label));
+    private static void printDNSResponse(byte[] response, int length) throws Exception {
+        DnsMessage message = new DnsMessage().wrap(response, length);
+        System.out.println("Number of Authority RRs: " + message.authorityCount());
+
+        // Print the nameservers named in the authority section
+        while (message.nextRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_NS)) {
+            System.out.println("Nameserver: " + message.readName(message.rdataOffset()));
         }
-        return name.toString();
     }
 }
@@ -0,0 +1,82 @@
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Infrastructure cache of zone cuts learnt from referrals: zone, the names of
+ * its name servers and their addresses. Lets NameServer start an iterative
+ * resolution at the deepest delegation it already knows instead of the root.
+ */
+class DelegationCache {
+	private static final int MAX_ZONES = 10000;
+
+	static final class Delegation {
+		final String zone; // Lowercase, no trailing dot, "" for the root
+		final List<String> nameServers;
+		final List<InetAddress> addresses;
+		final long expiresAt;
+
+		Delegation(String zone, List<String> nameServers, List<InetAddress> addresses, long expiresAt) {
+			this.zone = zone;
+			this.nameServers = nameServers;
+			this.addresses = addresses;
+			this.expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Delegation> zones = new ConcurrentHashMap<>();
+
+	/**
+	 * Find the deepest live delegation that contains a name.
+	 *
+	 * @param name Lowercase name without a trailing dot.
+	 * @return The closest enclosing delegation, or null if only the root is known.
+	 */
+	Delegation closest(String name) {
+		long now = System.currentTimeMillis();
+		String zone = name;
+		while (!zone.isEmpty()) {
+			Delegation delegation = zones.get(zone);
+			if (delegation != null) {
+				if (!delegation.isExpired(now) && !delegation.addresses.isEmpty()) {
+					return delegation;
+				}
+				if (delegation.isExpired(now)) {
+					zones.remove(zone, delegation);
+				}
+			}
+			int dot = zone.indexOf('.');
+			zone = dot < 0 ? "" : zone.substring(dot + 1);
+		}
+		return null;
+	}
+
+	void put(Delegation delegation) {
+		if (delegation.addresses.isEmpty() || delegation.zone.isEmpty()) {
+			return; // Nothing to start from, and the root comes from setNameServer
+		}
+		if (zones.size() >= MAX_ZONES && !zones.containsKey(delegation.zone)) {
+			long now = System.currentTimeMillis();
+			zones.values().removeIf(d -> d.isExpired(now));
+			if (zones.size() >= MAX_ZONES) {
+				return; // Full of live zones, keep the ones we have
+			}
+		}
+		zones.put(delegation.zone, delegation);
+	}
+
+	int size() {
+		return zones.size();
+	}
+
+	/**
+	 * @return True if child is parent or lies below it.
+	 */
+	static boolean isWithin(String child, String parent) {
+		return parent.isEmpty() || child.equals(parent) || child.endsWith("." + parent);
+	}
+}
@@ -0,0 +1,578 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of one DNS message in a ByteBuffer. Nothing is decoded up
+ * front. Header fields are read in place. A cursor walks the sections and
+ * exposes each record's type, class, TTL and RDATA position as primitives.
+ * Names are skipped and compared on their wire bytes. One instance can be
+ * pointed at message after message, so parsing a packet allocates nothing;
+ * only readName and address build objects, for callers that need them.
+ * <p>
+ * This is the one place the wire format is walked. The static helpers at the
+ * end serve code that patches raw arrays, and the case folding and name hash
+ * there are shared by everything that keys or compresses names.
+ */
+class DnsMessage {
+	static final int HEADER_LENGTH = 12;
+
+	static final int TYPE_A = 1;
+	static final int TYPE_NS = 2;
+	static final int TYPE_CNAME = 5;
+	static final int TYPE_SOA = 6;
+	static final int TYPE_PTR = 12;
+	static final int TYPE_MX = 15;
+	static final int TYPE_TXT = 16;
+	static final int TYPE_OPT = 41;
+
+	static final int ANSWER = 1;
+	static final int AUTHORITY = 2;
+	static final int ADDITIONAL = 3;
+
+	private static final int MAX_POINTERS = 64; // More jumps than this can only be a loop
+	private static final int MAX_NAME_LENGTH = 255;
+
+	private ByteBuffer buffer;
+	private int length;
+
+	// Cursor state
+	private int questionEnd;
+	private int position;
+	private int section;
+	private int remaining; // Records left in the current section
+	private int nameOffset;
+	private int type;
+	private int recordClass;
+	private long ttl;
+	private int rdataOffset;
+	private int rdataLength;
+
+	DnsMessage() {
+	}
+
+	DnsMessage(ByteBuffer buffer) {
+		wrap(buffer);
+	}
+
+	/**
+	 * Point this view at a message occupying the buffer from index 0 up to its
+	 * limit. Positions in the buffer are left alone.
+	 */
+	DnsMessage wrap(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.length = buffer.limit();
+		this.questionEnd = -1;
+		this.section = -1;
+		return this;
+	}
+
+	/**
+	 * Point this view at the first length bytes of an array, reusing the
+	 * current ByteBuffer when it already wraps that array.
+	 */
+	DnsMessage wrap(byte[] data, int length) {
+		if (buffer == null || !buffer.hasArray() || buffer.array() != data) {
+			buffer = ByteBuffer.wrap(data);
+		}
+		buffer.limit(length);
+		return wrap(buffer);
+	}
+
+	int length() {
+		return length;
+	}
+
+	/**
+	 * @return True if the message sits in an array from index 0, see array().
+	 */
+	boolean hasArray() {
+		return buffer.hasArray() && buffer.arrayOffset() == 0;
+	}
+
+	byte[] array() {
+		return buffer.array();
+	}
+
+	// Header
+
+	int id() {
+		return getShort(0);
+	}
+
+	boolean isResponse() {
+		return (buffer.get(2) & 0x80) != 0;
+	}
+
+	boolean isTruncated() {
+		return (buffer.get(2) & 0x02) != 0;
+	}
+
+	int rcode() {
+		return buffer.get(3) & 0x0F;
+	}
+
+	int questionCount() {
+		return getShort(4);
+	}
+
+	int answerCount() {
+		return getShort(6);
+	}
+
+	int authorityCount() {
+		return getShort(8);
+	}
+
+	int additionalCount() {
+		return getShort(10);
+	}
+
+	// Question
+
+	/**
+	 * @return Offset just past the first question, or -1 if the message has no
+	 *         well-formed question.
+	 */
+	int questionEnd() {
+		if (questionEnd < 0 && length >= HEADER_LENGTH && questionCount() > 0) {
+			int end = skipName(HEADER_LENGTH);
+			questionEnd = end < 0 || end + 4 > length ? -1 : end + 4;
+		}
+		return questionEnd;
+	}
+
+	int questionType() {
+		return getShort(questionEnd() - 4);
+	}
+
+	int questionClass() {
+		return getShort(questionEnd() - 2);
+	}
+
+	// Record cursor
+
+	/**
+	 * Move the cursor in front of the first resource record, past every question.
+	 *
+	 * @return False if the header or a question is malformed.
+	 */
+	boolean rewind() {
+		if (length < HEADER_LENGTH) {
+			return false;
+		}
+		position = HEADER_LENGTH;
+		for (int i = 0; i < questionCount(); i++) {
+			position = skipName(position);
+			if (position < 0 || position + 4 > length) {
+				return false;
+			}
+			position += 4; // Type and class
+		}
+		section = ANSWER;
+		remaining = answerCount();
+		return true;
+	}
+
+	/**
+	 * Advance to the next resource record, in section order.
+	 *
+	 * @return False at the end of the message or if the record is malformed.
+	 */
+	boolean nextRecord() {
+		if (section < 0 && !rewind()) {
+			return false;
+		}
+		while (remaining == 0) {
+			if (section == ADDITIONAL) {
+				return false;
+			}
+			section++;
+			remaining = section == AUTHORITY ? authorityCount() : additionalCount();
+		}
+		nameOffset = position;
+		int fields = skipName(position);
+		if (fields < 0 || fields + 10 > length) {
+			return false;
+		}
+		type = getShort(fields);
+		recordClass = getShort(fields + 2);
+		ttl = getInt(fields + 4);
+		rdataLength = getShort(fields + 8);
+		rdataOffset = fields + 10;
+		if (rdataOffset + rdataLength > length) {
+			return false;
+		}
+		position = rdataOffset + rdataLength;
+		remaining--;
+		return true;
+	}
+
+	/**
+	 * Advance to the next record of a type within one section.
+	 *
+	 * @return False if there is none left.
+	 */
+	boolean nextRecord(int wantedSection, int wantedType) {
+		while (nextRecord()) {
+			if (section > wantedSection) {
+				return false;
+			}
+			if (section == wantedSection && type == wantedType) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	int section() {
+		return section;
+	}
+
+	int nameOffset() {
+		return nameOffset;
+	}
+
+	int type() {
+		return type;
+	}
+
+	int recordClass() {
+		return recordClass;
+	}
+
+	long ttl() {
+		return ttl;
+	}
+
+	int rdataOffset() {
+		return rdataOffset;
+	}
+
+	int rdataLength() {
+		return rdataLength;
+	}
+
+	/**
+	 * @return True once nextRecord has walked past the last record, false if it
+	 *         stopped early at a malformed one.
+	 */
+	boolean isComplete() {
+		return section == ADDITIONAL && remaining == 0;
+	}
+
+	/**
+	 * @return True if any record of the type is in the section.
+	 */
+	boolean hasRecord(int wantedSection, int wantedType) {
+		rewind();
+		return nextRecord(wantedSection, wantedType);
+	}
+
+	// Names
+
+	/**
+	 * @return Offset just past the name that starts at offset, or -1 if it runs
+	 *         off the end of the message.
+	 */
+	int skipName(int offset) {
+		while (offset < length) {
+			int labelLength = buffer.get(offset) & 0xFF;
+			if (labelLength == 0) {
+				return offset + 1;
+			}
+			if ((labelLength & 0xC0) == 0xC0) { // Compression pointer ends the name
+				return offset + 2 <= length ? offset + 2 : -1;
+			}
+			offset += labelLength + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check that a name can be read: every label and pointer in bounds, no
+	 * pointer loops, no reserved label types and at most 255 bytes.
+	 *
+	 * @return The number of labels, or -1 if the name is malformed.
+	 */
+	int labelCount(int offset) {
+		int labels = 0;
+		int nameLength = 1;
+		int jumps = 0;
+		while (offset < length) {
+			int labelLength = buffer.get(offset) & 0xFF;
+			if (labelLength == 0) {
+				return labels;
+			}
+			if ((labelLength & 0xC0) == 0xC0) {
+				if (offset + 1 >= length || ++jumps > MAX_POINTERS) {
+					return -1;
+				}
+				offset = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+				continue;
+			}
+			if ((labelLength & 0xC0) != 0) {
+				return -1; // Extended label types are not in use
+			}
+			nameLength += labelLength + 1;
+			if (nameLength > MAX_NAME_LENGTH) {
+				return -1;
+			}
+			labels++;
+			offset += labelLength + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return True if the name at offset ends in a compression pointer. The name
+	 *         must be well formed, see labelCount.
+	 */
+	boolean isCompressed(int offset) {
+		int labelLength;
+		while ((labelLength = getByte(offset)) != 0) {
+			if ((labelLength & 0xC0) == 0xC0) {
+				return true;
+			}
+			offset += labelLength + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Copy the name at offset into an array in uncompressed wire format,
+	 * following pointers, with the same checks as labelCount.
+	 *
+	 * @param into At least 255 bytes.
+	 * @return The length copied, root label included, or -1 if the name is
+	 *         malformed.
+	 */
+	int copyName(int offset, byte[] into) {
+		int nameLength = 0;
+		int jumps = 0;
+		while (offset < length) {
+			int labelLength = buffer.get(offset) & 0xFF;
+			if (labelLength == 0) {
+				into[nameLength] = 0;
+				return nameLength + 1;
+			}
+			if ((labelLength & 0xC0) == 0xC0) {
+				if (offset + 1 >= length || ++jumps > MAX_POINTERS) {
+					return -1;
+				}
+				offset = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+				continue;
+			}
+			if ((labelLength & 0xC0) != 0 || nameLength + labelLength + 2 > MAX_NAME_LENGTH
+					|| offset + labelLength >= length) {
+				return -1;
+			}
+			for (int i = 0; i <= labelLength; i++) {
+				into[nameLength++] = buffer.get(offset + i);
+			}
+			offset += labelLength + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare the name at offset with a dotted name, ignoring ASCII case and a
+	 * trailing dot on either side, without decoding the wire name.
+	 */
+	boolean nameEquals(int offset, String name) {
+		int nameLength = name.length();
+		if (nameLength > 0 && name.charAt(nameLength - 1) == '.') {
+			nameLength--;
+		}
+		int index = 0; // Position in name
+		int jumps = 0;
+		while (offset < length) {
+			int labelLength = buffer.get(offset) & 0xFF;
+			if (labelLength == 0) {
+				return index >= nameLength;
+			}
+			if ((labelLength & 0xC0) == 0xC0) {
+				if (offset + 1 >= length || ++jumps > MAX_POINTERS) {
+					return false;
+				}
+				offset = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+				continue;
+			}
+			if (index > 0) {
+				if (index >= nameLength || name.charAt(index) != '.') {
+					return false;
+				}
+				index++;
+			}
+			if (index + labelLength > nameLength || offset + 1 + labelLength > length) {
+				return false;
+			}
+			for (int i = 0; i < labelLength; i++) {
+				if (toLower(buffer.get(offset + 1 + i)) != toLower((byte) name.charAt(index + i))) {
+					return false;
+				}
+			}
+			index += labelLength;
+			offset += labelLength + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Decode a name to dotted form without a trailing dot, "" for the root.
+	 *
+	 * @return The name, or null if it is malformed.
+	 */
+	String readName(int offset) {
+		StringBuilder name = new StringBuilder();
+		return appendName(offset, name) ? name.toString() : null;
+	}
+
+	/**
+	 * Append a decoded name, labels separated by dots, without a trailing dot.
+	 *
+	 * @return False if the name is malformed.
+	 */
+	boolean appendName(int offset, StringBuilder name) {
+		int start = name.length();
+		int jumps = 0;
+		while (offset < length) {
+			int labelLength = buffer.get(offset) & 0xFF;
+			if (labelLength == 0) {
+				return true;
+			}
+			if ((labelLength & 0xC0) == 0xC0) {
+				if (offset + 1 >= length || ++jumps > MAX_POINTERS) {
+					return false;
+				}
+				offset = ((labelLength & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF);
+				continue;
+			}
+			if (offset + 1 + labelLength > length) {
+				return false;
+			}
+			if (name.length() > start) {
+				name.append('.');
+			}
+			for (int i = 1; i <= labelLength; i++) {
+				name.append((char) (buffer.get(offset + i) & 0xFF));
+			}
+			offset += labelLength + 1;
+		}
+		return false;
+	}
+
+	// Record data
+
+	/**
+	 * @return The IPv4 address in the RDATA of the current A record.
+	 */
+	InetAddress address() throws UnknownHostException {
+		byte[] address = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			address[i] = buffer.get(rdataOffset + i);
+		}
+		return InetAddress.getByAddress(address);
+	}
+
+	/**
+	 * @return Offset of the domain name inside the current record's RDATA for
+	 *         NS, CNAME, PTR and MX records, or -1 for other types.
+	 */
+	int rdataNameOffset() {
+		switch (type) {
+		case TYPE_NS:
+		case TYPE_CNAME:
+		case TYPE_PTR:
+			return rdataOffset;
+		case TYPE_MX:
+			return rdataOffset + 2; // After the preference
+		default:
+			return -1;
+		}
+	}
+
+	int getByte(int offset) {
+		return buffer.get(offset) & 0xFF;
+	}
+
+	int getShort(int offset) {
+		return buffer.getShort(offset) & 0xFFFF;
+	}
+
+	long getInt(int offset) {
+		return buffer.getInt(offset) & 0xFFFFFFFFL;
+	}
+
+	// Raw arrays
+
+	static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	static long getInt(byte[] data, int offset) {
+		return ((long) (data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	static void putInt(byte[] data, int offset, long value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Skip a wire name in a raw message, for code that works on arrays directly.
+	 *
+	 * @return Offset just past the name, or -1 if it runs past length.
+	 */
+	static int skipName(byte[] data, int offset, int length) {
+		while (offset < length) {
+			int labelLength = data[offset] & 0xFF;
+			if (labelLength == 0) {
+				return offset + 1;
+			}
+			if ((labelLength & 0xC0) == 0xC0) { // Compression pointer ends the name
+				return offset + 2 <= length ? offset + 2 : -1;
+			}
+			offset += labelLength + 1;
+		}
+		return -1;
+	}
+
+	// Case folding and hashing, shared by everything that keys or compresses names
+
+	/**
+	 * @return The byte unsigned, ASCII letters lowercased. DNS names compare
+	 *         case-insensitively for ASCII only (RFC 4343).
+	 */
+	static int toLower(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+	}
+
+	/**
+	 * Fold one label, its length byte then its lowercased bytes, into a hash.
+	 * Every name hash is built from this, so names hash alike wherever they are.
+	 */
+	static int hashLabel(int hash, byte[] data, int offset) {
+		int labelLength = data[offset] & 0xFF;
+		hash = hash * 31 + labelLength;
+		for (int i = 1; i <= labelLength; i++) {
+			hash = hash * 31 + toLower(data[offset + i]);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return The hash of an uncompressed wire name, root label included.
+	 */
+	static int hashName(byte[] data, int offset) {
+		int hash = 0;
+		while (data[offset] != 0) {
+			hash = hashLabel(hash, data, offset);
+			offset += (data[offset] & 0xFF) + 1;
+		}
+		return hash * 31; // The root label
+	}
+}
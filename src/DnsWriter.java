@@ -0,0 +1,432 @@
+import java.util.Arrays;
+
+/**
+ * Builds DNS messages record by record into a caller's buffer, compressing
+ * names as RFC 1035 4.1.4 allows. Every name written is remembered by suffix
+ * in a small open-addressed table of hash and offset, so a later name that
+ * ends the same way is written as its new labels plus a pointer. One instance
+ * can be reused for message after message without allocating.
+ *
+ * Writes past the limit are not made; the writer marks itself overflowed and
+ * finish returns -1, so the caller can fall back to a truncated reply.
+ */
+class DnsWriter {
+	private static final int TABLE_SIZE = 256; // Power of two
+	private static final int MAX_ENTRIES = TABLE_SIZE / 2; // Keep probes short
+	private static final int MAX_POINTER_OFFSET = 0x3FFF; // Pointers have 14 bits
+	private static final int MAX_NAME_LENGTH = 255;
+	private static final int MAX_LABELS = 128;
+
+	private byte[] buffer;
+	private int limit;
+	private int position;
+	private boolean overflowed;
+	private int section; // Last section written, 0 for the question
+	private int recordStart = -1; // Offset of the RDLENGTH field of the open record
+
+	// Suffix table: offset + 1 of each name suffix written, 0 for a free slot
+	private final int[] suffixOffsets = new int[TABLE_SIZE];
+	private final int[] suffixHashes = new int[TABLE_SIZE];
+	private int entries;
+
+	// The name being written, flattened to uncompressed wire form
+	private final byte[] name = new byte[MAX_NAME_LENGTH];
+	private final int[] labelStarts = new int[MAX_LABELS];
+	private final int[] hashes = new int[MAX_LABELS + 1];
+
+	/**
+	 * Start a new message at the front of a buffer.
+	 *
+	 * @param limit Largest message to write, at most the buffer's length.
+	 */
+	DnsWriter start(byte[] buffer, int limit) {
+		this.buffer = buffer;
+		this.limit = Math.min(limit, buffer.length);
+		this.position = 0;
+		this.overflowed = false;
+		this.section = 0;
+		this.recordStart = -1;
+		if (entries > 0) {
+			Arrays.fill(suffixOffsets, 0);
+			entries = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * Write the header with every count at zero. The counts go up as questions
+	 * and records are added.
+	 *
+	 * @param flags The 16 flag bits: QR, opcode, AA, TC, RD, RA and RCODE.
+	 */
+	DnsWriter header(int id, int flags) {
+		if (!reserve(DnsMessage.HEADER_LENGTH)) {
+			return this;
+		}
+		putShortAt(0, id);
+		putShortAt(2, flags);
+		Arrays.fill(buffer, 4, DnsMessage.HEADER_LENGTH, (byte) 0);
+		position = DnsMessage.HEADER_LENGTH;
+		return this;
+	}
+
+	DnsWriter question(String questionName, int type, int questionClass) {
+		return question(loadName(questionName), type, questionClass);
+	}
+
+	/**
+	 * Write a question whose name is copied out of another message.
+	 */
+	DnsWriter question(DnsMessage source, int nameOffset, int type, int questionClass) {
+		return question(loadName(source, nameOffset), type, questionClass);
+	}
+
+	private DnsWriter question(boolean loaded, int type, int questionClass) {
+		if (section != 0 || recordStart >= 0) {
+			throw new IllegalStateException("Questions go before every record");
+		}
+		if (loaded) {
+			writeLoadedName();
+			putShort(type);
+			putShort(questionClass);
+			incrementCount(4);
+		}
+		return this;
+	}
+
+	/**
+	 * Open a resource record. Its RDATA follows through the put and name
+	 * methods, then endRecord fills in the length.
+	 *
+	 * @param recordSection DnsMessage.ANSWER, AUTHORITY or ADDITIONAL, in order.
+	 */
+	DnsWriter beginRecord(int recordSection, String owner, int type, int recordClass, long ttl) {
+		return beginRecord(recordSection, loadName(owner), type, recordClass, ttl);
+	}
+
+	/**
+	 * Open a resource record whose owner name is copied out of another message.
+	 */
+	DnsWriter beginRecord(int recordSection, DnsMessage source, int nameOffset, int type, int recordClass,
+			long ttl) {
+		return beginRecord(recordSection, loadName(source, nameOffset), type, recordClass, ttl);
+	}
+
+	private DnsWriter beginRecord(int recordSection, boolean loaded, int type, int recordClass, long ttl) {
+		if (recordStart >= 0) {
+			throw new IllegalStateException("Previous record was not ended");
+		}
+		if (recordSection < section || recordSection < DnsMessage.ANSWER || recordSection > DnsMessage.ADDITIONAL) {
+			throw new IllegalStateException("Records must be written in section order");
+		}
+		section = recordSection;
+		if (loaded) {
+			writeLoadedName();
+			putShort(type);
+			putShort(recordClass);
+			putInt(ttl);
+			recordStart = position;
+			putShort(0); // RDLENGTH, filled in by endRecord
+		}
+		return this;
+	}
+
+	DnsWriter endRecord() {
+		if (!overflowed) {
+			if (recordStart < 0) {
+				throw new IllegalStateException("No record is open");
+			}
+			putShortAt(recordStart, position - recordStart - 2);
+			incrementCount(4 + section * 2);
+		}
+		recordStart = -1;
+		return this;
+	}
+
+	/**
+	 * Write a domain name inside RDATA, compressed. Only use this for the types
+	 * RFC 1035 defines with names (NS, CNAME, PTR, MX, SOA); names in other types
+	 * must stay uncompressed (RFC 3597 4).
+	 */
+	DnsWriter name(String rdataName) {
+		if (loadName(rdataName)) {
+			writeLoadedName();
+		}
+		return this;
+	}
+
+	DnsWriter name(DnsMessage source, int nameOffset) {
+		if (loadName(source, nameOffset)) {
+			writeLoadedName();
+		}
+		return this;
+	}
+
+	DnsWriter putByte(int value) {
+		if (reserve(1)) {
+			buffer[position++] = (byte) value;
+		}
+		return this;
+	}
+
+	DnsWriter putShort(int value) {
+		if (reserve(2)) {
+			putShortAt(position, value);
+			position += 2;
+		}
+		return this;
+	}
+
+	DnsWriter putInt(long value) {
+		if (reserve(4)) {
+			putShortAt(position, (int) (value >>> 16));
+			putShortAt(position + 2, (int) value);
+			position += 4;
+		}
+		return this;
+	}
+
+	DnsWriter putBytes(byte[] bytes, int offset, int length) {
+		if (reserve(length)) {
+			System.arraycopy(bytes, offset, buffer, position, length);
+			position += length;
+		}
+		return this;
+	}
+
+	/**
+	 * Copy raw bytes out of another message, such as RDATA of a type without names.
+	 */
+	DnsWriter putBytes(DnsMessage source, int offset, int length) {
+		if (reserve(length)) {
+			for (int i = 0; i < length; i++) {
+				buffer[position++] = (byte) source.getByte(offset + i);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @return The length of the message, or -1 if it did not fit.
+	 */
+	int finish() {
+		if (recordStart >= 0 && !overflowed) {
+			throw new IllegalStateException("Last record was not ended");
+		}
+		return overflowed ? -1 : position;
+	}
+
+	/**
+	 * Re-encode a whole message with every name compressed against the others.
+	 * Header flags and ID are kept. Names inside NS, CNAME, PTR, MX and SOA data
+	 * are compressed too; RDATA of any other type is copied as it is.
+	 *
+	 * @return The new length, or -1 if the message is malformed or does not fit.
+	 */
+	int copy(DnsMessage source) {
+		if (!source.rewind()) {
+			return -1;
+		}
+		header(source.id(), source.getShort(2));
+		int offset = DnsMessage.HEADER_LENGTH;
+		for (int i = 0; i < source.questionCount(); i++) {
+			int end = source.skipName(offset);
+			question(source, offset, source.getShort(end), source.getShort(end + 2));
+			offset = end + 4;
+		}
+
+		int records = source.answerCount() + source.authorityCount() + source.additionalCount();
+		for (int i = 0; i < records; i++) {
+			if (!source.nextRecord()) {
+				return -1;
+			}
+			beginRecord(source.section(), source, source.nameOffset(), source.type(), source.recordClass(),
+					source.ttl());
+			if (!copyRdata(source)) {
+				return -1;
+			}
+			endRecord();
+			if (overflowed) {
+				return -1;
+			}
+		}
+		return finish();
+	}
+
+	private boolean copyRdata(DnsMessage source) {
+		int rdata = source.rdataOffset();
+		switch (source.type()) {
+		case DnsMessage.TYPE_NS:
+		case DnsMessage.TYPE_CNAME:
+		case DnsMessage.TYPE_PTR:
+			name(source, rdata);
+			return true;
+		case DnsMessage.TYPE_MX:
+			if (source.rdataLength() < 3) {
+				return false;
+			}
+			putShort(source.getShort(rdata));
+			name(source, rdata + 2);
+			return true;
+		case DnsMessage.TYPE_SOA: {
+			int rname = source.skipName(rdata);
+			int fields = rname < 0 ? -1 : source.skipName(rname);
+			if (fields < 0 || fields + 20 != rdata + source.rdataLength()) {
+				return false;
+			}
+			name(source, rdata); // MNAME
+			name(source, rname); // RNAME
+			putBytes(source, fields, 20); // Serial, refresh, retry, expire, minimum
+			return true;
+		}
+		default:
+			putBytes(source, rdata, source.rdataLength());
+			return true;
+		}
+	}
+
+	// Flatten a dotted name into the name buffer
+	private boolean loadName(String dotted) {
+		int length = dotted.length();
+		if (length > 0 && dotted.charAt(length - 1) == '.') {
+			length--;
+		}
+		int nameLength = 0;
+		int labelStart = 0;
+		while (labelStart < length) {
+			int labelEnd = dotted.indexOf('.', labelStart);
+			if (labelEnd < 0 || labelEnd > length) {
+				labelEnd = length;
+			}
+			int labelLength = labelEnd - labelStart;
+			if (labelLength == 0 || labelLength > 63 || nameLength + labelLength + 2 > MAX_NAME_LENGTH) {
+				throw new IllegalArgumentException("Invalid domain name: " + dotted);
+			}
+			name[nameLength++] = (byte) labelLength;
+			for (int i = labelStart; i < labelEnd; i++) {
+				name[nameLength++] = (byte) dotted.charAt(i);
+			}
+			labelStart = labelEnd + 1;
+		}
+		name[nameLength] = 0;
+		return true;
+	}
+
+	// Flatten a wire name, following its pointers, into the name buffer
+	private boolean loadName(DnsMessage source, int offset) {
+		if (source.copyName(offset, name) < 0) {
+			overflowed = true; // A malformed name spoils the whole message
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the loaded name: the longest suffix already in the message becomes a
+	 * pointer, and every new suffix is remembered for the names that follow.
+	 */
+	private void writeLoadedName() {
+		if (overflowed) {
+			return; // The table may point at bytes that were never written
+		}
+		int labels = 0;
+		for (int offset = 0; name[offset] != 0; offset += name[offset] + 1) {
+			labelStarts[labels++] = offset;
+		}
+		// Hash each suffix from the root up, case-insensitively
+		hashes[labels] = 0;
+		for (int i = labels - 1; i >= 0; i--) {
+			hashes[i] = DnsMessage.hashLabel(hashes[i + 1], name, labelStarts[i]);
+		}
+
+		int match = labels;
+		int pointer = -1;
+		for (int i = 0; i < labels; i++) {
+			pointer = findSuffix(hashes[i], labelStarts[i]);
+			if (pointer >= 0) {
+				match = i;
+				break;
+			}
+		}
+
+		for (int i = 0; i < match; i++) {
+			int start = labelStarts[i];
+			int labelLength = name[start] + 1;
+			if (position <= MAX_POINTER_OFFSET) {
+				addSuffix(hashes[i], position);
+			}
+			putBytes(name, start, labelLength);
+		}
+		if (pointer >= 0) {
+			putShort(0xC000 | pointer);
+		} else {
+			putByte(0);
+		}
+	}
+
+	// Offset of an earlier copy of the suffix starting at start in the name buffer, or -1
+	private int findSuffix(int hash, int start) {
+		int slot = hash & (TABLE_SIZE - 1);
+		while (suffixOffsets[slot] != 0) {
+			if (suffixHashes[slot] == hash && suffixEquals(suffixOffsets[slot] - 1, start)) {
+				return suffixOffsets[slot] - 1;
+			}
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		return -1;
+	}
+
+	private void addSuffix(int hash, int offset) {
+		if (entries == MAX_ENTRIES) {
+			return; // Full, later names just compress less
+		}
+		int slot = hash & (TABLE_SIZE - 1);
+		while (suffixOffsets[slot] != 0) {
+			slot = (slot + 1) & (TABLE_SIZE - 1);
+		}
+		suffixHashes[slot] = hash;
+		suffixOffsets[slot] = offset + 1;
+		entries++;
+	}
+
+	// Compare a name already written, which may hold pointers, with part of the name buffer
+	private boolean suffixEquals(int offset, int start) {
+		while (true) {
+			int labelLength = buffer[offset] & 0xFF;
+			if ((labelLength & 0xC0) == 0xC0) {
+				offset = ((labelLength & 0x3F) << 8) | (buffer[offset + 1] & 0xFF); // Always points backwards
+				continue;
+			}
+			if (labelLength != name[start]) {
+				return false;
+			}
+			if (labelLength == 0) {
+				return true;
+			}
+			for (int i = 1; i <= labelLength; i++) {
+				if (DnsMessage.toLower(buffer[offset + i]) != DnsMessage.toLower(name[start + i])) {
+					return false;
+				}
+			}
+			offset += labelLength + 1;
+			start += labelLength + 1;
+		}
+	}
+
+	private boolean reserve(int length) {
+		if (overflowed || position + length > limit) {
+			overflowed = true;
+			return false;
+		}
+		return true;
+	}
+
+	private void incrementCount(int offset) {
+		putShortAt(offset, DnsMessage.getShort(buffer, offset) + 1);
+	}
+
+	private void putShortAt(int offset, int value) {
+		buffer[offset] = (byte) (value >> 8);
+		buffer[offset + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,216 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class DnsWriterTest {
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Test
+    public void testRepeatedSuffixesCompress() {
+        System.out.println("\nStarting test: Repeated suffixes");
+
+        byte[] buffer = new byte[512];
+        int length = new DnsWriter().start(buffer, buffer.length).header(0x1234, 0x8180)
+                .question("www.example.com", DnsMessage.TYPE_A, 1)
+                .beginRecord(DnsMessage.ANSWER, "www.example.com", DnsMessage.TYPE_CNAME, 1, 60)
+                .name("web.example.com").endRecord()
+                .beginRecord(DnsMessage.ANSWER, "web.example.com", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[] { (byte) 192, 0, 2, 1 }, 0, 4).endRecord()
+                .finish();
+        // Question 17 + 4; CNAME: pointer, 10, "web" and a pointer; A: pointer, 10, 4
+        assertEquals("Every repeat is a pointer", 12 + 21 + (2 + 10 + 6) + (2 + 10 + 4), length);
+
+        DnsMessage message = new DnsMessage().wrap(buffer, length);
+        assertEquals("Header kept", 0x1234, message.id());
+        assertTrue(message.rewind());
+        assertTrue("CNAME", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_CNAME));
+        assertEquals("Owner points at the question", 0xC000 | DnsMessage.HEADER_LENGTH,
+                message.getShort(message.nameOffset()));
+        assertEquals("www.example.com", message.readName(message.nameOffset()));
+        assertEquals("New label, then a pointer to example.com", 0xC000 | (DnsMessage.HEADER_LENGTH + 4),
+                message.getShort(message.rdataOffset() + 4));
+        assertEquals("web.example.com", message.readName(message.rdataOffset()));
+        assertTrue("A", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertEquals("Owner points into the CNAME data", 0xC000 | (message.nameOffset() - 6),
+                message.getShort(message.nameOffset()));
+        assertEquals("web.example.com", message.readName(message.nameOffset()));
+        assertFalse("No more records", message.nextRecord());
+        assertTrue("Nothing left over", message.isComplete());
+        System.out.println(ANSI_GREEN + "Success: Names ending alike are written as pointers." + ANSI_RESET);
+    }
+
+    @Test
+    public void testSuffixesMatchIgnoringCase() {
+        System.out.println("\nStarting test: Suffixes in another case");
+
+        byte[] buffer = new byte[512];
+        int length = new DnsWriter().start(buffer, buffer.length).header(1, 0x8180)
+                .question("WWW.Example.COM", DnsMessage.TYPE_MX, 1)
+                .beginRecord(DnsMessage.ANSWER, "www.example.com", DnsMessage.TYPE_MX, 1, 60)
+                .putShort(10).name("mail.EXAMPLE.com").endRecord()
+                .finish();
+        assertEquals(12 + 21 + (2 + 10 + 2 + 5 + 2), length);
+
+        DnsMessage message = new DnsMessage().wrap(buffer, length);
+        assertTrue(message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_MX));
+        assertTrue("Same name in another case", message.isCompressed(message.nameOffset()));
+        assertEquals("Spelled as first written", "WWW.Example.COM", message.readName(message.nameOffset()));
+        assertEquals("mail.Example.COM", message.readName(message.rdataOffset() + 2));
+        assertTrue("Compares equal as DNS names", message.nameEquals(message.rdataOffset() + 2, "mail.example.com"));
+        System.out.println(ANSI_GREEN + "Success: Suffixes are matched case-insensitively." + ANSI_RESET);
+    }
+
+    @Test
+    public void testNoPointersPastMaxOffset() {
+        System.out.println("\nStarting test: Names written past 16 KB");
+
+        byte[] text = new byte[255];
+        byte[] buffer = new byte[20000];
+        DnsWriter writer = new DnsWriter().start(buffer, buffer.length).header(1, 0x8180)
+                .question("big.example.com", DnsMessage.TYPE_TXT, 1)
+                .beginRecord(DnsMessage.ANSWER, "big.example.com", DnsMessage.TYPE_TXT, 1, 60);
+        for (int i = 0; i < 66; i++) { // 66 strings of 256 bytes go past offset 0x3FFF
+            writer.putByte(text.length).putBytes(text, 0, text.length);
+        }
+        int length = writer.endRecord()
+                .beginRecord(DnsMessage.ANSWER, "a.far.test", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[4], 0, 4).endRecord()
+                .beginRecord(DnsMessage.ANSWER, "b.far.test", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[4], 0, 4).endRecord()
+                .beginRecord(DnsMessage.ANSWER, "c.example.com", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[4], 0, 4).endRecord()
+                .finish();
+        assertTrue("Should fit", length > 0x3FFF);
+
+        DnsMessage message = new DnsMessage().wrap(buffer, length);
+        assertTrue(message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_TXT));
+        assertTrue(message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertTrue("Past the pointer range", message.nameOffset() > 0x3FFF);
+        assertFalse("Nothing earlier to point at", message.isCompressed(message.nameOffset()));
+        assertTrue(message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertFalse("far.test was written past 0x3FFF, so is not pointed at",
+                message.isCompressed(message.nameOffset()));
+        assertEquals("b.far.test", message.readName(message.nameOffset()));
+        assertTrue(message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertEquals("Still points back at the question", 0xC000 | (DnsMessage.HEADER_LENGTH + 4),
+                message.getShort(message.nameOffset() + 2));
+        assertEquals("c.example.com", message.readName(message.nameOffset()));
+        assertFalse("No more records", message.nextRecord());
+        assertTrue("Nothing left over", message.isComplete());
+        System.out.println(ANSI_GREEN + "Success: Suffixes past 0x3FFF are never pointed at." + ANSI_RESET);
+    }
+
+    @Test
+    public void testOverflowAtLimit() {
+        System.out.println("\nStarting test: Messages at the buffer limit");
+
+        // Header 12, question 21, A record 2 + 10 + 4
+        assertEquals("Exactly fits", 49, writeAnswer(new byte[512], 49));
+        assertEquals("One byte short", -1, writeAnswer(new byte[512], 48));
+        assertEquals("The buffer caps the limit", -1, writeAnswer(new byte[48], 512));
+
+        // After an overflow the same writer starts over, as a truncated reply does
+        byte[] buffer = new byte[512];
+        DnsWriter writer = new DnsWriter();
+        assertEquals(-1, writer.start(buffer, 40).header(7, 0x8180).question("www.example.com", DnsMessage.TYPE_A, 1)
+                .beginRecord(DnsMessage.ANSWER, "www.example.com", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[4], 0, 4).endRecord().finish());
+        int length = writer.start(buffer, 40).header(7, 0x8380).question("www.example.com", DnsMessage.TYPE_A, 1)
+                .finish();
+        assertEquals("Header and question", 33, length);
+        DnsMessage message = new DnsMessage().wrap(buffer, length);
+        assertTrue("TC set", message.isTruncated());
+        assertEquals("One question", 1, message.questionCount());
+        assertEquals("No answers", 0, message.answerCount());
+        assertTrue("Well formed", message.rewind());
+        assertEquals("www.example.com", message.readName(DnsMessage.HEADER_LENGTH));
+        System.out.println(ANSI_GREEN + "Success: Overflow is reported and the writer starts over cleanly." + ANSI_RESET);
+    }
+
+    @Test
+    public void testCopyCompresses() throws Exception {
+        System.out.println("\nStarting test: Copying a message");
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writeShorts(raw, 0xBEEF, 0x8180, 1, 2, 1, 1);
+        writeName(raw, "www.example.com");
+        writeShorts(raw, DnsMessage.TYPE_A, 1);
+        writeRecord(raw, "www.example.com", DnsMessage.TYPE_CNAME, nameBytes("web.example.com"));
+        writeRecord(raw, "web.example.com", DnsMessage.TYPE_A, new byte[] { (byte) 192, 0, 2, 1 });
+        writeRecord(raw, "example.com", DnsMessage.TYPE_NS, nameBytes("ns1.example.com"));
+        writeRecord(raw, "ns1.example.com", DnsMessage.TYPE_A, new byte[] { (byte) 192, 0, 2, 53 });
+        byte[] original = raw.toByteArray();
+
+        byte[] buffer = new byte[512];
+        DnsWriter writer = new DnsWriter().start(buffer, buffer.length);
+        int length = writer.copy(new DnsMessage().wrap(original, original.length));
+        assertTrue("Should be smaller", length > 0 && length < original.length);
+
+        DnsMessage copy = new DnsMessage().wrap(buffer, length);
+        DnsMessage source = new DnsMessage().wrap(original, original.length);
+        assertEquals("ID kept", 0xBEEF, copy.id());
+        assertEquals("Flags kept", 0x8180, copy.getShort(2));
+        assertEquals("www.example.com", copy.readName(DnsMessage.HEADER_LENGTH));
+        assertEquals("Question type", DnsMessage.TYPE_A, copy.questionType());
+        assertTrue(copy.rewind());
+        assertTrue(source.rewind());
+        while (source.nextRecord()) {
+            assertTrue("Same records", copy.nextRecord());
+            assertEquals(source.section(), copy.section());
+            assertEquals(source.type(), copy.type());
+            assertEquals(source.ttl(), copy.ttl());
+            assertEquals(source.readName(source.nameOffset()), copy.readName(copy.nameOffset()));
+            if (source.type() == DnsMessage.TYPE_A) {
+                assertEquals(source.address(), copy.address());
+            } else {
+                assertEquals("Names in the data too", source.readName(source.rdataOffset()),
+                        copy.readName(copy.rdataOffset()));
+                assertTrue(copy.isCompressed(copy.rdataOffset()));
+            }
+        }
+        assertTrue("Nothing left over", copy.isComplete());
+
+        assertEquals("Does not fit", -1, writer.start(buffer, length - 1).copy(source));
+        assertEquals("Malformed", -1,
+                writer.start(buffer, buffer.length).copy(new DnsMessage().wrap(original, original.length - 3)));
+        System.out.println(ANSI_GREEN + "Success: Copies keep every record with the names compressed." + ANSI_RESET);
+    }
+
+    private static int writeAnswer(byte[] buffer, int limit) {
+        return new DnsWriter().start(buffer, limit).header(1, 0x8180).question("www.example.com", DnsMessage.TYPE_A, 1)
+                .beginRecord(DnsMessage.ANSWER, "www.example.com", DnsMessage.TYPE_A, 1, 60)
+                .putBytes(new byte[4], 0, 4).endRecord().finish();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, String owner, int type, byte[] rdata) {
+        writeName(out, owner);
+        writeShorts(out, type, 1, 0, 300, rdata.length);
+        out.write(rdata, 0, rdata.length);
+    }
+
+    private static byte[] nameBytes(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeName(out, name);
+        return out.toByteArray();
+    }
+
+    // Uncompressed, the way a careless upstream might send it
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+    }
+
+    private static void writeShorts(ByteArrayOutputStream out, int... values) {
+        for (int value : values) {
+            out.write(value >> 8);
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+/**
+ * EDNS(0) (RFC 6891) over raw DNS messages. Only the fixed fields of the OPT
+ * pseudo-record are used: the UDP payload size a sender can receive, and the
+ * upper bits of an extended RCODE. Options are never sent and are skipped when
+ * read.
+ */
+class Edns {
+	static final int OPT_TYPE = 41;
+	static final int DEFAULT_PAYLOAD_SIZE = 1232; // Fits an unfragmented IPv6 packet (DNS Flag Day 2020)
+	static final int MIN_PAYLOAD_SIZE = 512;
+	static final int OPT_LENGTH = 11; // Root name, type, class, TTL, RDLENGTH
+	static final int RCODE_FORMERR = 1;
+	static final int RCODE_BADVERS = 16;
+
+	private Edns() {
+	}
+
+	/**
+	 * Append an OPT record advertising a payload size and count it in ARCOUNT.
+	 * The caller makes sure there are OPT_LENGTH bytes free at length.
+	 *
+	 * @return The new message length.
+	 */
+	static int addOpt(byte[] message, int length, int payloadSize) {
+		message[length] = 0; // Root name
+		message[length + 1] = 0;
+		message[length + 2] = (byte) OPT_TYPE;
+		message[length + 3] = (byte) (payloadSize >> 8); // CLASS holds the payload size
+		message[length + 4] = (byte) payloadSize;
+		Arrays.fill(message, length + 5, length + OPT_LENGTH, (byte) 0); // Version 0, no flags, no options
+		int additionalCount = DnsMessage.getShort(message, 10) + 1;
+		message[10] = (byte) (additionalCount >> 8);
+		message[11] = (byte) additionalCount;
+		return length + OPT_LENGTH;
+	}
+
+	/**
+	 * @return A copy of a query with an OPT record appended, or the query itself
+	 *         if payloadSize is 0 (EDNS turned off).
+	 */
+	static byte[] withOpt(byte[] query, int payloadSize) {
+		if (payloadSize <= 0) {
+			return query;
+		}
+		byte[] extended = Arrays.copyOf(query, query.length + OPT_LENGTH);
+		addOpt(extended, query.length, payloadSize);
+		return extended;
+	}
+
+	/**
+	 * @return The UDP payload size the sender advertised, at least 512, or -1 if
+	 *         the message has no OPT record. Moves the message's cursor.
+	 */
+	static int payloadSize(DnsMessage message) {
+		return findOpt(message) ? Math.max(MIN_PAYLOAD_SIZE, message.recordClass()) : -1;
+	}
+
+	/**
+	 * @return The full 12-bit RCODE: the header's 4 bits plus any extension from
+	 *         the OPT record.
+	 */
+	static int rcode(byte[] message, int length) {
+		DnsMessage view = new DnsMessage().wrap(message, length);
+		int rcode = message[3] & 0x0F;
+		return findOpt(view) ? (int) (view.ttl() >>> 24) << 4 | rcode : rcode; // Extended RCODE leads the TTL
+	}
+
+	/**
+	 * Drop the sender's OPT record so the message can be cached and relayed to
+	 * clients that may not speak EDNS. Only an OPT record at the very end is
+	 * removed, which is where every implementation puts it; removing one from the
+	 * middle would shift names that later records point at.
+	 *
+	 * @return The message without its OPT record, or the message itself.
+	 */
+	static byte[] withoutOpt(byte[] message) {
+		DnsMessage view = new DnsMessage().wrap(message, message.length);
+		if (!findOpt(view) || view.rdataOffset() + view.rdataLength() != message.length) {
+			return message;
+		}
+		byte[] stripped = Arrays.copyOf(message, view.nameOffset());
+		int additionalCount = DnsMessage.getShort(stripped, 10) - 1;
+		stripped[10] = (byte) (additionalCount >> 8);
+		stripped[11] = (byte) additionalCount;
+		return stripped;
+	}
+
+	// Leave the cursor on the OPT record, or return false if there is none
+	private static boolean findOpt(DnsMessage message) {
+		if (message.length() < DnsMessage.HEADER_LENGTH || message.additionalCount() == 0 || !message.rewind()) {
+			return false;
+		}
+		return message.nextRecord(DnsMessage.ADDITIONAL, OPT_TYPE);
+	}
+}
@@ -0,0 +1,542 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A whole DNS delegation tree served from loopback, so the iterative resolver
+ * can be tested and load tested without the internet. There is one root
+ * server, TLDs named tld0, tld1 and so on, and under each TLD domains named
+ * d0, d1 and so on. Every zone has the same number of name servers, each on its
+ * own address in 127.0.0.0/8 and all on one port, the way NameServer expects
+ * every server to listen on the port it was given for the root.
+ *
+ * Referrals carry glue for every name server. The servers of a domain answer
+ * any name inside it: A queries with an address made from the name, TXT
+ * queries with the name itself, other types with NODATA. Names whose first
+ * label starts with "nx" do not exist. Latency, loss and truncation can be set
+ * per server while the servers run, so one server of a zone can be slow or
+ * dead while the others answer; a truncated server answers UDP with TC set and
+ * only gives the records over TCP.
+ *
+ * Linux routes the whole of 127.0.0.0/8 to loopback. Other systems may need
+ * the addresses, 127.0.1.1 upwards, added to the loopback interface first.
+ */
+class FakeDnsHierarchy implements Closeable {
+	private static final int MAX_MESSAGE_SIZE = 65535;
+	private static final int ADDRESSES_PER_BLOCK = 254; // 127.0.x.1 to 127.0.x.254
+	private static final int MAX_SERVERS = ADDRESSES_PER_BLOCK * 254;
+
+	// One simulated name server: an address serving one zone
+	private static final class Server {
+		final String zone; // Lowercase, no trailing dot, "" for the root
+		final InetAddress address;
+		final AtomicLong queries = new AtomicLong();
+		volatile long latencyMillis;
+		volatile double lossRate;
+		volatile boolean truncate;
+		DatagramChannel udp;
+		ServerSocketChannel tcp;
+
+		Server(String zone, InetAddress address) {
+			this.zone = zone;
+			this.address = address;
+		}
+	}
+
+	private final int port;
+	private final int tlds;
+	private final int domainsPerTld;
+	private final int serversPerZone;
+	private final List<Server> servers = new ArrayList<>();
+	private volatile long ttl = 300;
+
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean running;
+	private final Random random = new Random(1); // Used only on the selector thread, so losses repeat
+	private final DnsMessage udpQuery = new DnsMessage();
+	private final DnsWriter udpWriter = new DnsWriter();
+	private final byte[] udpResponse = new byte[MAX_MESSAGE_SIZE];
+	private final ScheduledExecutorService delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "fake-dns-delay");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ExecutorService tcpConnections = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "fake-dns-tcp");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @param port           Port every server listens on, UDP and TCP.
+	 * @param tlds           TLDs under the root.
+	 * @param domainsPerTld  Domains under each TLD.
+	 * @param serversPerZone Name servers for each zone except the root, which has one.
+	 */
+	FakeDnsHierarchy(int port, int tlds, int domainsPerTld, int serversPerZone) throws IOException {
+		if (tlds < 1 || domainsPerTld < 1 || serversPerZone < 1) {
+			throw new IllegalArgumentException("Every level needs at least one zone and server");
+		}
+		if (1 + (long) tlds * serversPerZone * (1 + domainsPerTld) > MAX_SERVERS) {
+			throw new IllegalArgumentException("More servers than loopback addresses to give them");
+		}
+		this.port = port;
+		this.tlds = tlds;
+		this.domainsPerTld = domainsPerTld;
+		this.serversPerZone = serversPerZone;
+
+		servers.add(new Server("", addressOf(0)));
+		for (int tld = 0; tld < tlds; tld++) {
+			for (int i = 0; i < serversPerZone; i++) {
+				servers.add(new Server(tldName(tld), addressOf(servers.size())));
+			}
+		}
+		for (int tld = 0; tld < tlds; tld++) {
+			for (int domain = 0; domain < domainsPerTld; domain++) {
+				for (int i = 0; i < serversPerZone; i++) {
+					servers.add(new Server(domainName(tld, domain), addressOf(servers.size())));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Serve a hierarchy and run a NameServer that resolves through it, for load
+	 * testing by hand: java FakeDnsHierarchy [name server port] [hierarchy port]
+	 * [TLDs] [domains per TLD] [servers per zone] [latency in ms].
+	 */
+	public static void main(String[] args) throws Exception {
+		int nameServerPort = args.length > 0 ? Integer.parseInt(args[0]) : 7364;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 5300;
+		FakeDnsHierarchy hierarchy = new FakeDnsHierarchy(port, args.length > 2 ? Integer.parseInt(args[2]) : 4,
+				args.length > 3 ? Integer.parseInt(args[3]) : 50, args.length > 4 ? Integer.parseInt(args[4]) : 2);
+		hierarchy.setLatency(null, args.length > 5 ? Long.parseLong(args[5]) : 0);
+		hierarchy.start();
+		Log.info("Fake hierarchy root at {} port {}", hierarchy.rootAddress().getHostAddress(), port);
+
+		NameServer nameServer = new NameServer();
+		nameServer.setNameServer(hierarchy.rootAddress(), port);
+		nameServer.handleIncomingQueries(nameServerPort);
+	}
+
+	static String tldName(int tld) {
+		return "tld" + tld;
+	}
+
+	static String domainName(int tld, int domain) {
+		return "d" + domain + "." + tldName(tld);
+	}
+
+	/**
+	 * Bind every server and start answering.
+	 */
+	void start() throws IOException {
+		selector = Selector.open();
+		try {
+			for (Server server : servers) {
+				InetSocketAddress local = new InetSocketAddress(server.address, port);
+				server.udp = DatagramChannel.open();
+				server.udp.bind(local).configureBlocking(false);
+				server.udp.register(selector, SelectionKey.OP_READ, server);
+				server.tcp = ServerSocketChannel.open();
+				server.tcp.bind(local).configureBlocking(false);
+				server.tcp.register(selector, SelectionKey.OP_ACCEPT, server);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		running = true;
+		selectorThread = new Thread(this::serve, "fake-dns");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	InetAddress rootAddress() {
+		return servers.get(0).address;
+	}
+
+	int port() {
+		return port;
+	}
+
+	/**
+	 * @return The addresses of the zone's name servers, "" for the root, in the
+	 *         order they are given in referrals.
+	 */
+	List<InetAddress> nameServers(String zone) {
+		List<InetAddress> addresses = new ArrayList<>();
+		for (Server server : serversOf(zone)) {
+			addresses.add(server.address);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Delay every reply of one server.
+	 *
+	 * @param server The server's address, or null for every server.
+	 */
+	void setLatency(InetAddress server, long millis) {
+		for (Server matching : serversAt(server)) {
+			matching.latencyMillis = millis;
+		}
+	}
+
+	/**
+	 * Drop this fraction of the UDP queries sent to one server, or null for
+	 * every server. A rate of 1 makes the server dead.
+	 */
+	void setLossRate(InetAddress server, double rate) {
+		for (Server matching : serversAt(server)) {
+			matching.lossRate = rate;
+		}
+	}
+
+	/**
+	 * Answer UDP queries to one server, or null for every server, with TC set
+	 * and no records.
+	 */
+	void setTruncation(InetAddress server, boolean truncate) {
+		for (Server matching : serversAt(server)) {
+			matching.truncate = truncate;
+		}
+	}
+
+	/**
+	 * TTL of every record served, 300 seconds unless set.
+	 */
+	void setTtl(long seconds) {
+		this.ttl = seconds;
+	}
+
+	/**
+	 * @param zone The zone, "" for the root.
+	 * @return Queries received by the zone's servers over UDP and TCP, dropped ones included.
+	 */
+	long queryCount(String zone) {
+		long total = 0;
+		for (Server server : serversOf(zone)) {
+			total += server.queries.get();
+		}
+		return total;
+	}
+
+	/**
+	 * @return Queries received by one server over UDP and TCP, dropped ones included.
+	 */
+	long queryCount(InetAddress server) {
+		return serversAt(server).get(0).queries.get();
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+		for (Server server : servers) {
+			closeQuietly(server.udp);
+			closeQuietly(server.tcp);
+		}
+		delayedReplies.shutdownNow();
+		tcpConnections.shutdownNow();
+		closeQuietly(selector);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException e) {
+			// Nothing left to do with it
+		}
+	}
+
+	private List<Server> serversOf(String zone) {
+		if (zone == null) {
+			return servers;
+		}
+		zone = zone.toLowerCase(Locale.ROOT);
+		if (zone.endsWith(".")) {
+			zone = zone.substring(0, zone.length() - 1);
+		}
+		List<Server> matching = new ArrayList<>();
+		for (Server server : servers) {
+			if (server.zone.equals(zone)) {
+				matching.add(server);
+			}
+		}
+		if (matching.isEmpty()) {
+			throw new IllegalArgumentException("No zone " + zone + " in the hierarchy");
+		}
+		return matching;
+	}
+
+	private List<Server> serversAt(InetAddress address) {
+		if (address == null) {
+			return servers;
+		}
+		for (Server server : servers) {
+			if (server.address.equals(address)) {
+				return Arrays.asList(server);
+			}
+		}
+		throw new IllegalArgumentException("No server at " + address.getHostAddress() + " in the hierarchy");
+	}
+
+	private static InetAddress addressOf(int index) throws IOException {
+		int block = 1 + index / ADDRESSES_PER_BLOCK;
+		int host = 1 + index % ADDRESSES_PER_BLOCK;
+		return InetAddress.getByAddress(new byte[] { 127, 0, (byte) block, (byte) host });
+	}
+
+	// Address of name server i of a zone, by its position in the list
+	private InetAddress nameServerAddress(int tld, int domain, int i) {
+		int index = domain < 0 ? 1 + tld * serversPerZone + i
+				: 1 + tlds * serversPerZone + (tld * domainsPerTld + domain) * serversPerZone + i;
+		return servers.get(index).address;
+	}
+
+	private void serve() {
+		ByteBuffer datagram = ByteBuffer.wrap(new byte[MAX_MESSAGE_SIZE]);
+		while (running) {
+			try {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					Server server = (Server) key.attachment();
+					if (key.isAcceptable()) {
+						SocketChannel connection = server.tcp.accept();
+						if (connection != null) {
+							tcpConnections.execute(() -> serveTcp(server, connection));
+						}
+					} else if (key.isReadable()) {
+						SocketAddress client;
+						while ((client = server.udp.receive(datagram.clear())) != null) {
+							server.queries.incrementAndGet();
+							if (server.lossRate > 0 && random.nextDouble() < server.lossRate) {
+								continue;
+							}
+							udpQuery.wrap(datagram.array(), datagram.position());
+							int length = answer(server, udpQuery, udpWriter, udpResponse, false);
+							if (length > 0) {
+								reply(server, client, Arrays.copyOf(udpResponse, length));
+							}
+						}
+					}
+				}
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				return; // Closed
+			} catch (IOException e) {
+				if (running) {
+					Log.error("Fake DNS server failed: {}", e);
+				}
+			}
+		}
+	}
+
+	private void reply(Server server, SocketAddress client, byte[] response) throws IOException {
+		if (server.latencyMillis <= 0) {
+			server.udp.send(ByteBuffer.wrap(response), client);
+			return;
+		}
+		delayedReplies.schedule(() -> {
+			try {
+				server.udp.send(ByteBuffer.wrap(response), client);
+			} catch (IOException e) {
+				// The resolver sees a lost reply, which is fine here
+			}
+		}, server.latencyMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// One connection: length-prefixed queries answered in order until the client closes
+	private void serveTcp(Server server, SocketChannel connection) {
+		DnsMessage query = new DnsMessage();
+		DnsWriter writer = new DnsWriter();
+		byte[] response = new byte[MAX_MESSAGE_SIZE];
+		try (SocketChannel channel = connection) {
+			channel.configureBlocking(true);
+			DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+			DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+			while (running) {
+				byte[] message = new byte[in.readUnsignedShort()];
+				in.readFully(message);
+				server.queries.incrementAndGet();
+				int length = answer(server, query.wrap(message, message.length), writer, response, true);
+				if (length <= 0) {
+					return;
+				}
+				if (server.latencyMillis > 0) {
+					Thread.sleep(server.latencyMillis);
+				}
+				out.writeShort(length);
+				out.write(response, 0, length);
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// Client is done
+		} catch (IOException | InterruptedException e) {
+			// Connection gone or shutting down
+		}
+	}
+
+	/**
+	 * Build the server's reply to a query.
+	 *
+	 * @return Its length, or -1 if the query is too broken to answer.
+	 */
+	private int answer(Server server, DnsMessage query, DnsWriter writer, byte[] response, boolean overTcp) {
+		if (query.length() < DnsMessage.HEADER_LENGTH || query.questionCount() != 1 || query.questionEnd() < 0) {
+			return -1;
+		}
+		String name = query.readName(DnsMessage.HEADER_LENGTH);
+		if (name == null) {
+			return -1;
+		}
+		name = name.toLowerCase(Locale.ROOT);
+		String[] labels = name.isEmpty() ? new String[0] : name.split("\\.");
+		int depth = server.zone.isEmpty() ? 0 : server.zone.split("\\.").length;
+		int type = query.questionType();
+		int flags = 0x8000 | (query.getShort(2) & 0x0100); // QR, and RD as asked
+
+		// Work out the kind of reply before writing, as the flags come first
+		int tld = -1;
+		int domain = -1;
+		boolean authoritative = false;
+		if (!DelegationCache.isWithin(name, server.zone)) {
+			flags |= 5; // REFUSED: not our zone
+		} else if (depth == 2 || labels.length == depth) {
+			authoritative = true;
+		} else {
+			// Name lies below the zone: refer to the child, or it does not exist
+			String child = labels[labels.length - depth - 1];
+			tld = indexOf(labels[labels.length - 1], "tld", tlds);
+			domain = depth == 0 ? -1 : indexOf(child, "d", domainsPerTld);
+			if (tld < 0 || (depth == 1 && domain < 0)) {
+				tld = -1;
+				// A TLD's own name servers are answered, anything else there does not exist
+				authoritative = depth == 1 && labels.length == 2 && indexOf(child, "ns", serversPerZone) >= 0;
+				if (!authoritative) {
+					flags |= 0x0400 | 3; // AA, NXDOMAIN
+				}
+			}
+		}
+		if (authoritative) {
+			flags |= 0x0400; // AA
+			if (labels.length > depth && labels[0].startsWith("nx")) {
+				flags |= 3; // NXDOMAIN
+				authoritative = false;
+			}
+		}
+
+		int limit = MAX_MESSAGE_SIZE;
+		if (!overTcp) {
+			if (server.truncate) {
+				limit = 0;
+			} else {
+				int payloadSize = Edns.payloadSize(query);
+				limit = payloadSize < 0 ? Edns.MIN_PAYLOAD_SIZE : payloadSize;
+			}
+		}
+		int length = -1;
+		if (limit > 0) {
+			writer.start(response, limit).header(query.id(), flags).question(query, DnsMessage.HEADER_LENGTH, type,
+					query.questionClass());
+			if (tld >= 0) {
+				referral(tld, domain, writer);
+			} else if (authoritative) {
+				records(server.zone, name, labels, type, writer);
+			} else if ((flags & 0x0F) == 3) {
+				soa(server.zone, writer);
+			}
+			length = writer.finish();
+		}
+		if (length < 0) {
+			// Does not fit, or the server is set to truncate: header and question with TC
+			length = writer.start(response, response.length).header(query.id(), flags | 0x0200)
+					.question(query, DnsMessage.HEADER_LENGTH, type, query.questionClass()).finish();
+		}
+		return length;
+	}
+
+	private void referral(int tld, int domain, DnsWriter writer) {
+		String childZone = domain < 0 ? tldName(tld) : domainName(tld, domain);
+		for (int i = 0; i < serversPerZone; i++) {
+			writer.beginRecord(DnsMessage.AUTHORITY, childZone, DnsMessage.TYPE_NS, 1, ttl)
+					.name("ns" + i + "." + childZone).endRecord();
+		}
+		for (int i = 0; i < serversPerZone; i++) {
+			byte[] address = nameServerAddress(tld, domain, i).getAddress();
+			writer.beginRecord(DnsMessage.ADDITIONAL, "ns" + i + "." + childZone, DnsMessage.TYPE_A, 1, ttl)
+					.putBytes(address, 0, address.length).endRecord();
+		}
+	}
+
+	private void records(String zone, String name, String[] labels, int type, DnsWriter writer) {
+		String[] zoneLabels = zone.isEmpty() ? new String[0] : zone.split("\\.");
+		int nameServer = labels.length == zoneLabels.length + 1 ? indexOf(labels[0], "ns", serversPerZone) : -1;
+		if (type == DnsMessage.TYPE_A && nameServer >= 0) {
+			int tld = indexOf(zoneLabels[zoneLabels.length - 1], "tld", tlds);
+			int domain = zoneLabels.length == 2 ? indexOf(zoneLabels[0], "d", domainsPerTld) : -1;
+			byte[] address = nameServerAddress(tld, domain, nameServer).getAddress();
+			writer.beginRecord(DnsMessage.ANSWER, name, DnsMessage.TYPE_A, 1, ttl).putBytes(address, 0, address.length)
+					.endRecord();
+		} else if (type == DnsMessage.TYPE_A && labels.length > zoneLabels.length) {
+			int hash = name.hashCode();
+			writer.beginRecord(DnsMessage.ANSWER, name, DnsMessage.TYPE_A, 1, ttl).putByte(10).putByte(hash >>> 16)
+					.putByte(hash >>> 8).putByte(hash).endRecord();
+		} else if (type == DnsMessage.TYPE_TXT && labels.length > zoneLabels.length) {
+			byte[] text = name.getBytes();
+			writer.beginRecord(DnsMessage.ANSWER, name, DnsMessage.TYPE_TXT, 1, ttl).putByte(text.length)
+					.putBytes(text, 0, text.length).endRecord();
+		} else {
+			soa(zone, writer); // NODATA
+		}
+	}
+
+	private void soa(String zone, DnsWriter writer) {
+		String suffix = zone.isEmpty() ? "" : "." + zone;
+		writer.beginRecord(DnsMessage.AUTHORITY, zone, DnsMessage.TYPE_SOA, 1, ttl).name("ns0" + suffix)
+				.name("hostmaster" + suffix).putInt(1).putInt(7200).putInt(3600).putInt(1209600).putInt(ttl)
+				.endRecord();
+	}
+
+	// n for a label made of the prefix and n below the limit, otherwise -1
+	private static int indexOf(String label, String prefix, int limit) {
+		if (!label.startsWith(prefix) || label.length() == prefix.length() || label.length() > prefix.length() + 9) {
+			return -1;
+		}
+		for (int i = prefix.length(); i < label.length(); i++) {
+			if (label.charAt(i) < '0' || label.charAt(i) > '9') {
+				return -1;
+			}
+		}
+		int index = Integer.parseInt(label.substring(prefix.length()));
+		return index < limit ? index : -1;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Count-Min sketch of 4-bit counters used by ResponseCache to estimate how
+ * often a key has been asked for. Counters are halved once the number of
+ * recorded accesses reaches ten times the table width, so old popularity
+ * fades out. Not thread safe; callers hold the cache's eviction lock.
+ */
+class FrequencySketch {
+	private static final long RESET_MASK = 0x7777777777777777L; // Clears the bit shifted in from the next counter
+	private static final int[] SEEDS = { 0x97CB3127, 0xC2B2AE35, 0x85EBCA6B, 0x27D4EB2F };
+
+	private final long[] table;
+	private final int tableMask;
+	private final int sampleSize;
+	private int size;
+
+	/**
+	 * @param expectedEntries Roughly how many keys the cache will hold.
+	 */
+	FrequencySketch(long expectedEntries) {
+		int length = Integer.highestOneBit((int) Math.max(64, Math.min(expectedEntries, 1 << 30)) - 1) << 1;
+		table = new long[length];
+		tableMask = length - 1;
+		sampleSize = 10 * length;
+	}
+
+	/**
+	 * @return The estimated number of times the key was seen, at most 15.
+	 */
+	int frequency(int hash) {
+		int frequency = 15;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int shift = (h & 0xF) << 2;
+			frequency = Math.min(frequency, (int) ((table[(h >>> 4) & tableMask] >>> shift) & 0xF));
+		}
+		return frequency;
+	}
+
+	void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < SEEDS.length; i++) {
+			int h = rehash(hash, i);
+			int index = (h >>> 4) & tableMask;
+			int shift = (h & 0xF) << 2;
+			if (((table[index] >>> shift) & 0xF) != 0xF) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+
+		if (added && ++size >= sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size /= 2;
+	}
+
+	private static int rehash(int hash, int row) {
+		int h = (hash + SEEDS[row]) * SEEDS[row];
+		return h ^ (h >>> 16);
+	}
+}
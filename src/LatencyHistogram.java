@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram. Each power of two is split into 16 equal
+ * sub-buckets, so any value is placed within about 6% of itself, and recording
+ * is an index computation plus one atomic increment. Values are whatever unit
+ * the caller records, typically microseconds; negative values count as 0 and
+ * values past the top bucket land in it.
+ * <p>
+ * The buckets are striped like a LongAdder's cells: each thread increments the
+ * copy its id hashes to, so threads recording at once rarely touch the same
+ * cache line, and reads add the copies up.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 40; // Top bucket starts at 2^40, about 12 days in microseconds
+	private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	// The core count rounded up to a power of two, at most 8
+	private static final int STRIPES = Math.min(8,
+			Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+	private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram() {
+		for (int i = 0; i < STRIPES; i++) {
+			counts[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[stripe()].incrementAndGet(indexOf(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulate(value);
+		}
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	long sum() {
+		return sum.sum();
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	double mean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param quantile Between 0 and 1, e.g. 0.99.
+	 * @return The highest value that can be in the bucket holding the quantile,
+	 *         0 if nothing has been recorded.
+	 */
+	long percentile(double quantile) {
+		long[] snapshot = counts();
+		long total = 0;
+		for (long bucket : snapshot) {
+			total += bucket;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max());
+			}
+		}
+		return max();
+	}
+
+	/**
+	 * @return The count in every bucket; bucket i holds values up to upperBound(i).
+	 */
+	long[] counts() {
+		long[] snapshot = new long[BUCKETS];
+		for (AtomicLongArray stripe : counts) {
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] += stripe.get(i);
+			}
+		}
+		return snapshot;
+	}
+
+	// Thread ids are handed out in sequence, so they are mixed before picking a stripe
+	private static int stripe() {
+		long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return (int) (id >>> 32) & (STRIPES - 1);
+	}
+
+	// Values below 16 get a bucket each, above that 16 buckets per power of two
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) {
+			return BUCKETS - 1;
+		}
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		long lowest = (1L << magnitude) + ((long) (index % SUB_BUCKETS) << shift);
+		return lowest + (1L << shift) - 1;
+	}
+}
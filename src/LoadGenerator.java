@@ -0,0 +1,398 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a DNS server at a fixed query rate, in the manner of dnsperf, and
+ * reports what came back. Sending is open loop: query n is due at start + n /
+ * rate whether or not earlier ones have been answered, and latency is measured
+ * from when a query was due, not from when it went out, so a server that
+ * stalls cannot slow the sender down and hide the stall (coordinated omission).
+ *
+ * Queries are spread over a few sockets. Each socket has its own 16-bit ID
+ * space, so thousands of queries can be outstanding on each; a query not
+ * answered within the timeout is counted as lost. Its ID is then held back
+ * for another sweep interval, so an answer that turns up late is counted as
+ * late rather than credited to a new query that reused the ID.
+ *
+ * <pre>
+ * java LoadGenerator -d queries.txt [-s server] [-p port] [-Q qps] [-l seconds]
+ *                    [-c sockets] [-t timeout seconds] [-q max outstanding]
+ * </pre>
+ *
+ * The query file has one query per line, a name and a type, e.g.
+ * "www.example.com A"; lines starting with ; or # are skipped. The queries
+ * are sent in order, starting again at the top when the file runs out.
+ */
+public class LoadGenerator {
+	private static final int IDS = 65536;
+	private static final long SWEEP_INTERVAL_NANOS = 100000000L;
+	private static final long SPIN_NANOS = 50000; // Park until this close to the due time, then spin
+	private static final String[] RCODE_NAMES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+	private static final String[] TYPE_NAMES = { null, "A", "NS", null, null, "CNAME", "SOA", null, null, null, null,
+			null, "PTR", null, null, "MX", "TXT" };
+
+	// One socket with its own ID space and receiver thread
+	private final class Lane {
+		final DatagramChannel channel;
+		// Due time of the query with each ID, in nanoseconds since the start plus one; 0 if
+		// free; negated, the time a timed out ID may be used again
+		final AtomicLongArray dueTimes = new AtomicLongArray(IDS);
+		int nextId = ThreadLocalRandom.current().nextInt(IDS); // Sender thread only
+
+		Lane(InetSocketAddress server) throws IOException {
+			channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+			channel.connect(server);
+		}
+
+		// A free ID, or -1 if every one is outstanding
+		int claimId(long due) {
+			for (int i = 0; i < IDS; i++) {
+				int id = nextId;
+				nextId = (nextId + 1) & (IDS - 1);
+				if (dueTimes.get(id) == 0 && dueTimes.compareAndSet(id, 0, due + 1)) {
+					return id;
+				}
+			}
+			return -1;
+		}
+
+		void receive() {
+			ByteBuffer buffer = ByteBuffer.allocate(65535);
+			try {
+				while (true) {
+					buffer.clear();
+					channel.receive(buffer);
+					long now = System.nanoTime() - start;
+					if (buffer.position() < DnsMessage.HEADER_LENGTH) {
+						continue;
+					}
+					int id = buffer.getShort(0) & 0xFFFF;
+					long due = dueTimes.getAndUpdate(id, value -> value > 0 ? 0 : value);
+					if (due <= 0) {
+						late.increment(); // Already counted as lost, or not ours
+						continue;
+					}
+					outstanding.decrementAndGet();
+					completed.increment();
+					rcodes[buffer.get(3) & 0x0F].increment();
+					latency.record((now - (due - 1)) / 1000);
+				}
+			} catch (AsynchronousCloseException e) {
+				// Run is over
+			} catch (IOException e) {
+				Log.error("Receive failed: {}", e);
+			}
+		}
+
+		// Count queries outstanding past the timeout as lost, and free the IDs of those
+		// lost at least a sweep interval ago
+		void sweep(long now) {
+			long reusableAt = now > Long.MAX_VALUE - SWEEP_INTERVAL_NANOS ? Long.MAX_VALUE : now + SWEEP_INTERVAL_NANOS;
+			for (int id = 0; id < IDS; id++) {
+				long due = dueTimes.get(id);
+				if (due > 0 && now - (due - 1) > timeoutNanos && dueTimes.compareAndSet(id, due, -reusableAt)) {
+					outstanding.decrementAndGet();
+					lost.increment();
+				} else if (due < 0 && now >= -due) {
+					dueTimes.compareAndSet(id, due, 0);
+				}
+			}
+		}
+	}
+
+	private final InetSocketAddress server;
+	private final List<byte[]> queries;
+	private final double targetQps;
+	private final long durationNanos;
+	private final long timeoutNanos;
+	private final int maxOutstanding;
+	private final List<Lane> lanes = new ArrayList<>();
+
+	private long start;
+	private long sendingNanos;
+	private long sent;
+	private long notSent; // Over the outstanding limit
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder lost = new LongAdder();
+	private final LongAdder late = new LongAdder();
+	private final LongAdder[] rcodes = new LongAdder[16];
+	private final LatencyHistogram latency = new LatencyHistogram(); // Microseconds from due to answered
+
+	LoadGenerator(InetSocketAddress server, List<byte[]> queries, double targetQps, long durationSeconds,
+			int sockets, long timeoutSeconds, int maxOutstanding) throws IOException {
+		if (queries.isEmpty() || targetQps <= 0 || sockets < 1 || maxOutstanding < 1) {
+			throw new IllegalArgumentException("Need queries, a positive rate, a socket and room for one outstanding");
+		}
+		this.server = server;
+		this.queries = queries;
+		this.targetQps = targetQps;
+		this.durationNanos = durationSeconds * 1000000000L;
+		this.timeoutNanos = timeoutSeconds * 1000000000L;
+		this.maxOutstanding = maxOutstanding;
+		for (int i = 0; i < rcodes.length; i++) {
+			rcodes[i] = new LongAdder();
+		}
+		for (int i = 0; i < sockets; i++) {
+			lanes.add(new Lane(server));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String server = "127.0.0.1";
+		int port = 53;
+		String queryFile = null;
+		double qps = 1000;
+		long seconds = 10;
+		int sockets = 4;
+		long timeout = 5;
+		int maxOutstanding = 100000;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-s":
+				server = value;
+				break;
+			case "-p":
+				port = Integer.parseInt(value);
+				break;
+			case "-d":
+				queryFile = value;
+				break;
+			case "-Q":
+				qps = Double.parseDouble(value);
+				break;
+			case "-l":
+				seconds = Long.parseLong(value);
+				break;
+			case "-c":
+				sockets = Integer.parseInt(value);
+				break;
+			case "-t":
+				timeout = Long.parseLong(value);
+				break;
+			case "-q":
+				maxOutstanding = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (queryFile == null) {
+			System.out.println("Usage: java LoadGenerator -d queries.txt [-s server] [-p port] [-Q qps] [-l seconds]"
+					+ " [-c sockets] [-t timeout seconds] [-q max outstanding]");
+			return;
+		}
+
+		LoadGenerator generator = new LoadGenerator(new InetSocketAddress(InetAddress.getByName(server), port),
+				readQueries(queryFile), qps, seconds, sockets, timeout, maxOutstanding);
+		generator.run();
+		System.out.print(generator.report());
+	}
+
+	/**
+	 * Read a query file into ready-made queries, ID left at zero.
+	 */
+	static List<byte[]> readQueries(String path) throws IOException {
+		List<byte[]> queries = new ArrayList<>();
+		DnsWriter writer = new DnsWriter();
+		byte[] buffer = new byte[512];
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith(";") || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			int type = fields.length > 1 ? parseType(fields[1]) : DnsMessage.TYPE_A;
+			if (type < 0) {
+				throw new IllegalArgumentException("Unknown type on line " + lineNumber + ": " + fields[1]);
+			}
+			int length = writer.start(buffer, buffer.length).header(0, 0x0100).question(fields[0], type, 1).finish();
+			queries.add(Arrays.copyOf(buffer, length));
+		}
+		return queries;
+	}
+
+	static int parseType(String type) {
+		type = type.toUpperCase(Locale.ROOT);
+		if (type.equals("AAAA")) {
+			return 28;
+		}
+		for (int i = 0; i < TYPE_NAMES.length; i++) {
+			if (type.equals(TYPE_NAMES[i])) {
+				return i;
+			}
+		}
+		if (type.startsWith("TYPE")) {
+			type = type.substring(4);
+		}
+		try {
+			int value = Integer.parseInt(type);
+			return value > 0 && value < 65536 ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	void run() throws Exception {
+		List<Thread> receivers = new ArrayList<>();
+		for (Lane lane : lanes) {
+			Thread receiver = new Thread(lane::receive, "load-receiver");
+			receiver.setDaemon(true);
+			receiver.start();
+			receivers.add(receiver);
+		}
+
+		start = System.nanoTime();
+		double intervalNanos = 1e9 / targetQps;
+		ByteBuffer packet = ByteBuffer.allocate(512);
+		long nextSweep = SWEEP_INTERVAL_NANOS;
+		long nextProgress = 1000000000L;
+		long lastSent = 0;
+		long lastCompleted = 0;
+		long index = 0;
+		while (true) {
+			long due = (long) (index * intervalNanos);
+			if (due >= durationNanos) {
+				break;
+			}
+			long now = System.nanoTime() - start;
+			if (now >= nextSweep) {
+				for (Lane lane : lanes) {
+					lane.sweep(now);
+				}
+				nextSweep = now + SWEEP_INTERVAL_NANOS;
+			}
+			if (now >= nextProgress) {
+				long done = completed.sum();
+				System.out.printf("%d s: sent %d/s, answered %d/s, %d outstanding%n", nextProgress / 1000000000L,
+						sent - lastSent, done - lastCompleted, outstanding.get());
+				lastSent = sent;
+				lastCompleted = done;
+				nextProgress += 1000000000L;
+			}
+			if (now < due) {
+				// Park most of the way to the due time, then spin for precision
+				if (due - now > SPIN_NANOS) {
+					LockSupport.parkNanos(due - now - SPIN_NANOS);
+				}
+				continue;
+			}
+
+			// Due or overdue: send now, the latency clock already started at the due time
+			Lane lane = lanes.get((int) (index % lanes.size()));
+			byte[] query = queries.get((int) (index % queries.size()));
+			index++;
+			if (outstanding.get() >= maxOutstanding) {
+				notSent++;
+				continue;
+			}
+			int id = lane.claimId(due);
+			if (id < 0) {
+				notSent++;
+				continue;
+			}
+			outstanding.incrementAndGet();
+			packet.clear();
+			packet.put(query).putShort(0, (short) id).flip();
+			try {
+				lane.channel.write(packet);
+				sent++;
+			} catch (IOException e) {
+				// Counted as lost by the sweep, like a datagram dropped on the way
+				sent++;
+				Log.error("Send failed: {}", e);
+			}
+		}
+		sendingNanos = System.nanoTime() - start;
+
+		// Give the last queries their full timeout, then count what is left as lost
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		for (Lane lane : lanes) {
+			lane.sweep(Long.MAX_VALUE);
+			lane.channel.close();
+		}
+		for (Thread receiver : receivers) {
+			receiver.join(1000);
+		}
+		Log.flush();
+	}
+
+	String report() {
+		StringBuilder text = new StringBuilder(4096);
+		double seconds = sendingNanos / 1e9;
+		long answered = completed.sum();
+		long dropped = lost.sum();
+		text.append(String.format(Locale.ROOT, "%nStatistics:%n%n"));
+		text.append(String.format(Locale.ROOT, "  Target rate:          %.0f queries/s to %s port %d%n", targetQps,
+				server.getAddress().getHostAddress(), server.getPort()));
+		text.append(String.format(Locale.ROOT, "  Queries sent:         %d%n", sent));
+		text.append(String.format(Locale.ROOT, "  Queries completed:    %d (%.2f%%)%n", answered, percent(answered, sent)));
+		text.append(String.format(Locale.ROOT, "  Queries lost:         %d (%.2f%%)%n", dropped, percent(dropped, sent)));
+		if (late.sum() > 0) {
+			text.append(String.format(Locale.ROOT, "  Answers after timeout: %d%n", late.sum()));
+		}
+		if (notSent > 0) {
+			text.append(String.format(Locale.ROOT, "  Queries not sent:     %d (over %d outstanding)%n", notSent,
+					maxOutstanding));
+		}
+		text.append(String.format(Locale.ROOT, "%n  Response codes:       "));
+		String separator = "";
+		for (int i = 0; i < rcodes.length; i++) {
+			long count = rcodes[i].sum();
+			if (count > 0) {
+				String name = i < RCODE_NAMES.length ? RCODE_NAMES[i] : Integer.toString(i);
+				text.append(separator).append(String.format(Locale.ROOT, "%s %d (%.2f%%)", name, count,
+						percent(count, answered)));
+				separator = ", ";
+			}
+		}
+		text.append(String.format(Locale.ROOT, "%n  Run time (s):         %.3f%n", seconds));
+		text.append(String.format(Locale.ROOT, "  Queries per second:   %.1f%n", answered / seconds));
+
+		text.append(String.format(Locale.ROOT, "%n  Latency (us, from when each query was due):%n"));
+		text.append(String.format(Locale.ROOT, "    mean %.0f, p50 %d, p90 %d, p99 %d, p99.9 %d, p99.99 %d, max %d%n",
+				latency.mean(), latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+				latency.percentile(0.999), latency.percentile(0.9999), latency.max()));
+
+		text.append(String.format(Locale.ROOT, "%n  Latency histogram:%n    %12s %10s %9s%n", "up to (us)", "count",
+				"cumul %"));
+		long[] counts = latency.counts();
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				seen += counts[i];
+				text.append(String.format(Locale.ROOT, "    %12d %10d %9.3f%n", LatencyHistogram.upperBound(i),
+						counts[i], percent(seen, answered)));
+			}
+		}
+		return text.toString();
+	}
+
+	private static double percent(long part, long whole) {
+		return whole == 0 ? 0 : 100.0 * part / whole;
+	}
+}
@@ -0,0 +1,82 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class LoadGeneratorTest {
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Test
+    public void testParseType() {
+        System.out.println("\nStarting test: Query types");
+
+        assertEquals("By name", DnsMessage.TYPE_A, LoadGenerator.parseType("A"));
+        assertEquals("Any case", DnsMessage.TYPE_MX, LoadGenerator.parseType("mx"));
+        assertEquals("AAAA", 28, LoadGenerator.parseType("AAAA"));
+        assertEquals("TXT", DnsMessage.TYPE_TXT, LoadGenerator.parseType("Txt"));
+        assertEquals("RFC 3597 form", 65, LoadGenerator.parseType("TYPE65"));
+        assertEquals("A bare number", 48, LoadGenerator.parseType("48"));
+        assertEquals("Largest type", 65535, LoadGenerator.parseType("type65535"));
+
+        assertEquals("Type 0 is reserved", -1, LoadGenerator.parseType("TYPE0"));
+        assertEquals("Too large", -1, LoadGenerator.parseType("65536"));
+        assertEquals("Unknown name", -1, LoadGenerator.parseType("AXFR"));
+        assertEquals("Gaps in the name table are not names", -1, LoadGenerator.parseType("null"));
+        assertEquals("Empty", -1, LoadGenerator.parseType(""));
+        assertEquals("Not a number", -1, LoadGenerator.parseType("TYPEx"));
+        System.out.println(ANSI_GREEN + "Success: Types are read by name or number." + ANSI_RESET);
+    }
+
+    @Test
+    public void testReadQueries() throws Exception {
+        System.out.println("\nStarting test: Reading a query file");
+
+        Path file = Files.createTempFile("queries", ".txt");
+        try {
+            Files.write(file, String.join("\n",
+                    "; dnsperf style comment",
+                    "# shell style comment",
+                    "",
+                    "www.example.com A",
+                    "  mail.example.com\tmx  ",
+                    "example.org",
+                    "big.example.net TYPE65",
+                    "").getBytes(StandardCharsets.UTF_8));
+            List<byte[]> queries = LoadGenerator.readQueries(file.toString());
+            assertEquals("Comments and blank lines skipped", 4, queries.size());
+
+            assertQuery(queries.get(0), "www.example.com", DnsMessage.TYPE_A);
+            assertQuery(queries.get(1), "mail.example.com", DnsMessage.TYPE_MX);
+            assertQuery(queries.get(2), "example.org", DnsMessage.TYPE_A);
+            assertQuery(queries.get(3), "big.example.net", 65);
+
+            Files.write(file, "www.example.com A\nwww.example.com BOGUS\n".getBytes(StandardCharsets.UTF_8));
+            try {
+                LoadGenerator.readQueries(file.toString());
+                fail("An unknown type should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("line 2: BOGUS"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+        System.out.println(ANSI_GREEN + "Success: Query files become ready-made queries." + ANSI_RESET);
+    }
+
+    private static void assertQuery(byte[] query, String name, int type) {
+        DnsMessage message = new DnsMessage().wrap(query, query.length);
+        assertEquals("ID filled in when sent", 0, message.id());
+        assertEquals("A query with RD set", 0x0100, message.getShort(2));
+        assertEquals("One question", 1, message.questionCount());
+        assertTrue(name, message.nameEquals(DnsMessage.HEADER_LENGTH, name));
+        assertEquals(type, message.questionType());
+        assertEquals("Class IN", 1, message.questionClass());
+        assertEquals("Nothing after the question", query.length, message.questionEnd());
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging that stays off the query path. A caller only claims a slot in a
+ * fixed ring buffer and stores its template and arguments there; one writer
+ * thread formats the message and prints it. Nothing blocks: if the ring is
+ * full the message is dropped and counted.
+ *
+ * Templates use {} for each argument, formatted with String.valueOf; a
+ * Throwable argument is printed as its message, or with its stack trace if it
+ * is left over after the last {}. There are three kinds of message:
+ * <ul>
+ * <li>info, for rare events such as startup, always printed;</li>
+ * <li>error, limited to ERRORS_PER_SECOND per template, with a count of the
+ * suppressed ones printed once the limit lifts;</li>
+ * <li>trace, per-query detail printed only for names inside the trace filter,
+ * which can be changed at runtime.</li>
+ * </ul>
+ */
+final class Log {
+	static final int ERRORS_PER_SECOND = 10;
+	private static final int CAPACITY = 8192; // Power of two
+	private static final long IDLE_PARK_NANOS = 1000000;
+
+	private static final class Slot {
+		String prefix;
+		String template;
+		Object a0;
+		Object a1;
+		Object a2;
+		long suppressed;
+	}
+
+	// Per-template window for the error limit
+	private static final class Limiter {
+		volatile long windowStart;
+		final AtomicInteger count = new AtomicInteger();
+		final AtomicLong suppressed = new AtomicLong();
+	}
+
+	private static final Slot[] slots = new Slot[CAPACITY];
+	// Sequence a slot was last published with, so the writer knows it is filled in
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	private static final AtomicLong claimed = new AtomicLong(); // Next sequence to hand out
+	private static volatile long consumed; // Next sequence the writer will print
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<>();
+	private static volatile Thread writer;
+
+	private static volatile String traceFilter; // Null when tracing is off
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			slots[i] = new Slot();
+			published.set(i, -1);
+		}
+	}
+
+	private Log() {
+	}
+
+	static void info(String template) {
+		enqueue("", template, null, null, null, 0);
+	}
+
+	static void info(String template, Object a0) {
+		enqueue("", template, a0, null, null, 0);
+	}
+
+	static void info(String template, Object a0, Object a1) {
+		enqueue("", template, a0, a1, null, 0);
+	}
+
+	static void error(String template) {
+		error(template, null, null, null);
+	}
+
+	static void error(String template, Object a0) {
+		error(template, a0, null, null);
+	}
+
+	static void error(String template, Object a0, Object a1) {
+		error(template, a0, a1, null);
+	}
+
+	static void error(String template, Object a0, Object a1, Object a2) {
+		long suppressed = admit(template);
+		if (suppressed >= 0) {
+			enqueue("", template, a0, a1, a2, suppressed);
+		}
+	}
+
+	/**
+	 * Only print per-query detail for names inside this domain. "" or "." traces
+	 * every query, null turns tracing off. Takes effect straight away.
+	 */
+	static void setTraceFilter(String domain) {
+		if (domain != null) {
+			domain = domain.toLowerCase(Locale.ROOT);
+			if (domain.endsWith(".")) {
+				domain = domain.substring(0, domain.length() - 1);
+			}
+		}
+		traceFilter = domain;
+	}
+
+	static String traceFilter() {
+		return traceFilter;
+	}
+
+	/**
+	 * @return True if any query may be traced; check before building a name just
+	 *         for tracing.
+	 */
+	static boolean isTracing() {
+		return traceFilter != null;
+	}
+
+	/**
+	 * @param name Lowercased query name, without a trailing dot.
+	 */
+	static boolean isTracing(String name) {
+		String filter = traceFilter;
+		if (filter == null) {
+			return false;
+		}
+		if (filter.isEmpty()) {
+			return true;
+		}
+		int start = name.length() - filter.length();
+		return name.endsWith(filter) && (start == 0 || (start > 0 && name.charAt(start - 1) == '.'));
+	}
+
+	static void trace(String name, String template, Object a0) {
+		trace(name, template, a0, null, null);
+	}
+
+	static void trace(String name, String template, Object a0, Object a1) {
+		trace(name, template, a0, a1, null);
+	}
+
+	static void trace(String name, String template, Object a0, Object a1, Object a2) {
+		if (isTracing(name)) {
+			enqueue("[trace] ", template, a0, a1, a2, 0);
+		}
+	}
+
+	/**
+	 * @return Messages lost because the ring was full.
+	 */
+	static long droppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Wait until everything logged so far has been printed, for tests and shutdown.
+	 */
+	static void flush() {
+		long target = claimed.get();
+		long deadline = System.nanoTime() + 1000000000L;
+		while (consumed < target && System.nanoTime() < deadline) {
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+	}
+
+	// -1 if the message must be dropped, otherwise how many were suppressed before it
+	private static long admit(String template) {
+		Limiter limiter = limiters.computeIfAbsent(template, t -> new Limiter());
+		long now = System.nanoTime();
+		if (now - limiter.windowStart > 1000000000L) {
+			limiter.windowStart = now; // A race here only lets a few extra through
+			limiter.count.set(0);
+		}
+		if (limiter.count.incrementAndGet() > ERRORS_PER_SECOND) {
+			limiter.suppressed.incrementAndGet();
+			return -1;
+		}
+		return limiter.suppressed.getAndSet(0);
+	}
+
+	private static void enqueue(String prefix, String template, Object a0, Object a1, Object a2, long suppressed) {
+		startWriter();
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+
+		int index = (int) (sequence & (CAPACITY - 1));
+		Slot slot = slots[index];
+		slot.prefix = prefix;
+		slot.template = template;
+		slot.a0 = a0;
+		slot.a1 = a1;
+		slot.a2 = a2;
+		slot.suppressed = suppressed;
+		published.set(index, sequence); // Volatile write, so the writer sees the fields
+	}
+
+	private static void startWriter() {
+		if (writer == null) {
+			synchronized (Log.class) {
+				if (writer == null) {
+					Thread thread = new Thread(Log::writeLoop, "dns-log-writer");
+					thread.setDaemon(true);
+					thread.start();
+					writer = thread;
+				}
+			}
+		}
+	}
+
+	private static void writeLoop() {
+		StringBuilder line = new StringBuilder(256);
+		long next = consumed;
+		while (true) {
+			int index = (int) (next & (CAPACITY - 1));
+			if (published.get(index) != next) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			Slot slot = slots[index];
+			line.setLength(0);
+			line.append(slot.prefix);
+			Throwable leftOver = format(line, slot.template, slot.a0, slot.a1, slot.a2);
+			if (slot.suppressed > 0) {
+				line.append(" (").append(slot.suppressed).append(" similar messages suppressed)");
+			}
+			if (leftOver != null) {
+				StringWriter trace = new StringWriter();
+				leftOver.printStackTrace(new PrintWriter(trace));
+				line.append(System.lineSeparator()).append(trace.toString().trim());
+			}
+			slot.a0 = slot.a1 = slot.a2 = null; // Let the arguments be collected
+			consumed = ++next; // Frees the slot for producers
+			System.out.println(line);
+		}
+	}
+
+	// Returns a Throwable argument no {} used up, or null
+	private static Throwable format(StringBuilder line, String template, Object a0, Object a1, Object a2) {
+		int argument = 0;
+		int start = 0;
+		int marker;
+		while ((marker = template.indexOf("{}", start)) >= 0) {
+			line.append(template, start, marker);
+			Object value = argument == 0 ? a0 : argument == 1 ? a1 : a2;
+			if (value instanceof Throwable) {
+				line.append(((Throwable) value).getMessage());
+			} else {
+				line.append(value);
+			}
+			argument++;
+			start = marker + 2;
+		}
+		line.append(template, start, template.length());
+		Object next = argument == 0 ? a0 : argument == 1 ? a1 : argument == 2 ? a2 : null;
+		return next instanceof Throwable ? (Throwable) next : null;
+	}
+}
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+/**
+ * A domain name as a hash key: uncompressed wire-format bytes, compared and
+ * hashed without regard to ASCII case, with the hash worked out once. A key can
+ * be a view straight onto the name in a received packet, so looking a question
+ * up costs no decoding; copy() makes the lowercased private copy that anything
+ * outliving the packet must hold instead.
+ */
+final class NameKey {
+	private final byte[] data;
+	private final int offset;
+	private final int length; // Including the root label
+	private final boolean owned; // Data is this key's own lowercased copy
+	private final int hash;
+
+	private NameKey(byte[] data, int offset, int length, boolean owned) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		this.owned = owned;
+		this.hash = DnsMessage.hashName(data, offset);
+	}
+
+	/**
+	 * @param name Dotted name, with or without the trailing dot; "" or "." for
+	 *             the root.
+	 */
+	static NameKey of(String name) {
+		int end = name.endsWith(".") ? name.length() - 1 : name.length();
+		byte[] wire = new byte[end == 0 ? 1 : end + 2];
+		int position = 0;
+		int labelStart = 0;
+		while (labelStart < end) {
+			int labelEnd = name.indexOf('.', labelStart);
+			if (labelEnd < 0 || labelEnd > end) {
+				labelEnd = end;
+			}
+			int labelLength = labelEnd - labelStart;
+			if (labelLength == 0 || labelLength > 63) {
+				throw new IllegalArgumentException("Invalid domain name: " + name);
+			}
+			wire[position++] = (byte) labelLength;
+			for (int i = labelStart; i < labelEnd; i++) {
+				wire[position++] = (byte) DnsMessage.toLower((byte) name.charAt(i));
+			}
+			labelStart = labelEnd + 1;
+		}
+		wire[position] = 0;
+		return new NameKey(wire, 0, wire.length, true);
+	}
+
+	/**
+	 * Key a name inside a message. An uncompressed name, which a question name
+	 * always is in practice, is viewed where it lies and the message must not
+	 * change while the key is in use. A compressed one is copied out.
+	 *
+	 * @return The key, or null if the name is malformed.
+	 */
+	static NameKey of(DnsMessage message, int nameOffset) {
+		int end = message.skipName(nameOffset);
+		if (end < 0 || message.labelCount(nameOffset) < 0) {
+			return null;
+		}
+		if (message.hasArray() && !message.isCompressed(nameOffset)) {
+			return new NameKey(message.array(), nameOffset, end - nameOffset, false);
+		}
+		// Compressed, or not array backed: flatten the labels into a copy
+		byte[] wire = new byte[255];
+		int length = message.copyName(nameOffset, wire);
+		for (int i = 0; i < length; i++) {
+			wire[i] = (byte) DnsMessage.toLower(wire[i]);
+		}
+		return new NameKey(Arrays.copyOf(wire, length), 0, length, true);
+	}
+
+	/**
+	 * @return A key that owns its bytes, this one if it already does.
+	 */
+	NameKey copy() {
+		if (owned) {
+			return this;
+		}
+		byte[] wire = new byte[length];
+		for (int i = 0; i < length; i++) {
+			wire[i] = (byte) DnsMessage.toLower(data[offset + i]);
+		}
+		return new NameKey(wire, 0, length, true);
+	}
+
+	/**
+	 * @return The length of the name in wire format, root label included.
+	 */
+	int length() {
+		return length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof NameKey)) {
+			return false;
+		}
+		NameKey other = (NameKey) o;
+		if (hash != other.hash || length != other.length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (DnsMessage.toLower(data[offset + i]) != DnsMessage.toLower(other.data[other.offset + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * @return The name in dotted form without the trailing dot, "" for the root.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder name = new StringBuilder(length);
+		int position = offset;
+		while (data[position] != 0) {
+			if (name.length() > 0) {
+				name.append('.');
+			}
+			for (int i = 1; i <= data[position]; i++) {
+				name.append((char) DnsMessage.toLower(data[position + i]));
+			}
+			position += data[position] + 1;
+		}
+		return name.toString();
+	}
+}
@@ -1,9 +1,33 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 interface NameServerInterface {
@@ -16,9 +40,79 @@ public class NameServer implements NameServerInterface {
 	private InetAddress rootServerIP;
 	private int rootServerPort;
 	
-	private static final long CACHE_EXPIRATION_TIME = 10000; // 10 seconds
-	private final ConcurrentHashMap<String, CacheEntry> dnsCache = new ConcurrentHashMap<>();
+	private ResponseCache dnsCache = new ResponseCache();
+	private final BufferPool outboundBuffers = new BufferPool(256, 65535); // Room for any cached message
+	// Cache misses currently being resolved, keyed like the cache
+	private final ConcurrentHashMap<ResponseCache.Key, CompletableFuture<byte[]>> pendingResolutions = new ConcurrentHashMap<>();
+
+	// Refresh-ahead and serve-stale
+	private double prefetchFraction = 0.9;
+	private long maxStaleSeconds = 86400;
+	private long staleDeadlineMillis = 1800;
+	// Runs the steps of upstream resolutions as responses arrive; none of them block
+	private final ExecutorService resolutionExecutor = Executors
+			.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+				Thread thread = new Thread(runnable, "dns-resolution");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	public NameServer() {
+		configureCache();
+	}
 	private Random random = new Random();
+	private final DelegationCache delegationCache = new DelegationCache();
+	// Reusable codec views, so parsing a message allocates nothing
+	private final CodecPool codecs = new CodecPool(256);
+	private static final int MAX_NS_LOOKUP_DEPTH = 4;
+	private final ServerSelector serverSelector = new ServerSelector();
+	private final NameServerMetrics metrics = new NameServerMetrics();
+	private int metricsPort = 0; // Text endpoint off by default
+	// Zones answered authoritatively, swapped whole on reload; null when there are none
+	private volatile ZoneIndex zones;
+	private String[] zonePaths = new String[0];
+
+	// How incoming datagrams are handed to processQuery
+	public enum ExecutionMode {
+		THREAD_PER_QUERY, // a new platform thread for every datagram (the original model)
+		VIRTUAL_THREADS, // a virtual thread per query, falls back to BOUNDED_POOL before JDK 21
+		BOUNDED_POOL // a fixed pool of platform threads
+	}
+
+	private ExecutionMode executionMode = ExecutionMode.VIRTUAL_THREADS;
+	private int poolSize = Runtime.getRuntime().availableProcessors() * 4;
+	private int maxInFlightQueries = 1024;
+	private Semaphore inFlightQueries;
+
+	// NIO front end: number of selector loops, 0 keeps the single blocking socket
+	private int nioReactors = 0;
+	private static final int MAX_DATAGRAMS_PER_WAKEUP = 32;
+
+	// Where a reply for a query goes: the socket or channel the query came in on
+	private interface ReplyChannel {
+		void send(byte[] data, int length, InetAddress address, int port) throws IOException;
+
+		// Stream transports carry any size; datagram replies must fit the client's buffer
+		default boolean isStream() {
+			return false;
+		}
+
+		// Called once for every query dispatchQuery was given, answered or not
+		default void done() {
+		}
+	}
+
+	// TCP front end
+	private static final int MAX_MESSAGE_SIZE = 65535;
+
+	// EDNS(0): UDP payload size advertised upstream and to clients, 0 turns EDNS off
+	private int ednsPayloadSize = Edns.DEFAULT_PAYLOAD_SIZE;
+	private static final int MAX_TCP_CONNECTIONS = 256;
+	private static final int TCP_IDLE_TIMEOUT_MILLIS = 10000;
+
+	// Sockets and selectors stop() closes to make handleIncomingQueries return
+	private final List<Closeable> listeners = new CopyOnWriteArrayList<>();
+	private volatile boolean stopped;
 
 	@Override
 	public void setNameServer(InetAddress ipAddress, int port) {
@@ -26,506 +120,1221 @@ public class NameServer implements NameServerInterface {
 		this.rootServerPort = port;
 	}
 
-	@Override
-	public void handleIncomingQueries(int port) throws Exception {
-		try (DatagramSocket serverSocket = new DatagramSocket(port)) {
-			while (true) {
-				byte[] receiveData = new byte[512];
-				DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-				serverSocket.receive(receivePacket);
-				new Thread(() -> processQuery(receivePacket, serverSocket)).start();
-			}
-		} catch (Exception e) {
-			System.out.println("Server error: " + e.getMessage());
-			throw new Exception("Failed to start DNS server", e);
+	/**
+	 * Choose how queries are dispatched. Must be called before handleIncomingQueries.
+	 * 
+	 * @param mode               The execution model for processQuery.
+	 * @param maxInFlightQueries Queries allowed in progress at once; anything over
+	 *                           the cap is answered immediately with REFUSED.
+	 */
+	public void setExecutionMode(ExecutionMode mode, int maxInFlightQueries) {
+		if (maxInFlightQueries <= 0) {
+			throw new IllegalArgumentException("maxInFlightQueries must be positive");
 		}
+		this.executionMode = mode;
+		this.maxInFlightQueries = maxInFlightQueries;
 	}
 
+	/**
+	 * Set the memory budget of the response cache.
+	 * 
+	 * @param maximumBytes Approximate heap cached responses may use.
+	 */
+	public void setCacheSize(long maximumBytes) {
+		dnsCache.setMaximumBytes(maximumBytes);
+	}
 
+	/**
+	 * Keep cached responses in off-heap slabs instead of heap arrays, so large
+	 * caches cost the heap only their index, about 160 bytes per entry, and not
+	 * the messages. Replaces the current cache, so it must be called before
+	 * handleIncomingQueries.
+	 * 
+	 * @param maximumBytes Memory budget for the cache, most of it off-heap.
+	 */
+	public void setOffHeapCache(long maximumBytes) {
+		dnsCache = new ResponseCache(maximumBytes, true);
+		configureCache();
+	}
 
-private static class CacheEntry {
-    byte[] data;
-    long timestamp;
+	/**
+	 * Refresh popular entries in the background before they expire.
+	 * 
+	 * @param fraction Share of an entry's TTL after which a hit triggers a
+	 *                 refresh, e.g. 0.9. 1 turns prefetching off.
+	 */
+	public void setPrefetch(double fraction) {
+		this.prefetchFraction = fraction;
+		configureCache();
+	}
 
-    CacheEntry(byte[] data) {
-        this.data = data;
-        this.timestamp = System.currentTimeMillis();
-    }
+	/**
+	 * Answer with expired data when upstream resolution fails or is slow (RFC
+	 * 8767). Stale answers go out with a 30 second TTL.
+	 * 
+	 * @param maxStaleSeconds How long after expiry data may still be served. 0
+	 *                        turns serve-stale off.
+	 * @param deadlineMillis  How long a client waits for fresh data before it is
+	 *                        given stale data instead.
+	 */
+	public void setServeStale(long maxStaleSeconds, long deadlineMillis) {
+		this.maxStaleSeconds = maxStaleSeconds;
+		this.staleDeadlineMillis = maxStaleSeconds > 0 ? deadlineMillis : 0;
+		configureCache();
+	}
 
-    boolean isExpired() {
-        return System.currentTimeMillis() - timestamp > CACHE_EXPIRATION_TIME;
-    }
-}
+	/**
+	 * Set the UDP payload size advertised in EDNS(0) OPT records, both in queries
+	 * to upstream servers and in replies to EDNS clients. Larger sizes mean fewer
+	 * truncated answers and TCP retries, at the risk of IP fragmentation.
+	 * 
+	 * @param payloadSize Between 512 and 4096; the default 1232 avoids
+	 *                    fragmentation on any path. 0 turns EDNS off.
+	 */
+	public void setEdnsPayloadSize(int payloadSize) {
+		if (payloadSize != 0 && (payloadSize < Edns.MIN_PAYLOAD_SIZE || payloadSize > 4096)) {
+			throw new IllegalArgumentException("payloadSize must be 0 or between 512 and 4096");
+		}
+		this.ednsPayloadSize = payloadSize;
+	}
 
-private void processQuery(DatagramPacket packet, DatagramSocket serverSocket) {
-    if (packet == null) {
-        System.out.println("Received null packet");
-        return;
-    }
+	// Queries are small, but an EDNS client may send up to the size we advertise
+	private int receiveBufferSize() {
+		return Math.max(Edns.MIN_PAYLOAD_SIZE, ednsPayloadSize);
+	}
 
-    byte[] data = packet.getData();
-    if (data == null) {
-        System.out.println("Packet data is null");
-        return;
-    }
+	// Smoothed RTT of an upstream server in milliseconds, -1 if never asked
+	double smoothedRtt(InetAddress server) {
+		return serverSelector.smoothedRtt(server);
+	}
 
-    try {
-        // Check if the data length is reasonable for a DNS packet
-        if (data.length < 12) { // DNS header is 12 bytes
-            System.out.println("Data length is too short for DNS packet");
-            sendErrorResponse(packet, serverSocket, 2); // Format error
-            return;
-        }
+	private void configureCache() {
+		dnsCache.setRefresher(this::refreshInBackground, prefetchFraction);
+		dnsCache.setMaxStale(maxStaleSeconds);
+	}
 
-        if (!isValidQuery(data)) {
-            System.out.println("Invalid query received");
-            sendErrorResponse(packet, serverSocket, 2); // Format error
-            return;
-        }
+	/**
+	 * Serve metrics as text at http://127.0.0.1:port/metrics while queries are
+	 * handled. They are also always registered over JMX as
+	 * DNSResolver:type=NameServer,port=N. Must be called before
+	 * handleIncomingQueries.
+	 * 
+	 * @param port Loopback port for the endpoint, 0 for none.
+	 */
+	public void setMetricsPort(int port) {
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("port must be between 0 and 65535");
+		}
+		this.metricsPort = port;
+	}
 
-        byte[] requestData = packet.getData();
-        InetAddress clientAddress = packet.getAddress();
-        int clientPort = packet.getPort();
+	/**
+	 * Print a trace of every step for queries under a domain: cache hit or miss,
+	 * each upstream server asked, its RCODE and latency, and each referral. Can be
+	 * switched at any time, also over JMX through the TraceFilter attribute.
+	 * 
+	 * @param domain "" or "." to trace every query, null to stop tracing.
+	 */
+	public void setTraceFilter(String domain) {
+		Log.setTraceFilter(domain);
+	}
 
-		String query;
-		try {
-			query = extractQuery(ByteBuffer.wrap(requestData));
-		} catch (Exception e) {
-			System.out.println("Failed to extract query: " + e.getMessage());
-			sendErrorResponse(packet, serverSocket, 2); // Format error
-			return;
+	/**
+	 * Answer names inside these zones from their master files, authoritatively
+	 * and without asking any other server. May be called while queries are
+	 * served: the new zones replace the old ones in one step, so no query waits
+	 * for the load or sees part of it. Also reachable over JMX as reloadZones.
+	 * 
+	 * @param paths RFC 1035 master files, one zone with its SOA in each. Relative
+	 *              names need a $ORIGIN in the file. None stops zone serving.
+	 * @throws IOException If a file cannot be read or has an error; the zones
+	 *                     already loaded are then kept.
+	 */
+	public synchronized void loadZones(String... paths) throws IOException {
+		List<ZoneFile> files = new ArrayList<>();
+		for (String path : paths) {
+			files.add(ZoneFile.read(path, null));
+		}
+		ZoneIndex index = files.isEmpty() ? null : new ZoneIndex(files);
+		zonePaths = paths.clone();
+		zones = index;
+		metrics.zoneReloader = () -> {
+			reloadZones();
+			return null;
+		};
+		if (index != null) {
+			Log.info("Serving {} zones, {} names", files.size(), index.size());
 		}
-		
+	}
 
-        byte[] response;
+	/**
+	 * Read the files last given to loadZones again.
+	 */
+	public synchronized void reloadZones() throws IOException {
+		loadZones(zonePaths);
+	}
 
-        CacheEntry cacheEntry = dnsCache.get(query);
-        if (cacheEntry != null && !cacheEntry.isExpired()) {
-            response = cacheEntry.data;
-        } else {
-            try {
-                response = performIterativeQuery(query);
-                if (response == null) {
-                    System.out.println("Failed to get response for query: " + query);
-                    sendErrorResponse(packet, serverSocket, 2); // Server failure
-                    return;
-                } else {
-                    dnsCache.put(query, new CacheEntry(response));
-                }
-            } catch (Exception e) {
-                System.out.println("Error performing iterative query: " + e.getMessage());
-                sendErrorResponse(packet, serverSocket, 2); // Server failure
-                return;
-            }
-        }
+	public NameServerMetricsMXBean getMetrics() {
+		return metrics;
+	}
 
-        DatagramPacket responsePacket = new DatagramPacket(response, response.length, clientAddress, clientPort);
-        serverSocket.send(responsePacket);
-    } catch (Exception e) {
-        System.out.println("Error processing query: " + e.getMessage());
-        e.printStackTrace();
-        sendErrorResponse(packet, serverSocket, 2); // Server failure
-    }
-}
+	public double getCacheHitRatio() {
+		return dnsCache.hitRatio();
+	}
 
+	public long getCacheEvictionCount() {
+		return dnsCache.evictionCount();
+	}
 
-private void sendErrorResponse(DatagramPacket requestPacket, DatagramSocket serverSocket, int rcode) {
-    try {
-        ByteBuffer buffer = ByteBuffer.allocate(512);
-        int transactionID = ByteBuffer.wrap(requestPacket.getData()).getShort(0);
-        buffer.putShort((short) transactionID); // Copy transaction ID
-        buffer.putShort((short) (0x8000 | (rcode & 0xF))); // Set response flag and RCODE
-        buffer.putShort((short) 0); // Questions
-        buffer.putShort((short) 0); // Answer RRs
-        buffer.putShort((short) 0); // Authority RRs
-        buffer.putShort((short) 0); // Additional RRs
-
-        DatagramPacket errorPacket = new DatagramPacket(buffer.array(), buffer.position(), requestPacket.getAddress(), requestPacket.getPort());
-        serverSocket.send(errorPacket);
-    } catch (Exception e) {
-        System.out.println("Failed to send error response: " + e.getMessage());
-    }
-}
+	public long getCacheSizeBytes() {
+		return dnsCache.weightedSize();
+	}
 
+	/**
+	 * Set the number of platform threads used in BOUNDED_POOL mode.
+	 */
+	public void setPoolSize(int poolSize) {
+		if (poolSize <= 0) {
+			throw new IllegalArgumentException("poolSize must be positive");
+		}
+		this.poolSize = poolSize;
+	}
 
+	/**
+	 * Serve queries from N selector loops over non-blocking DatagramChannels
+	 * instead of one blocking socket. Where the kernel supports SO_REUSEPORT each
+	 * loop gets its own channel bound to the same port, so the kernel spreads
+	 * datagrams across them. Must be called before handleIncomingQueries.
+	 * 
+	 * @param reactors Number of selector loops, usually one per core. 0 turns NIO
+	 *                 mode off.
+	 */
+	public void setNioReactors(int reactors) {
+		if (reactors < 0) {
+			throw new IllegalArgumentException("reactors must not be negative");
+		}
+		this.nioReactors = reactors;
+	}
 
-	private byte[] performIterativeQuery(String query) {
+	@Override
+	public void handleIncomingQueries(int port) throws Exception {
+		inFlightQueries = new Semaphore(maxInFlightQueries);
+		ExecutorService executor = createQueryExecutor();
+		ServerSocket tcpListener = null;
 		try {
-			InetAddress dnsServer = rootServerIP; // Start with the root server
-			int dnsPort = rootServerPort; // Standard DNS port
-			byte[] queryPacket = buildQueryPacket(query); // Build the DNS query packet
+			// The platform MBean server is slow to start, so it must not hold up the sockets
+			resolutionExecutor.execute(() -> metrics.registerMBean(port));
+			if (metricsPort > 0) {
+				metrics.startHttpEndpoint(metricsPort);
+			}
+			tcpListener = closedOnStop(startTcpListener(port, executor));
+			if (nioReactors > 0) {
+				runNioReactors(port, executor);
+				return;
+			}
 
-			while (true) {
-				try (DatagramSocket socket = new DatagramSocket()) {
-					socket.setSoTimeout(2000); // Set timeout for response
-					DatagramPacket requestPacket = new DatagramPacket(queryPacket, queryPacket.length, dnsServer,
-							dnsPort);
-					socket.send(requestPacket);
-
-					byte[] buffer = new byte[512];
-					DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
-					socket.receive(responsePacket); // Receive the DNS response
-
-					DNSResponse dnsResponse = parseResponse(buffer);
-					if (dnsResponse.rcode == 0 && dnsResponse.answerCount > 0) { // No error and there are answers
-						return buffer;
-					} else if (dnsResponse.rcode == 3) { // Name Error means no such name exists
-						return buffer; // Returning response to indicate name error
-					} else {
-						InetAddress nextServer = getNextServer(buffer);
-						if (nextServer != null) {
-							dnsServer = nextServer; // Update the server for the next query
+			try (DatagramSocket serverSocket = closedOnStop(new DatagramSocket(port))) {
+				ReplyChannel reply = (data, length, address, clientPort) -> serverSocket
+						.send(new DatagramPacket(data, length, address, clientPort));
+				while (true) {
+					byte[] receiveData = new byte[receiveBufferSize()];
+					DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+					serverSocket.receive(receivePacket);
+					dispatchQuery(executor, receivePacket, reply);
+				}
+			}
+		} catch (Exception e) {
+			if (stopped) {
+				return; // The sockets were closed by stop()
+			}
+			Log.error("Server error: {}", e);
+			throw new Exception("Failed to start DNS server", e);
+		} finally {
+			metrics.stopHttpEndpoint();
+			if (tcpListener != null) {
+				tcpListener.close();
+			}
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Stop serving: close the sockets handleIncomingQueries listens on, so that it
+	 * returns, and stop the resolution threads. Queries still being worked on may
+	 * go unanswered. A stopped server cannot be started again.
+	 */
+	public void stop() {
+		stopped = true;
+		for (Closeable listener : listeners) {
+			closeQuietly(listener);
+		}
+		resolutionExecutor.shutdownNow();
+	}
+
+	// Remember a socket or selector for stop(), closing it at once if stop() came first
+	private <T extends Closeable> T closedOnStop(T listener) throws IOException {
+		listeners.add(listener);
+		if (stopped) {
+			listener.close();
+		}
+		return listener;
+	}
+
+	/**
+	 * Listen for DNS over TCP on the same port (RFC 7766). Each connection gets a
+	 * reader task on the query executor that keeps reading length-prefixed
+	 * queries and dispatches them like datagrams, so pipelined queries are worked
+	 * on concurrently and answered in whatever order they finish. A connection
+	 * stays open for further queries until it has been idle for
+	 * TCP_IDLE_TIMEOUT_MILLIS.
+	 */
+	private ServerSocket startTcpListener(int port, ExecutorService executor) throws IOException {
+		ServerSocket listener = new ServerSocket(port);
+		// A reader blocks its thread, so on a fixed pool connections get at most half
+		// the threads and can never starve the datagrams of them
+		int maxConnections = executor instanceof ThreadPoolExecutor
+				? Math.max(1, Math.min(MAX_TCP_CONNECTIONS, ((ThreadPoolExecutor) executor).getMaximumPoolSize() / 2))
+				: MAX_TCP_CONNECTIONS;
+		Semaphore connections = new Semaphore(maxConnections);
+		Thread acceptor = new Thread(() -> {
+			while (!listener.isClosed()) {
+				try {
+					Socket socket = listener.accept();
+					if (!connections.tryAcquire()) {
+						socket.close(); // Too many connections, the client can retry or use UDP
+						continue;
+					}
+					Runnable reader = () -> {
+						try {
+							serveTcpConnection(socket, executor);
+						} finally {
+							connections.release();
+						}
+					};
+					try {
+						if (executor == null) {
+							new Thread(reader, "dns-tcp-connection").start();
 						} else {
-							throw new Exception("No further DNS servers available for querying.");
+							executor.execute(reader);
 						}
+					} catch (RejectedExecutionException e) {
+						connections.release();
+						socket.close(); // Shutting down
+					}
+				} catch (IOException e) {
+					if (!listener.isClosed()) {
+						Log.error("TCP accept failed: {}", e);
 					}
 				}
 			}
-		} catch (Exception e) {
-			System.out.println("Error during DNS resolution: " + e.getMessage());
-			return null;
-		}
+		}, "dns-tcp-listener");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return listener;
 	}
 
-	private InetAddress getNextServer(byte[] response) throws Exception {
-		ByteBuffer buffer = ByteBuffer.wrap(response);
+	private void serveTcpConnection(Socket socket, ExecutorService executor) {
+		AtomicInteger outstanding = new AtomicInteger(); // Queries read but not yet answered
+		AtomicBoolean closing = new AtomicBoolean();
+		try {
+			socket.setSoTimeout(TCP_IDLE_TIMEOUT_MILLIS);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			ReplyChannel reply = new ReplyChannel() {
+				@Override
+				public void send(byte[] data, int length, InetAddress address, int port) throws IOException {
+					synchronized (out) { // Replies to pipelined queries finish on different threads
+						out.write(length >> 8);
+						out.write(length);
+						out.write(data, 0, length);
+						out.flush();
+					}
+				}
 
-		// Skip the header
-		buffer.position(12); // DNS header is always 12 bytes
+				@Override
+				public boolean isStream() {
+					return true;
+				}
 
-		// Skip the question section
-		int questionCount = buffer.getShort(4); // Number of questions
-		for (int i = 0; i < questionCount; i++) {
-			skipDomainName(buffer); // Skip the domain name in the question section
-			buffer.getShort(); // Type
-			buffer.getShort(); // Class
-		}
-
-		// Skip the answer section
-		int answerCount = buffer.getShort(6);
-		for (int i = 0; i < answerCount; i++) {
-			skipResourceRecord(buffer);
-		}
-
-		// Parse the authority section
-		int authorityCount = buffer.getShort(8);
-		for (int i = 0; i < authorityCount; i++) {
-			skipDomainName(buffer); // Domain name
-			int type = buffer.getShort();
-			buffer.getShort(); // Class
-			buffer.getInt(); // TTL
-			int dataLength = buffer.getShort(); // Data length
-			if (type == 2) { // NS record type
-				String nsName = readDomainName(buffer, response); // Read the NS domain name
-				return resolveNSRecord(nsName);
-			} else {
-				buffer.position(buffer.position() + dataLength); // Skip this record if not NS
+				// Also for queries dropped unanswered, so the connection does not wait on them
+				@Override
+				public void done() {
+					if (outstanding.decrementAndGet() == 0 && closing.get()) {
+						closeQuietly(socket);
+					}
+				}
+			};
+
+			while (true) {
+				int high;
+				try {
+					high = in.read();
+				} catch (SocketTimeoutException e) {
+					if (outstanding.get() > 0) {
+						continue; // Not idle while we still owe it answers
+					}
+					break;
+				}
+				if (high < 0) {
+					break; // Client closed its side
+				}
+				int length = (high << 8) | in.readUnsignedByte();
+				byte[] message = new byte[length];
+				in.readFully(message);
+				outstanding.incrementAndGet();
+				dispatchQuery(executor, new DatagramPacket(message, length, socket.getInetAddress(), socket.getPort()),
+						reply);
 			}
+		} catch (SocketTimeoutException e) {
+			// Went quiet part way through a message: closed like any idle connection
+		} catch (IOException e) {
+			Log.error("TCP connection from {} failed: {}", socket.getInetAddress().getHostAddress(), e);
 		}
 
-		return null;
+		// Let answers still being worked on go out before closing, within reason
+		closing.set(true);
+		if (outstanding.get() == 0) {
+			closeQuietly(socket);
+		} else {
+			TimerWheel.shared().schedule(() -> closeQuietly(socket), TCP_IDLE_TIMEOUT_MILLIS);
+		}
 	}
 
-	private void skipResourceRecord(ByteBuffer buffer) throws Exception {
-		skipDomainName(buffer);
-		buffer.getShort(); // Type
-		buffer.getShort(); // Class
-		buffer.getInt(); // TTL
-		int dataLength = buffer.getShort(); // Data length
-		buffer.position(buffer.position() + dataLength); // Skip over data
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
 	}
 
-	private String readDomainName(ByteBuffer buffer, byte[] data) {
-		StringBuilder result = new StringBuilder();
-		boolean jumped = false;
-		int initialPosition = buffer.position();
-
-		while (true) {
-			byte length = buffer.get();
-			if (length == 0) { // End of name
-				break;
+	private ExecutorService createQueryExecutor() {
+		switch (executionMode) {
+		case VIRTUAL_THREADS:
+			try {
+				// Looked up reflectively so the server still compiles and runs on older JDKs
+				ExecutorService executor = (ExecutorService) Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				Log.info("Queries run on virtual threads, at most {} at once", maxInFlightQueries);
+				return executor;
+			} catch (ReflectiveOperationException e) {
+				Log.info("Virtual threads not available (Java {}), queries run on a pool of {} threads",
+						Runtime.version().feature(), poolSize);
+				return Executors.newFixedThreadPool(poolSize);
 			}
-			if ((length & 0xC0) == 0xC0) { // Compression pointer
-				if (!jumped) {
-					buffer.position(buffer.get() + ((length & 0x3F) << 8));
-					jumped = true;
+		case BOUNDED_POOL:
+			Log.info("Queries run on a pool of {} threads", poolSize);
+			return Executors.newFixedThreadPool(poolSize);
+		default:
+			Log.info("Queries run on a new thread each, at most {} at once", maxInFlightQueries);
+			return null; // THREAD_PER_QUERY starts its own threads
+		}
+	}
+
+	private void runNioReactors(int port, ExecutorService executor) throws Exception {
+		List<DatagramChannel> channels = new ArrayList<>();
+		List<Thread> reactors = new ArrayList<>();
+		List<Exception> failures = new ArrayList<>();
+		try {
+			DatagramChannel shared = null;
+			for (int i = 0; i < nioReactors; i++) {
+				DatagramChannel channel;
+				if (shared != null) {
+					channel = shared;
 				} else {
-					buffer.position(buffer.get() + ((length & 0x3F) << 8));
+					channel = closedOnStop(DatagramChannel.open());
+					if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					} else {
+						// Without SO_REUSEPORT every loop selects on the one channel;
+						// receive() returns null in the loops that lose the race.
+						shared = channel;
+					}
+					channel.bind(new InetSocketAddress(port));
+					channel.configureBlocking(false);
+					channels.add(channel);
 				}
-				continue;
+				DatagramChannel reactorChannel = channel;
+				Thread reactor = new Thread(() -> {
+					try {
+						runReactor(reactorChannel, executor);
+					} catch (Exception e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+						// One dead loop takes the whole front end down with it
+						for (DatagramChannel c : channels) {
+							try {
+								c.close();
+							} catch (IOException ignored) {
+							}
+						}
+					}
+				}, "dns-reactor-" + i);
+				reactors.add(reactor);
+			}
+			for (Thread reactor : reactors) {
+				reactor.start();
+			}
+			for (Thread reactor : reactors) {
+				reactor.join();
 			}
-			if (result.length() > 0) {
-				result.append('.');
+		} finally {
+			for (DatagramChannel channel : channels) {
+				channel.close();
 			}
-			for (int i = 0; i < length; i++) {
-				result.append((char) buffer.get());
+		}
+		synchronized (failures) {
+			if (!failures.isEmpty()) {
+				throw failures.get(0);
 			}
 		}
+	}
 
-		if (jumped) {
-			buffer.position(initialPosition + 2); // Reset after reading compression pointer
+	private void runReactor(DatagramChannel channel, ExecutorService executor) throws IOException {
+		ReplyChannel reply = (data, length, address, clientPort) -> channel.send(ByteBuffer.wrap(data, 0, length),
+				new InetSocketAddress(address, clientPort));
+
+		try (Selector selector = closedOnStop(Selector.open())) {
+			channel.register(selector, SelectionKey.OP_READ);
+			while (channel.isOpen()) {
+				selector.select();
+				selector.selectedKeys().clear();
+
+				// Drain a batch per wakeup so one select() pays for several datagrams
+				for (int i = 0; i < MAX_DATAGRAMS_PER_WAKEUP; i++) {
+					ByteBuffer receiveData = ByteBuffer.allocate(receiveBufferSize());
+					SocketAddress client = channel.receive(receiveData);
+					if (client == null) {
+						break; // Nothing left to read
+					}
+					DatagramPacket receivePacket = new DatagramPacket(receiveData.array(), receiveData.position(),
+							client);
+					dispatchQuery(executor, receivePacket, reply);
+				}
+			}
 		}
+	}
 
-		return result.toString();
+	private void dispatchQuery(ExecutorService executor, DatagramPacket packet, ReplyChannel reply) {
+		// Admission control: shed load straight away rather than letting work pile up
+		// behind slow upstreams. The pool queue can never exceed the in-flight cap.
+		long received = System.nanoTime();
+		metrics.queries.increment();
+		if (!inFlightQueries.tryAcquire()) {
+			metrics.refused.increment();
+			sendErrorResponse(packet, reply, 5); // Refused
+			reply.done();
+			return;
+		}
+
+		// The permit is held until the reply is sent, which for a cache miss is
+		// after the task itself has returned
+		Runnable task = () -> {
+			try {
+				processQuery(packet, reply).whenComplete((done, failure) -> {
+					inFlightQueries.release();
+					metrics.queryLatency.record((System.nanoTime() - received) / 1000);
+					reply.done();
+				});
+			} catch (RuntimeException e) {
+				inFlightQueries.release();
+				reply.done();
+				throw e;
+			}
+		};
+
+		try {
+			if (executor == null) {
+				new Thread(task).start();
+			} else {
+				executor.execute(task);
+			}
+		} catch (RejectedExecutionException e) {
+			inFlightQueries.release();
+			sendErrorResponse(packet, reply, 2); // Server failure
+			reply.done();
+		}
 	}
 
-	// private int parseResponseCode(byte[] response) {
-	// // Extract response code from the DNS response header
-	// // The RCODE is the lower 4 bits of the 6th byte
-	// return response[3] & 0x0F; // Corrected from the previous example to properly
-	// access RCODE
-	// }
 
-	protected DNSResponse parseResponse(byte[] response) throws Exception {
-		ByteBuffer buffer = ByteBuffer.wrap(response);
+/**
+ * Answer one query. Cache hits are answered before returning; a miss starts an
+ * upstream resolution and is answered from whichever thread completes it.
+ *
+ * @return Completes once the reply has been sent, or the query dropped.
+ */
+private CompletableFuture<Void> processQuery(DatagramPacket packet, ReplyChannel reply) {
+    if (packet == null) {
+        Log.error("Received null packet");
+        return CompletableFuture.completedFuture(null);
+    }
+
+    byte[] data = packet.getData();
+    if (data == null) {
+        Log.error("Packet data is null");
+        return CompletableFuture.completedFuture(null);
+    }
+
+    CodecPool.Codec codec = codecs.acquire();
+    try {
+        // Check if the data length is reasonable for a DNS packet
+        if (packet.getLength() < DnsMessage.HEADER_LENGTH) {
+            Log.error("Data length is too short for DNS packet");
+            sendErrorResponse(packet, reply, 2); // Format error
+            return CompletableFuture.completedFuture(null);
+        }
 
-		int transactionID = buffer.getShort() & 0xFFFF;
-		int flags = buffer.getShort() & 0xFFFF;
-		int rcode = flags & 0x0F; // Last 4 bits of the flags indicate RCODE
-		int questionCount = buffer.getShort() & 0xFFFF;
-		int answerCount = buffer.getShort() & 0xFFFF;
-		int authorityCount = buffer.getShort() & 0xFFFF;
-		int additionalCount = buffer.getShort() & 0xFFFF;
+        DnsMessage request = codec.request.wrap(data, packet.getLength());
+        if (!isValidQuery(request)) {
+            Log.error("Invalid query received");
+            sendErrorResponse(packet, reply, 2); // Format error
+            return CompletableFuture.completedFuture(null);
+        }
 
-		DNSResponse dnsResponse = new DNSResponse(transactionID, rcode, questionCount, answerCount, authorityCount,
-				additionalCount);
+        // Validated above. The key views the question where it lies in the packet,
+        // so a hit neither decodes the name nor copies it.
+        int questionEnd = request.questionEnd();
+        ResponseCache.Key lookupKey = new ResponseCache.Key(NameKey.of(request, DnsMessage.HEADER_LENGTH),
+                request.questionType(), request.questionClass());
+
+        byte[] outbound = outboundBuffers.acquire();
+        try {
+            // Names in our own zones are answered from them, never cached or resolved
+            ZoneIndex zoneIndex = zones;
+            if (zoneIndex != null) {
+                int length = zoneIndex.copyTo(request, outbound, codec.writer);
+                if (length >= 0) {
+                    if (Log.isTracing()) {
+                        String name = lookupKey.name.toString();
+                        Log.trace(name, "Query {} type {}: authoritative", name, lookupKey.type);
+                    }
+                    metrics.authoritativeAnswers.increment();
+                    sendAnswer(packet, reply, outbound, length, questionEnd, codec);
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
 
-		// Parsing each section with appropriate methods
-		parseQuestions(buffer, questionCount);
-		parseResourceRecords(buffer, answerCount, dnsResponse.answers);
-		parseResourceRecords(buffer, authorityCount, dnsResponse.authorities);
-		parseResourceRecords(buffer, additionalCount, dnsResponse.additionals);
+            // Fast path: copy the cached template straight into the outbound buffer
+            int length = dnsCache.copyTo(lookupKey, outbound);
+            if (Log.isTracing()) {
+                String name = lookupKey.name.toString();
+                Log.trace(name, "Query {} type {}: {}", name, lookupKey.type, length >= 0 ? "cache hit" : "cache miss");
+            }
+            if (length >= 0) {
+                metrics.cacheHits.increment();
+                sendAnswer(packet, reply, outbound, length, questionEnd, codec);
+                return CompletableFuture.completedFuture(null);
+            }
+            metrics.cacheMisses.increment();
+        } finally {
+            outboundBuffers.release(outbound);
+        }
 
-		return dnsResponse;
-	}
+        // A miss outlives the packet's buffer, so it needs its own copy of the name
+        ResponseCache.Key cacheKey = lookupKey.copy();
+        String query = request.readName(DnsMessage.HEADER_LENGTH);
+        return resolveWithDeadline(query, cacheKey).handle((response, failure) -> {
+            sendResolved(packet, reply, query, cacheKey, questionEnd, failure == null ? response : null);
+            return null;
+        });
+    } catch (Exception e) {
+        Log.error("Error processing query: {}", e.getMessage(), e);
+        sendErrorResponse(packet, reply, 2); // Server failure
+        return CompletableFuture.completedFuture(null);
+    } finally {
+        codecs.release(codec);
+    }
+}
+
+// Reply to a query that missed the cache once its resolution has finished
+private void sendResolved(DatagramPacket packet, ReplyChannel reply, String query, ResponseCache.Key cacheKey,
+        int questionEnd, byte[] response) {
+    byte[] outbound = outboundBuffers.acquire();
+    CodecPool.Codec codec = codecs.acquire();
+    try {
+        int length;
+        if (response != null) {
+            length = Math.min(response.length, outbound.length);
+            System.arraycopy(response, 0, outbound, 0, length);
+        } else {
+            // Upstream failed or is too slow: an expired answer beats no answer
+            length = dnsCache.copyStaleTo(cacheKey, outbound);
+            if (length < 0) {
+                Log.error("Failed to get response for query: {}", query);
+                sendErrorResponse(packet, reply, 2); // Server failure
+                return;
+            }
+            metrics.staleAnswers.increment();
+        }
+        sendAnswer(packet, reply, outbound, length, questionEnd, codec);
+    } catch (Exception e) {
+        Log.error("Error processing query: {}", e);
+        sendErrorResponse(packet, reply, 2); // Server failure
+    } finally {
+        codecs.release(codec);
+        outboundBuffers.release(outbound);
+    }
+}
+
+private void sendAnswer(DatagramPacket packet, ReplyChannel reply, byte[] outbound, int length, int questionEnd,
+        CodecPool.Codec codec) throws IOException {
+    byte[] requestData = packet.getData();
+    // The stored ID and RD bit belong to whoever asked upstream, answer with the client's
+    outbound[0] = requestData[0];
+    outbound[1] = requestData[1];
+    outbound[2] = (byte) ((outbound[2] & ~0x01) | (requestData[2] & 0x01));
+    // Echo the client's question as asked: its name case, and its type when the
+    // answer is an NXDOMAIN cached for another type. Same name, so same length.
+    if (length >= questionEnd) {
+        System.arraycopy(requestData, 12, outbound, 12, questionEnd - 12);
+    }
+    // EDNS clients get an OPT record back and may take more than 512 bytes over UDP
+    int clientPayload = ednsPayloadSize > 0
+            ? Edns.payloadSize(codec.request.wrap(requestData, packet.getLength())) : -1;
+    int optLength = clientPayload < 0 ? 0 : Edns.OPT_LENGTH;
+    int limit = reply.isStream() ? MAX_MESSAGE_SIZE
+            : clientPayload < 0 ? Edns.MIN_PAYLOAD_SIZE : Math.min(clientPayload, ednsPayloadSize);
+    if (length + optLength > limit && length >= questionEnd) {
+        // Upstream servers do not always compress fully, re-encoding may make it fit
+        length = compress(outbound, length, limit - optLength, codec);
+    }
+    if (length + optLength > limit && length >= questionEnd) {
+        // Too big: send just the header and question with TC set so the client
+        // asks again over TCP, rather than a message cut off mid-record
+        outbound[2] |= 0x02;
+        metrics.truncated.increment();
+        Arrays.fill(outbound, 6, 12, (byte) 0);
+        length = questionEnd;
+    }
+    if (clientPayload >= 0) {
+        length = Edns.addOpt(outbound, length, ednsPayloadSize);
+    }
+    metrics.recordResponse(outbound[3]);
+    reply.send(outbound, length, packet.getAddress(), packet.getPort());
+}
+
+
+/**
+ * Resolve a cache miss. If there is stale data to fall back on, the returned
+ * future gives up with null after the serve-stale deadline; the resolution
+ * carries on regardless and still refreshes the cache.
+ *
+ * @return Completes with the response, or null if resolution failed or missed
+ *         the deadline.
+ */
+private CompletableFuture<byte[]> resolveWithDeadline(String query, ResponseCache.Key cacheKey) {
+    CompletableFuture<byte[]> resolution = resolveCoalesced(query, cacheKey);
+    if (staleDeadlineMillis <= 0 || resolution.isDone() || !dnsCache.hasStale(cacheKey)) {
+        return resolution;
+    }
+
+    CompletableFuture<byte[]> deadline = new CompletableFuture<>();
+    // Completing the deadline sends the stale reply, which is too much work for the
+    // wheel thread: it only hands the completion over
+    TimerWheel.Timeout timeout = TimerWheel.shared().schedule(() -> {
+        try {
+            resolutionExecutor.execute(() -> {
+                if (deadline.complete(null)) {
+                    Log.error("Resolution of {} is slow, serving stale data", query);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the resolution still completes the deadline
+        }
+    }, staleDeadlineMillis);
+    resolution.whenComplete((response, failure) -> {
+        timeout.cancel();
+        deadline.complete(failure == null ? response : null);
+    });
+    return deadline;
+}
+
+// Refresh-ahead callback from the cache, must not block the query being served
+private void refreshInBackground(ResponseCache.Key cacheKey) {
+    try {
+        resolutionExecutor.execute(() -> resolveCoalesced(cacheKey.name.toString(), cacheKey));
+    } catch (RejectedExecutionException e) {
+        // Shutting down, the entry will simply expire
+    }
+}
+
+/**
+ * Resolve a cache miss, sharing the work with any identical miss already in
+ * progress. The first miss for a key walks the hierarchy; later ones get its
+ * future, so an expiring popular name costs one upstream resolution.
+ *
+ * @return Completes with the response, or null if resolution failed.
+ */
+private CompletableFuture<byte[]> resolveCoalesced(String query, ResponseCache.Key cacheKey) {
+    CompletableFuture<byte[]> pending = new CompletableFuture<>();
+    CompletableFuture<byte[]> existing = pendingResolutions.putIfAbsent(cacheKey, pending);
+    if (existing != null) {
+        return existing;
+    }
 
-	private void parseQuestions(ByteBuffer buffer, int count) throws Exception {
-		for (int i = 0; i < count; i++) {
-			skipDomainName(buffer); // Domain name
-			buffer.getShort(); // Type
-			buffer.getShort(); // Class
+    CompletableFuture<byte[]> resolution;
+    try {
+        resolution = resolve(query, cacheKey.type, 0);
+    } catch (RuntimeException e) {
+        // Later misses for the key must not wait on a resolution that never started
+        pendingResolutions.remove(cacheKey, pending);
+        pending.completeExceptionally(e);
+        return pending;
+    }
+    resolution.whenComplete((response, failure) -> {
+        if (response != null) {
+            dnsCache.put(cacheKey, response); // Cached before the key is released, so no miss slips through
+        }
+        pendingResolutions.remove(cacheKey, pending);
+        if (failure != null) {
+            pending.completeExceptionally(failure);
+        } else {
+            pending.complete(response);
+        }
+    });
+    return pending;
+}
+
+// Re-encode an answer with full name compression, in place if the result fits in limit
+private int compress(byte[] outbound, int length, int limit, CodecPool.Codec codec) {
+    byte[] compressed = outboundBuffers.acquire();
+    try {
+        int compressedLength = codec.writer.start(compressed, limit).copy(codec.response.wrap(outbound, length));
+        if (compressedLength < 0) {
+            return length;
+        }
+        System.arraycopy(compressed, 0, outbound, 0, compressedLength);
+        return compressedLength;
+    } finally {
+        outboundBuffers.release(compressed);
+    }
+}
+
+private void sendErrorResponse(DatagramPacket requestPacket, ReplyChannel reply, int rcode) {
+    byte[] outbound = outboundBuffers.acquire();
+    CodecPool.Codec codec = codecs.acquire();
+    try {
+        byte[] data = requestPacket.getData();
+        int requestLength = requestPacket.getLength();
+        int transactionID = requestLength >= 2 ? DnsMessage.getShort(data, 0) : 0;
+        int recursionDesired = requestLength >= 3 ? data[2] & 0x01 : 0;
+        DnsWriter writer = codec.writer.start(outbound, Edns.MIN_PAYLOAD_SIZE);
+        writer.header(transactionID, 0x8000 | (recursionDesired << 8) | (rcode & 0xF)); // Response flag and RCODE
+
+        // Echo the question when there is a readable one, so the client can match the reply
+        DnsMessage request = codec.request.wrap(data, requestLength);
+        if (request.questionEnd() > 0 && request.labelCount(DnsMessage.HEADER_LENGTH) >= 0) {
+            writer.question(request, DnsMessage.HEADER_LENGTH, request.questionType(), request.questionClass());
+        }
+        int length = writer.finish();
+        if (length < 0) {
+            length = writer.start(outbound, Edns.MIN_PAYLOAD_SIZE)
+                    .header(transactionID, 0x8000 | (rcode & 0xF)).finish();
+        }
+
+        metrics.recordResponse(rcode);
+        reply.send(outbound, length, requestPacket.getAddress(), requestPacket.getPort());
+    } catch (Exception e) {
+        Log.error("Failed to send error response: {}", e);
+    } finally {
+        codecs.release(codec);
+        outboundBuffers.release(outbound);
+    }
+}
+
+
+
+	/**
+	 * Resolve a query iteratively, without blocking the calling thread.
+	 * 
+	 * @param depth How many name server lookups deep this resolution is nested,
+	 *              so glueless delegations that point at each other cannot
+	 *              recurse forever.
+	 * @return Completes with the final response, or null if resolution failed.
+	 */
+	private CompletableFuture<byte[]> resolve(String query, int qType, int depth) {
+		if (rootServerIP == null) {
+			return CompletableFuture.completedFuture(null); // setNameServer was never called
 		}
+		Resolution resolution = new Resolution(query, qType, depth);
+		resolution.start();
+		return resolution.result;
 	}
 
-	private void parseResourceRecords(ByteBuffer buffer, int count, List<ResourceRecord> records) {
-		for (int i = 0; i < count; i++) {
-			records.add(parseResourceRecord(buffer));
+	/**
+	 * One iterative resolution in progress. Each step sends a query to one name
+	 * server and returns; the response, or the timer wheel when none comes in
+	 * time, schedules the next step on the resolution executor. No thread waits
+	 * while a query is outstanding.
+	 */
+	private final class Resolution {
+		final String query;
+		final String name;
+		final int qType;
+		final int depth;
+		final CompletableFuture<byte[]> result = new CompletableFuture<>();
+		byte[] queryPacket;
+		List<InetAddress> dnsServers = List.of(rootServerIP); // Start with the root server
+		String zone = ""; // Zone the current server is authoritative for
+		Set<InetAddress> tried = new HashSet<>(); // Servers of the current zone already asked
+		boolean edns = ednsPayloadSize > 0; // Dropped for good if a server rejects the OPT record
+		int upstreamQueries;
+
+		Resolution(String query, int qType, int depth) {
+			this.query = query;
+			this.name = query.toLowerCase(Locale.ROOT);
+			this.qType = qType;
+			this.depth = depth;
+			metrics.resolutions.increment();
+			result.whenComplete((response, failure) -> {
+				metrics.upstreamQueriesPerResolution.record(upstreamQueries);
+				if (Log.isTracing(name)) {
+					Log.trace(name, "Resolution of {} {} after {} upstream queries", query,
+							response != null ? "finished" : "failed", upstreamQueries);
+				}
+			});
 		}
-	}
 
-	private ResourceRecord parseResourceRecord(ByteBuffer buffer) {
-		String name = readDomainName(buffer, buffer.array()); // Assume implementation from previous
-		int type = buffer.getShort();
-		int cls = buffer.getShort();
-		long ttl = buffer.getInt() & 0xFFFFFFFFL; // Convert to unsigned long
-		int dataLength = buffer.getShort();
-		byte[] data = new byte[dataLength];
-		buffer.get(data);
+		void start() {
+			try {
+				if (depth > MAX_NS_LOOKUP_DEPTH) {
+					throw new Exception("Too many nested name server lookups resolving " + query);
+				}
+				// Skip straight to the deepest zone cut we already know about: one learnt
+				// from a referral, or one our own zones delegate the name to
+				DelegationCache.Delegation known = delegationCache.closest(name);
+				ZoneIndex zoneIndex = zones;
+				DelegationCache.Delegation local = zoneIndex == null ? null : zoneIndex.delegation(name);
+				if (local != null && (known == null || !DelegationCache.isWithin(known.zone, local.zone))) {
+					known = local;
+				}
+				if (known != null) {
+					dnsServers = known.addresses;
+					zone = known.zone;
+				}
+				queryPacket = buildQueryPacket(query, qType); // Build the DNS query packet
+				if (edns) {
+					queryPacket = Edns.withOpt(queryPacket, ednsPayloadSize);
+				}
+				queryNextServer();
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
 
-		return new ResourceRecord(name, type, cls, ttl, data);
-	}
+		/**
+		 * Send the query to the fastest expected server of the zone not asked yet.
+		 * A server that times out or errors is penalised and this runs again.
+		 */
+		void queryNextServer() {
+			InetAddress dnsServer = serverSelector.select(dnsServers, tried);
+			if (dnsServer == null) {
+				fail(new Exception("No name server for '" + zone + "' answered"));
+				return;
+			}
+			tried.add(dnsServer);
+
+			long start = System.nanoTime();
+			CompletableFuture<byte[]> response;
+			try {
+				response = UpstreamTransport.shared().send(queryPacket, queryPacket.length,
+						new InetSocketAddress(dnsServer, rootServerPort), serverSelector.timeoutFor(dnsServer));
+			} catch (IOException e) {
+				serverSelector.recordTimeout(dnsServer);
+				Log.error("No answer from {}: {}", dnsServer.getHostAddress(), e);
+				queryNextServer();
+				return;
+			}
 
-	// Assuming a class structure for handling DNS responses
-	class DNSResponse {
-		int transactionID;
-		int rcode;
-		int questionCount;
-		int answerCount;
-		int authorityCount;
-		int additionalCount;
-		List<ResourceRecord> answers = new ArrayList<>();
-		List<ResourceRecord> authorities = new ArrayList<>();
-		List<ResourceRecord> additionals = new ArrayList<>();
+			upstreamQueries++;
+			metrics.upstreamQueries.increment();
+			if (Log.isTracing(name)) {
+				Log.trace(name, "{}: asking {} for zone '{}'", query, dnsServer.getHostAddress(), zone);
+			}
+			response.whenCompleteAsync((buffer, failure) -> onReply(dnsServer, start, buffer, failure, false),
+					resolutionExecutor);
+		}
+
+		void onReply(InetAddress dnsServer, long start, byte[] buffer, Throwable failure, boolean overTcp) {
+			if (failure != null) {
+				if (failure instanceof SocketTimeoutException || failure.getCause() instanceof SocketTimeoutException) {
+					metrics.upstreamTimeouts.increment();
+				}
+				serverSelector.recordTimeout(dnsServer);
+				Log.error("No answer from {}: {}", dnsServer.getHostAddress(), failure);
+				queryNextServer();
+				return;
+			}
+			if (!overTcp) {
+				long rttNanos = System.nanoTime() - start;
+				serverSelector.recordResponse(dnsServer, rttNanos / 1000000);
+				metrics.upstreamRtt.record(rttNanos / 1000);
+			}
+			int rcode = Edns.rcode(buffer, buffer.length);
+			if (Log.isTracing(name)) {
+				Log.trace(name, "{}: RCODE {} from {}", query, rcode, dnsServer.getHostAddress()
+						+ (overTcp ? " over TCP" : " in " + (System.nanoTime() - start) / 1000 + " us"));
+			}
+			if (edns && (rcode == Edns.RCODE_FORMERR || rcode == Edns.RCODE_BADVERS)) {
+				// A server that does not understand EDNS: ask it again without (RFC 6891 7)
+				Log.error("{} rejected EDNS, retrying without it", dnsServer.getHostAddress());
+				edns = false;
+				queryPacket = buildQueryPacket(query, qType);
+				tried.remove(dnsServer);
+				queryNextServer();
+				return;
+			}
+			buffer = Edns.withoutOpt(buffer); // Cached and relayed as is, so the server's OPT must go
+			if (rcode == 2 || rcode == 5) { // Server failure or refused, another server may do better
+				serverSelector.recordTimeout(dnsServer);
+				Log.error("{} answered with RCODE {}", dnsServer.getHostAddress(), rcode);
+				queryNextServer();
+				return;
+			}
+			if ((buffer[2] & 0x02) != 0 && !overTcp) {
+				// Truncated: ask the same server again over TCP for the whole answer
+				upstreamQueries++;
+				metrics.tcpRetries.increment();
+				metrics.upstreamQueries.increment();
+				try {
+					UpstreamTransport.shared()
+							.sendTcp(queryPacket, queryPacket.length, new InetSocketAddress(dnsServer, rootServerPort),
+									serverSelector.timeoutFor(dnsServer))
+							.whenCompleteAsync((full, tcpFailure) -> onReply(dnsServer, start, full, tcpFailure, true),
+									resolutionExecutor);
+				} catch (IOException e) {
+					onReply(dnsServer, start, null, e, true);
+				}
+				return;
+			}
+			onResponse(buffer);
+		}
 
-		public DNSResponse(int transactionID, int rcode, int questionCount, int answerCount, int authorityCount,
-				int additionalCount) {
-			this.transactionID = transactionID;
-			this.rcode = rcode;
-			this.questionCount = questionCount;
-			this.answerCount = answerCount;
-			this.authorityCount = authorityCount;
-			this.additionalCount = additionalCount;
+		void onResponse(byte[] buffer) {
+			CodecPool.Codec codec = codecs.acquire();
+			try {
+				DnsMessage message = codec.response.wrap(buffer, buffer.length);
+				if (!message.rewind()) {
+					throw new Exception("Malformed response from a server for '" + zone + "'");
+				}
+				if (message.rcode() == 0 && message.answerCount() > 0) { // No error and there are answers
+					result.complete(buffer);
+				} else if (message.rcode() == 3) { // Name Error means no such name exists
+					result.complete(buffer); // Returning response to indicate name error
+				} else if (message.rcode() == 0 && message.hasRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_SOA)) {
+					result.complete(buffer); // NODATA: the name exists but has no records of this type
+				} else {
+					DelegationCache.Delegation referral = getNextServer(buffer, zone);
+					if (referral == null) {
+						throw new Exception("No further DNS servers available for querying.");
+					}
+					// Only follow referrals further down towards the name, anything else
+					// is lame or an attempt to plant a delegation for someone else's zone
+					if (referral.zone.equals(zone) || !DelegationCache.isWithin(referral.zone, zone)
+							|| !DelegationCache.isWithin(name, referral.zone)) {
+						throw new Exception("Ignoring referral to " + referral.zone + " from " + zone);
+					}
+					if (referral.addresses.isEmpty()) {
+						resolveGlueless(referral, 0);
+					} else {
+						follow(referral);
+					}
+				}
+			} catch (Exception e) {
+				fail(e);
+			} finally {
+				codecs.release(codec);
+			}
 		}
 
-		void addAnswer(ResourceRecord record) {
-			answers.add(record);
+		// No glue: resolve the name server names ourselves, first one that works
+		void resolveGlueless(DelegationCache.Delegation referral, int index) {
+			if (index == referral.nameServers.size()) {
+				fail(new Exception("No address for any name server of " + referral.zone));
+				return;
+			}
+			String nsName = referral.nameServers.get(index);
+			resolveNameServerAddress(nsName, depth + 1).whenComplete((address, failure) -> {
+				if (failure != null) {
+					Log.error("Could not resolve name server {}: {}", nsName, failure);
+					resolveGlueless(referral, index + 1);
+				} else {
+					follow(new DelegationCache.Delegation(referral.zone, referral.nameServers, List.of(address),
+							referral.expiresAt));
+				}
+			});
 		}
 
-		void addAuthority(ResourceRecord record) {
-			authorities.add(record);
+		void follow(DelegationCache.Delegation referral) {
+			if (Log.isTracing(name)) {
+				Log.trace(name, "{}: referred to '{}' at {}", query, referral.zone, referral.addresses);
+			}
+			delegationCache.put(referral);
+			dnsServers = referral.addresses; // Update the servers for the next query
+			zone = referral.zone;
+			tried = new HashSet<>();
+			queryNextServer();
 		}
 
-		void addAdditional(ResourceRecord record) {
-			additionals.add(record);
+		void fail(Exception e) {
+			metrics.resolutionFailures.increment();
+			Log.error("Error during DNS resolution: {}", e);
+			result.complete(null);
 		}
 	}
 
-	// Resource record structure
-	class ResourceRecord {
-		String name;
-		int type;
-		int cls;
-		long ttl;
-		byte[] data;
-
-		public ResourceRecord(String name, int type, int cls, long ttl, byte[] data) {
-			this.name = name;
-			this.type = type;
-			this.cls = cls;
-			this.ttl = ttl;
-			this.data = data;
+	/**
+	 * Read the delegation out of a referral: the zone, every NS name, the
+	 * smallest NS TTL and the name server addresses. Addresses come only from glue
+	 * in the additional section, so they are empty for a glueless referral.
+	 * 
+	 * @param askedZone The zone of the server that sent the referral. Glue for
+	 *                  names outside it is ignored.
+	 * @return The delegation, or null if the response holds no NS records.
+	 */
+	DelegationCache.Delegation getNextServer(byte[] response, String askedZone) throws Exception {
+		CodecPool.Codec codec = codecs.acquire();
+		try {
+			return getNextServer(codec.response.wrap(response, response.length), askedZone);
+		} finally {
+			codecs.release(codec);
 		}
 	}
 
-	private byte[] buildQueryPacket(String domain) {
-		ByteBuffer buffer = ByteBuffer.allocate(512);
-		int transactionID = random.nextInt(65536);
-		buffer.putShort((short) transactionID);
-		buffer.putShort((short) 0x0100); // Standard query with recursion desired
-		buffer.putShort((short) 1); // One question
-		buffer.putShort((short) 0); // No answers in query
-		buffer.putShort((short) 0); // No authority records in query
-		buffer.putShort((short) 0); // No additional records in query
+	private DelegationCache.Delegation getNextServer(DnsMessage message, String askedZone) throws Exception {
+		// Parse the authority section: every NS record of the first zone named there
+		String zone = null;
+		List<String> nameServers = new ArrayList<>();
+		long ttl = ResponseCache.MAX_TTL;
+		message.rewind();
+		while (message.nextRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_NS)) {
+			if (zone != null && !message.nameEquals(message.nameOffset(), zone)) {
+				continue;
+			}
+			String nameServer = message.readName(message.rdataOffset());
+			if (zone == null) {
+				zone = message.readName(message.nameOffset());
+			}
+			if (zone == null || nameServer == null) {
+				throw new Exception("Malformed NS record in referral");
+			}
+			zone = zone.toLowerCase(Locale.ROOT);
+			nameServers.add(nameServer.toLowerCase(Locale.ROOT));
+			ttl = Math.min(ttl, message.ttl());
+		}
 
-		String[] labels = domain.split("\\.");
-		for (String label : labels) {
-			buffer.put((byte) label.length());
-			for (char c : label.toCharArray()) {
-				buffer.put((byte) c);
+		if (zone == null) {
+			return null;
+		}
+
+		// Use glue A records for the name servers where the referral carries them
+		List<InetAddress> addresses = new ArrayList<>();
+		message.rewind();
+		while (message.nextRecord(DnsMessage.ADDITIONAL, DnsMessage.TYPE_A)) {
+			if (message.rdataLength() != 4) {
+				continue;
+			}
+			for (String nameServer : nameServers) {
+				if (message.nameEquals(message.nameOffset(), nameServer)
+						&& DelegationCache.isWithin(nameServer, askedZone)) {
+					addresses.add(message.address());
+					break;
+				}
 			}
 		}
-		buffer.put((byte) 0); // End of domain name
-		buffer.putShort((short) 1); // Type A
-		buffer.putShort((short) 1); // Class IN
 
-		return buffer.array();
+		return new DelegationCache.Delegation(zone, nameServers, addresses, System.currentTimeMillis() + ttl * 1000);
 	}
 
-	private boolean isValidQuery(byte[] requestData) {
-		if (requestData.length < 12) {
+	byte[] buildQueryPacket(String domain, int qType) {
+		byte[] packet = new byte[Edns.MIN_PAYLOAD_SIZE];
+		CodecPool.Codec codec = codecs.acquire();
+		try {
+			int length = codec.writer.start(packet, packet.length)
+					.header(random.nextInt(65536), 0x0100) // Standard query with recursion desired
+					.question(domain, qType, 1) // Type asked for by the client, class IN
+					.finish();
+			return Arrays.copyOf(packet, length);
+		} finally {
+			codecs.release(codec);
+		}
+	}
+
+	boolean isValidQuery(DnsMessage request) {
+		if (request.length() < DnsMessage.HEADER_LENGTH) {
 			// DNS header is at least 12 bytes
 			return false;
 		}
-	
-		ByteBuffer buffer = ByteBuffer.wrap(requestData);
-		short id = buffer.getShort(); // Transaction ID
-		short flags = buffer.getShort(); // Flags
-		short qdCount = buffer.getShort(); // Number of questions
-		short anCount = buffer.getShort(); // Number of answer RRs
-		short nsCount = buffer.getShort(); // Number of authority RRs
-		short arCount = buffer.getShort(); // Number of additional RRs
-	
-		// Basic header validation
-		if (qdCount <= 0 || anCount < 0 || nsCount < 0 || arCount < 0) {
+
+		// Basic header validation: counts past 32767 are never legitimate in a query
+		int questionCount = request.questionCount();
+		if (questionCount == 0 || questionCount > 0x7FFF || request.answerCount() > 0x7FFF
+				|| request.authorityCount() > 0x7FFF || request.additionalCount() > 0x7FFF) {
 			return false;
 		}
-	
+
 		// Validate the question section
-		int currentPosition = 12; // Start of the question section
-		for (int i = 0; i < qdCount; i++) {
-			buffer.position(currentPosition);
-			String query = extractQuery(buffer);
-			if (query == null || query.isEmpty()) {
-				return false;
+		int currentPosition = DnsMessage.HEADER_LENGTH; // Start of the question section
+		for (int i = 0; i < questionCount; i++) {
+			if (request.labelCount(currentPosition) <= 0) {
+				return false; // Malformed, or the root which nobody resolves through us
 			}
-	
-			// Validate the query type and class
-			currentPosition = buffer.position(); // Update current position after extracting the query
-	
-			if (currentPosition + 4 > requestData.length) {
+			currentPosition = request.skipName(currentPosition);
+			if (currentPosition < 0 || currentPosition + 4 > request.length()) {
 				return false; // Not enough data for QTYPE and QCLASS
 			}
-	
-			ByteBuffer queryBuffer = ByteBuffer.wrap(requestData, currentPosition, 4);
-			int qType = queryBuffer.getShort() & 0xFFFF; // Query Type
-			int qClass = queryBuffer.getShort() & 0xFFFF; // Query Class
-	
+
+			int qType = request.getShort(currentPosition); // Query Type
+			int qClass = request.getShort(currentPosition + 2); // Query Class
 			if (!isValidQueryType(qType) || qClass != 1) { // 1 is the class for Internet
 				return false;
 			}
-	
+
 			currentPosition += 4; // Move past the QTYPE and QCLASS
 		}
-	
+
 		return true;
 	}
 	
 	
 	private boolean isValidQueryType(int qType) {
-		// Valid types according to DNS standards (e.g., A, MX, NS)
-		return qType == 1 || qType == 2 || qType == 5 || qType == 15; // Example types
-	}
-	
-
-	private String extractQuery(ByteBuffer buffer) {
-		buffer.position(12); // Skip header
-		StringBuilder domainName = new StringBuilder();
-		byte length;
-		while ((length = buffer.get()) != 0) {
-			if (domainName.length() > 0) {
-				domainName.append('.');
-			}
-			for (int i = 0; i < length; i++) {
-				domainName.append((char) buffer.get());
-			}
-		}
-		return domainName.toString();
+		// Valid types according to DNS standards (e.g., A, MX, NS), plus the types
+		// whose answers commonly outgrow a datagram: TXT, AAAA and DNSKEY
+		return qType == 1 || qType == 2 || qType == 5 || qType == 15 || qType == 16 || qType == 28 || qType == 48;
 	}
 	
 
 	/**
-	 * Manually construct and send a DNS query to resolve an NS record's domain name
-	 * to an IP.
+	 * Resolve an NS record's domain name to an IP through our own iterative
+	 * engine, starting from the configured root.
 	 * 
 	 * @param nsName The NS domain name to resolve.
 	 * @return The IP address of the NS server.
 	 * @throws Exception If resolving fails.
 	 */
 	protected InetAddress resolveNSRecord(String nsName) throws Exception {
-		byte[] query = buildDNSQuery(nsName);
-		DatagramSocket socket = new DatagramSocket();
-		socket.setSoTimeout(5000); // Set a timeout for the response
-
-		// Send DNS query to a known DNS server (e.g., Google's 8.8.8.8)
-		InetAddress dnsServer = InetAddress.getByName("8.8.8.8");
-		DatagramPacket packet = new DatagramPacket(query, query.length, dnsServer, 53);
-		socket.send(packet);
-
-		// Receive the DNS response
-		byte[] buffer = new byte[512];
-		DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-		socket.receive(response);
-		socket.close();
-
-		// Parse the DNS response to extract the IP address
-		return parseDNSResponse(buffer);
-	}
-
-	/**
-	 * Build a DNS query for the given domain name.
-	 * 
-	 * @param domain The domain name to query.
-	 * @return The byte array representing the DNS query.
-	 */
-	private byte[] buildDNSQuery(String domain) {
-		ByteBuffer buffer = ByteBuffer.allocate(512);
-		buffer.putShort((short) 0x1234); // Transaction ID
-		buffer.putShort((short) 0x0100); // Flags: standard query
-		buffer.putShort((short) 1); // Questions count
-		buffer.putShort((short) 0); // Answer RRs count
-		buffer.putShort((short) 0); // Authority RRs count
-		buffer.putShort((short) 0); // Additional RRs count
-
-		// Query section
-		for (String part : domain.split("\\.")) {
-			buffer.put((byte) part.length());
-			buffer.put(part.getBytes());
+		try {
+			return resolveNameServerAddress(nsName, 0).get();
+		} catch (ExecutionException e) {
+			throw new Exception(e.getCause().getMessage(), e.getCause());
 		}
-		buffer.put((byte) 0); // End of domain name
-		buffer.putShort((short) 0x0001); // Type: A
-		buffer.putShort((short) 0x0001); // Class: IN
+	}
 
-		return buffer.array();
+	private CompletableFuture<InetAddress> resolveNameServerAddress(String nsName, int depth) {
+		return resolve(nsName, 1, depth).thenApply(response -> { // Type A
+			try {
+				if (response == null) {
+					throw new Exception("Failed to resolve " + nsName);
+				}
+				// Parse the DNS response to extract the IP address
+				return parseDNSResponse(response);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
 	}
 
 	/**
@@ -537,65 +1346,29 @@ private void sendErrorResponse(DatagramPacket requestPacket, DatagramSocket serv
 	 */
 
 	private InetAddress parseDNSResponse(byte[] response) throws Exception {
-		ByteBuffer buffer = ByteBuffer.wrap(response);
-
-		if (buffer.limit() < 12)
-			throw new Exception("Response too short to be valid DNS response");
-
-		// Skip DNS header section
-		buffer.position(12); // Move past the header
-
-		// Parse question section safely
-		int questionCount = (buffer.getShort(4) & 0xFFFF);
-		for (int i = 0; i < questionCount; i++) {
-			skipDomainName(buffer);
-			buffer.position(buffer.position() + 4); // Skip type and class, assuming they exist
+		CodecPool.Codec codec = codecs.acquire();
+		try {
+			return parseDNSResponse(codec.response.wrap(response, response.length));
+		} finally {
+			codecs.release(codec);
 		}
+	}
 
-		// Answer section
-		int answerCount = (buffer.getShort(6) & 0xFFFF);
-		if (answerCount == 0)
+	private InetAddress parseDNSResponse(DnsMessage message) throws Exception {
+		if (message.length() < DnsMessage.HEADER_LENGTH)
+			throw new Exception("Response too short to be valid DNS response");
+		if (message.answerCount() == 0)
 			throw new Exception("No answers in DNS response");
+		if (!message.rewind())
+			throw new Exception("Malformed question section in response");
 
-		for (int i = 0; i < answerCount; i++) {
-			skipDomainName(buffer);
-			if (buffer.remaining() < 10)
-				throw new Exception("Incomplete record in response");
-
-			int type = buffer.getShort();
-			buffer.getShort(); // Class
-			buffer.getInt(); // TTL
-			int dataLength = buffer.getShort();
-			if (type == 1 && dataLength == 4) { // Type A, IPv4
-				if (buffer.remaining() < dataLength)
-					throw new Exception("Declared length exceeds buffer limit");
-				byte[] ipBytes = new byte[4];
-				buffer.get(ipBytes);
-				return InetAddress.getByAddress(ipBytes);
-			} else {
-				if (buffer.remaining() < dataLength)
-					throw new Exception("Declared length exceeds buffer limit");
-				buffer.position(buffer.position() + dataLength); // Skip other record types
+		while (message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A)) {
+			if (message.rdataLength() == 4) { // IPv4
+				return message.address();
 			}
 		}
 
 		throw new Exception("No valid A record found");
 	}
 
-	private void skipDomainName(ByteBuffer buffer) throws Exception {
-		while (buffer.remaining() > 0) {
-			byte length = buffer.get();
-			if (length == 0)
-				return; // End of domain name
-			if ((length & 0xC0) == 0xC0) { // Compression pointer
-				buffer.get(); // Skip the compressed offset byte
-				return;
-			}
-			if (buffer.remaining() < length)
-				throw new Exception("Invalid domain name length");
-			buffer.position(buffer.position() + length);
-		}
-		throw new Exception("Domain name parsing exceeded buffer limit");
-	}
-
 }
@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * What a NameServer has been doing, cheap enough to leave on. Counters are
+ * striped LongAdders and latencies go into lock-free histograms, so recording
+ * from many query threads at once never takes a lock. The numbers can be read
+ * over JMX or as plain text from a small HTTP endpoint.
+ */
+class NameServerMetrics implements NameServerMetricsMXBean {
+	private static final String[] RCODE_NAMES = { "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED" };
+
+	final LongAdder queries = new LongAdder();
+	final LongAdder refused = new LongAdder(); // Over the in-flight cap
+	final LongAdder authoritativeAnswers = new LongAdder();
+	final LongAdder cacheHits = new LongAdder();
+	final LongAdder cacheMisses = new LongAdder();
+	final LongAdder staleAnswers = new LongAdder();
+	final LongAdder resolutions = new LongAdder();
+	final LongAdder resolutionFailures = new LongAdder();
+	final LongAdder upstreamQueries = new LongAdder();
+	final LongAdder upstreamTimeouts = new LongAdder();
+	final LongAdder tcpRetries = new LongAdder();
+	final LongAdder truncated = new LongAdder();
+	private final LongAdder[] rcodes = new LongAdder[16];
+
+	final LatencyHistogram queryLatency = new LatencyHistogram(); // Microseconds, receipt to reply
+	final LatencyHistogram upstreamRtt = new LatencyHistogram(); // Microseconds, per UDP exchange
+	final LatencyHistogram upstreamQueriesPerResolution = new LatencyHistogram();
+
+	private HttpServer httpServer;
+	volatile Callable<?> zoneReloader; // Set once zones are loaded
+
+	NameServerMetrics() {
+		for (int i = 0; i < rcodes.length; i++) {
+			rcodes[i] = new LongAdder();
+		}
+	}
+
+	void recordResponse(int rcode) {
+		rcodes[rcode & 0x0F].increment();
+	}
+
+	/**
+	 * Register with the platform MBean server as DNSResolver:type=NameServer,port=N.
+	 */
+	void registerMBean(int port) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("DNSResolver:type=NameServer,port=" + port);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (Exception e) {
+			Log.error("Could not register metrics MBean: {}", e);
+		}
+	}
+
+	/**
+	 * Serve the metrics as text at http://127.0.0.1:port/metrics. Only loopback
+	 * is bound; anything further should go through JMX or a scraper on the host.
+	 */
+	void startHttpEndpoint(int port) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		httpServer.createContext("/metrics", exchange -> {
+			byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		httpServer.start(); // Runs on the server's own single dispatcher thread
+	}
+
+	void stopHttpEndpoint() {
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+	/**
+	 * @return Every metric, one per line, in the Prometheus text format.
+	 */
+	String toText() {
+		StringBuilder text = new StringBuilder(2048);
+		counter(text, "dns_queries_total", "Queries received", queries);
+		counter(text, "dns_queries_refused_total", "Queries refused over the in-flight cap", refused);
+		counter(text, "dns_authoritative_answers_total", "Queries answered from our own zones", authoritativeAnswers);
+		counter(text, "dns_cache_hits_total", "Queries answered from the cache", cacheHits);
+		counter(text, "dns_cache_misses_total", "Queries that missed the cache", cacheMisses);
+		counter(text, "dns_stale_answers_total", "Expired answers served because upstream failed", staleAnswers);
+		counter(text, "dns_resolutions_total", "Iterative resolutions started", resolutions);
+		counter(text, "dns_resolution_failures_total", "Iterative resolutions that failed", resolutionFailures);
+		counter(text, "dns_upstream_queries_total", "Queries sent to upstream servers", upstreamQueries);
+		counter(text, "dns_upstream_timeouts_total", "Upstream queries that got no answer", upstreamTimeouts);
+		counter(text, "dns_upstream_tcp_retries_total", "Truncated upstream answers retried over TCP", tcpRetries);
+		counter(text, "dns_truncated_answers_total", "Answers sent with TC set", truncated);
+
+		text.append("# HELP dns_responses_total Replies sent by RCODE\n# TYPE dns_responses_total counter\n");
+		for (int i = 0; i < rcodes.length; i++) {
+			long value = rcodes[i].sum();
+			if (value > 0 || i < RCODE_NAMES.length) {
+				String name = i < RCODE_NAMES.length ? RCODE_NAMES[i] : Integer.toString(i);
+				text.append("dns_responses_total{rcode=\"").append(name).append("\"} ").append(value).append('\n');
+			}
+		}
+
+		summary(text, "dns_query_latency_microseconds", "Time from receiving a query to replying", queryLatency);
+		summary(text, "dns_upstream_rtt_microseconds", "Round trip time of upstream UDP queries", upstreamRtt);
+		summary(text, "dns_upstream_queries_per_resolution", "Upstream queries sent per resolution",
+				upstreamQueriesPerResolution);
+		return text.toString();
+	}
+
+	private static void counter(StringBuilder text, String name, String help, LongAdder value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" counter\n");
+		text.append(name).append(' ').append(value.sum()).append('\n');
+	}
+
+	private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" summary\n");
+		for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+			text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.percentile(quantile)).append('\n');
+		}
+		text.append(name).append("_sum ").append(histogram.sum()).append('\n');
+		text.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	// MXBean view
+
+	@Override
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	@Override
+	public long getRefusedQueries() {
+		return refused.sum();
+	}
+
+	@Override
+	public long getAuthoritativeAnswers() {
+		return authoritativeAnswers.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	@Override
+	public long getStaleAnswers() {
+		return staleAnswers.sum();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		long hits = cacheHits.sum();
+		long total = hits + cacheMisses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getResolutions() {
+		return resolutions.sum();
+	}
+
+	@Override
+	public long getResolutionFailures() {
+		return resolutionFailures.sum();
+	}
+
+	@Override
+	public long getUpstreamQueries() {
+		return upstreamQueries.sum();
+	}
+
+	@Override
+	public long getUpstreamTimeouts() {
+		return upstreamTimeouts.sum();
+	}
+
+	@Override
+	public long getTcpRetries() {
+		return tcpRetries.sum();
+	}
+
+	@Override
+	public long getTruncatedAnswers() {
+		return truncated.sum();
+	}
+
+	@Override
+	public long[] getResponsesByRcode() {
+		long[] counts = new long[rcodes.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = rcodes[i].sum();
+		}
+		return counts;
+	}
+
+	@Override
+	public double getMeanUpstreamQueriesPerResolution() {
+		return upstreamQueriesPerResolution.mean();
+	}
+
+	@Override
+	public long getQueryLatencyP50Micros() {
+		return queryLatency.percentile(0.5);
+	}
+
+	@Override
+	public long getQueryLatencyP99Micros() {
+		return queryLatency.percentile(0.99);
+	}
+
+	@Override
+	public long getQueryLatencyMaxMicros() {
+		return queryLatency.max();
+	}
+
+	@Override
+	public long getUpstreamRttP50Micros() {
+		return upstreamRtt.percentile(0.5);
+	}
+
+	@Override
+	public long getUpstreamRttP99Micros() {
+		return upstreamRtt.percentile(0.99);
+	}
+
+	@Override
+	public long getDroppedLogMessages() {
+		return Log.droppedCount();
+	}
+
+	@Override
+	public String getTraceFilter() {
+		return Log.traceFilter();
+	}
+
+	@Override
+	public void setTraceFilter(String domain) {
+		Log.setTraceFilter(domain == null || domain.isEmpty() ? null : domain);
+	}
+
+	@Override
+	public void reloadZones() throws Exception {
+		Callable<?> reloader = zoneReloader;
+		if (reloader == null) {
+			throw new IllegalStateException("No zones are loaded");
+		}
+		reloader.call();
+	}
+}
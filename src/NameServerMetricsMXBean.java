@@ -0,0 +1,68 @@
+/**
+ * Counters and latency percentiles of a running NameServer, as seen over JMX.
+ * Counts are totals since start; latencies are in microseconds.
+ */
+public interface NameServerMetricsMXBean {
+	long getQueries();
+
+	long getRefusedQueries();
+
+	long getAuthoritativeAnswers();
+
+	long getCacheHits();
+
+	long getCacheMisses();
+
+	long getStaleAnswers();
+
+	double getCacheHitRatio();
+
+	long getResolutions();
+
+	long getResolutionFailures();
+
+	long getUpstreamQueries();
+
+	long getUpstreamTimeouts();
+
+	long getTcpRetries();
+
+	long getTruncatedAnswers();
+
+	/**
+	 * @return Replies sent per RCODE, indexed by RCODE (0 NOERROR to 15).
+	 */
+	long[] getResponsesByRcode();
+
+	double getMeanUpstreamQueriesPerResolution();
+
+	long getQueryLatencyP50Micros();
+
+	long getQueryLatencyP99Micros();
+
+	long getQueryLatencyMaxMicros();
+
+	long getUpstreamRttP50Micros();
+
+	long getUpstreamRttP99Micros();
+
+	/**
+	 * @return Messages the logger dropped because its buffer was full.
+	 */
+	long getDroppedLogMessages();
+
+	/**
+	 * @return The domain whose queries are traced, "" for all, null if off.
+	 */
+	String getTraceFilter();
+
+	/**
+	 * @param domain Trace queries under this domain, "." for all; "" stops tracing.
+	 */
+	void setTraceFilter(String domain);
+
+	/**
+	 * Read the zone files again and swap the new zones in; queries carry on meanwhile.
+	 */
+	void reloadZones() throws Exception;
+}
@@ -0,0 +1,287 @@
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end tests of iterative resolution against a FakeDnsHierarchy on
+ * loopback, so they run the same anywhere without network access.
+ */
+public class NameServerOfflineTest {
+
+    private static final AtomicInteger nextPort = new AtomicInteger(7600);
+
+    private FakeDnsHierarchy hierarchy;
+    private NameServer nameServer;
+    private int nameServerPort;
+    private DatagramSocket client;
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Before
+    public void setUp() throws Exception {
+        int port = nextPort.getAndAdd(2);
+        nameServerPort = port + 1;
+        hierarchy = new FakeDnsHierarchy(port, 2, 3, 2);
+        hierarchy.start();
+
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+        startNameServer(new NameServer());
+    }
+
+    @After
+    public void tearDown() {
+        nameServer.stop();
+        client.close();
+        hierarchy.close();
+    }
+
+    @Test
+    public void testResolvesThroughEveryLevel() throws Exception {
+        System.out.println("\nStarting test: Resolution through root, TLD and domain");
+
+        byte[] response = query("www.d1.tld0", DnsMessage.TYPE_A);
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        assertEquals("Should resolve", 0, message.rcode());
+        assertTrue("Should carry the A record", message.hasRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertEquals("Address comes from the domain's servers", 10, message.getByte(message.rdataOffset()));
+        assertEquals("Root asked once", 1, hierarchy.queryCount(""));
+        assertEquals("TLD asked once", 1, hierarchy.queryCount("tld0"));
+        assertEquals("Domain asked once", 1, hierarchy.queryCount("d1.tld0"));
+
+        query("mail.d1.tld0", DnsMessage.TYPE_A);
+        assertEquals("The delegation should be cached", 1, hierarchy.queryCount(""));
+        System.out.println(ANSI_GREEN + "Success: Resolved offline through the whole hierarchy." + ANSI_RESET);
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneResolution() throws Exception {
+        System.out.println("\nStarting test: Identical misses at the same time");
+
+        // Slow servers keep the first resolution in progress while the rest arrive
+        hierarchy.setLatency(null, 200);
+        int clients = 20;
+        for (int i = 0; i < clients; i++) {
+            send("www.d1.tld0", DnsMessage.TYPE_A);
+        }
+        for (int i = 0; i < clients; i++) {
+            assertEquals("Every client is answered", 0, rcode(receive()));
+        }
+        for (String zone : new String[] { "", "tld0", "d1.tld0" }) {
+            long queries = 0;
+            for (InetAddress server : hierarchy.nameServers(zone)) {
+                queries += hierarchy.queryCount(server);
+            }
+            assertEquals("One query to the servers of '" + zone + "'", 1, queries);
+        }
+        System.out.println(ANSI_GREEN + "Success: Concurrent misses share one upstream resolution." + ANSI_RESET);
+    }
+
+    @Test
+    public void testNameErrors() throws Exception {
+        System.out.println("\nStarting test: Names that do not exist");
+
+        assertEquals("Unknown TLD", 3, rcode(query("www.d0.nosuchtld", DnsMessage.TYPE_A)));
+        assertEquals("Unknown domain", 3, rcode(query("www.d9.tld1", DnsMessage.TYPE_A)));
+        assertEquals("Unknown host", 3, rcode(query("nxhost.d0.tld1", DnsMessage.TYPE_A)));
+        System.out.println(ANSI_GREEN + "Success: NXDOMAIN comes back from each level." + ANSI_RESET);
+    }
+
+    @Test
+    public void testTruncatedAnswersRetriedOverTcp() throws Exception {
+        System.out.println("\nStarting test: Truncating servers");
+
+        for (InetAddress server : hierarchy.nameServers("d2.tld1")) {
+            hierarchy.setTruncation(server, true);
+        }
+        byte[] response = query("www.d2.tld1", DnsMessage.TYPE_TXT);
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        assertEquals("Should resolve", 0, message.rcode());
+        assertTrue("The TXT record comes over TCP", message.hasRecord(DnsMessage.ANSWER, DnsMessage.TYPE_TXT));
+        assertEquals("Asked over UDP, then TCP", 2, hierarchy.queryCount("d2.tld1"));
+        System.out.println(ANSI_GREEN + "Success: Truncated answers are fetched over TCP." + ANSI_RESET);
+    }
+
+    @Test
+    public void testDeadServerFailsOver() throws Exception {
+        System.out.println("\nStarting test: One dead server in a zone");
+
+        InetAddress dead = hierarchy.nameServers("d0.tld0").get(0);
+        InetAddress live = hierarchy.nameServers("d0.tld0").get(1);
+        hierarchy.setLossRate(dead, 1.0);
+        // Unmeasured servers are asked first, in referral order, bar the odd random pick
+        for (int i = 0; i < 5 && hierarchy.queryCount(dead) == 0; i++) {
+            assertEquals("The live server answers", 0, rcode(query("www" + i + ".d0.tld0", DnsMessage.TYPE_A)));
+        }
+        assertEquals("The dead server was asked once", 1, hierarchy.queryCount(dead));
+        assertTrue("The live server was asked", hierarchy.queryCount(live) > 0);
+        assertTrue("The timeout is penalised", nameServer.smoothedRtt(dead) >= 1000);
+        assertTrue("The live server is preferred", nameServer.smoothedRtt(live) < nameServer.smoothedRtt(dead));
+
+        assertEquals("Still answered", 0, rcode(query("mail.d0.tld0", DnsMessage.TYPE_A)));
+        System.out.println(ANSI_GREEN + "Success: A dead server is failed over and penalised." + ANSI_RESET);
+    }
+
+    @Test
+    public void testQueriesOverTheCapRefused() throws Exception {
+        System.out.println("\nStarting test: More queries than the in-flight cap");
+
+        nameServer.stop();
+        NameServer capped = new NameServer();
+        capped.setExecutionMode(NameServer.ExecutionMode.BOUNDED_POOL, 1);
+        startNameServer(capped);
+
+        // The only permit is held while the resolution waits on a dead root
+        hierarchy.setLossRate(hierarchy.rootAddress(), 1.0);
+        send("www.d0.tld0", DnsMessage.TYPE_A);
+        Thread.sleep(100);
+        byte[] response = query("www.d1.tld0", DnsMessage.TYPE_A);
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        assertEquals("REFUSED straight away", 5, message.rcode());
+        assertEquals("Our ID", 0x2a2a, message.id());
+        assertTrue("The question it refused", message.nameEquals(DnsMessage.HEADER_LENGTH, "www.d1.tld0"));
+
+        assertEquals("The held query fails once the root times out", 2, rcode(receive()));
+        hierarchy.setLossRate(hierarchy.rootAddress(), 0);
+        Thread.sleep(100); // The permit is given back just after the reply goes out
+        assertEquals("The permit is back", 0, rcode(query("www.d1.tld0", DnsMessage.TYPE_A)));
+        System.out.println(ANSI_GREEN + "Success: Queries over the cap are refused, not queued." + ANSI_RESET);
+    }
+
+    @Test
+    public void testAuthoritativeZones() throws Exception {
+        System.out.println("\nStarting test: Zones served from files");
+
+        Path file = Files.createTempFile("zone", ".txt");
+        try {
+            String zone = "$ORIGIN local.\n$TTL 300\n@ IN SOA ns hostmaster 1 7200 3600 1209600 60\n"
+                    + "@ IN NS ns\nns IN A 192.0.2.1\n";
+            Files.write(file, (zone + "www IN A 192.0.2.80\n").getBytes(StandardCharsets.US_ASCII));
+            nameServer.loadZones(file.toString());
+
+            byte[] response = query("WWW.local", DnsMessage.TYPE_A);
+            DnsMessage message = new DnsMessage().wrap(response, response.length);
+            assertEquals("Should answer", 0, message.rcode());
+            assertEquals("Our ID", 0x2a2a, message.id());
+            assertTrue("Authoritative", (response[2] & 0x04) != 0);
+            assertTrue("The client's question", message.nameEquals(DnsMessage.HEADER_LENGTH, "WWW.local"));
+            assertEquals("Question type", DnsMessage.TYPE_A, message.questionType());
+            assertTrue("Should carry the A record", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+            assertEquals("Address from the file", 80, message.getByte(message.rdataOffset() + 3));
+            assertEquals("Nothing asked upstream", 0, hierarchy.queryCount(""));
+
+            Files.write(file, (zone + "www IN A 192.0.2.81\n").getBytes(StandardCharsets.US_ASCII));
+            nameServer.reloadZones();
+            response = query("www.local", DnsMessage.TYPE_A);
+            message = new DnsMessage().wrap(response, response.length);
+            assertTrue("Should carry the A record", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+            assertEquals("Address from the reloaded file", 81, message.getByte(message.rdataOffset() + 3));
+            assertEquals("A name the file dropped", 3, rcode(query("mail.local", DnsMessage.TYPE_A)));
+
+            Files.write(file, "www IN A 192.0.2.82\n".getBytes(StandardCharsets.US_ASCII));
+            try {
+                nameServer.reloadZones();
+                fail("A broken file should not load");
+            } catch (IOException e) {
+                // Expected; the zones loaded before stay
+            }
+            response = query("www.local", DnsMessage.TYPE_A);
+            message = new DnsMessage().wrap(response, response.length);
+            assertTrue("Should carry the A record", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+            assertEquals("Still the last good zone", 81, message.getByte(message.rdataOffset() + 3));
+
+            assertEquals("Other names are still resolved", 0, rcode(query("www.d1.tld0", DnsMessage.TYPE_A)));
+        } finally {
+            Files.delete(file);
+        }
+        System.out.println(ANSI_GREEN + "Success: Zones are answered locally and reloaded whole." + ANSI_RESET);
+    }
+
+    @Test
+    public void testDelegationsFromZonesResolved() throws Exception {
+        System.out.println("\nStarting test: Names delegated away by a local zone");
+
+        Path file = Files.createTempFile("zone", ".txt");
+        try {
+            // Our own copy of tld0, delegating d0 to one of the fake servers
+            InetAddress child = hierarchy.nameServers("d0.tld0").get(0);
+            String zone = "$ORIGIN tld0.\n$TTL 300\n@ IN SOA ns hostmaster 1 7200 3600 1209600 60\n"
+                    + "@ IN NS ns\nns IN A 192.0.2.1\nd0 IN NS ns0.d0\nns0.d0 IN A " + child.getHostAddress() + "\n";
+            Files.write(file, zone.getBytes(StandardCharsets.US_ASCII));
+            nameServer.loadZones(file.toString());
+
+            byte[] response = query("www.d0.tld0", DnsMessage.TYPE_A);
+            DnsMessage message = new DnsMessage().wrap(response, response.length);
+            assertEquals("Resolved, not referred", 0, message.rcode());
+            assertTrue("Should carry the A record", message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+            assertEquals("Asked the delegated server", 1, hierarchy.queryCount(child));
+            assertEquals("Started at the cut, not the root", 0, hierarchy.queryCount(""));
+        } finally {
+            Files.delete(file);
+        }
+        System.out.println(ANSI_GREEN + "Success: Names below a local cut are resolved from the cut." + ANSI_RESET);
+    }
+
+    @Test
+    public void testNoRootServer() throws Exception {
+        System.out.println("\nStarting test: No root server set");
+
+        nameServer.setNameServer(null, 53);
+        assertEquals("Server failure, not silence", 2, rcode(query("www.d1.tld0", DnsMessage.TYPE_A)));
+        assertEquals("The failed miss is not left pending", 2, rcode(query("www.d1.tld0", DnsMessage.TYPE_A)));
+        nameServer.setNameServer(hierarchy.rootAddress(), hierarchy.port());
+        assertEquals("Resolves once there is a root", 0, rcode(query("www.d1.tld0", DnsMessage.TYPE_A)));
+        System.out.println(ANSI_GREEN + "Success: Without a root server misses fail at once." + ANSI_RESET);
+    }
+
+    // Serve through the hierarchy on nameServerPort until tearDown
+    private void startNameServer(NameServer server) throws InterruptedException {
+        nameServer = server;
+        server.setNameServer(hierarchy.rootAddress(), hierarchy.port());
+        Thread thread = new Thread(() -> {
+            try {
+                server.handleIncomingQueries(nameServerPort);
+            } catch (Exception e) {
+                // Reported by the test that finds no server
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(200); // Let the name server bind
+    }
+
+    private byte[] query(String name, int type) throws Exception {
+        send(name, type);
+        return receive();
+    }
+
+    private void send(String name, int type) throws IOException {
+        byte[] query = new byte[512];
+        int length = new DnsWriter().start(query, query.length).header(0x2a2a, 0x0100).question(name, type, 1)
+                .finish();
+        client.send(new DatagramPacket(query, length, InetAddress.getLoopbackAddress(), nameServerPort));
+    }
+
+    private byte[] receive() throws IOException {
+        DatagramPacket reply = new DatagramPacket(new byte[4096], 4096);
+        client.receive(reply);
+        return Arrays.copyOf(reply.getData(), reply.getLength());
+    }
+
+    private static int rcode(byte[] response) {
+        return response[3] & 0x0F;
+    }
+}
@@ -13,12 +13,25 @@ interface ResolverInterface {
 public class Resolver implements ResolverInterface {
     private InetAddress nameServer;
     private static final int DNS_PORT = 53;
+    private int ednsPayloadSize = Edns.DEFAULT_PAYLOAD_SIZE;
 
     @Override
     public void setNameServer(InetAddress ipAddress, int port) {
         this.nameServer = ipAddress;
     }
 
+    /**
+     * Set the UDP payload size advertised in an EDNS(0) OPT record with each query.
+     *
+     * @param payloadSize Between 512 and 4096, or 0 to send plain queries.
+     */
+    public void setEdnsPayloadSize(int payloadSize) {
+        if (payloadSize != 0 && (payloadSize < Edns.MIN_PAYLOAD_SIZE || payloadSize > 4096)) {
+            throw new IllegalArgumentException("payloadSize must be 0 or between 512 and 4096");
+        }
+        this.ednsPayloadSize = payloadSize;
+    }
+
     @Override
     public InetAddress iterativeResolveAddress(String domainName) throws Exception {
         byte[] response = queryDNS(domainName, 1); // 1 for A record
@@ -34,25 +47,27 @@ public class Resolver implements ResolverInterface {
     @Override
     public String iterativeResolveName(String domainName, int type) throws Exception {
         byte[] response = queryDNS(domainName, type);
-        return extractCNAME(response);
+        return extractName(response, type);
     }
 
     private byte[] queryDNS(String domain, int type) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
-        socket.setSoTimeout(5000); // 5 seconds timeout
-        byte[] request = buildRequest(domain, type);
-        DatagramPacket packet = new DatagramPacket(request, request.length, nameServer, DNS_PORT);
-        socket.send(packet);
-
-        byte[] response = new byte[512];
-        DatagramPacket responsePacket = new DatagramPacket(response, response.length);
-        socket.receive(responsePacket);
-        socket.close();
-
-        return responsePacket.getData();
+        byte[] request = Edns.withOpt(buildRequest(domain, type), ednsPayloadSize);
+        byte[] response = UpstreamTransport.shared().exchange(request, request.length, nameServer, DNS_PORT, 5000); // 5 seconds timeout
+        if (ednsPayloadSize > 0 && Edns.rcode(response, response.length) == Edns.RCODE_FORMERR) {
+            // Server does not understand EDNS, ask again without it
+            request = buildRequest(domain, type);
+            response = UpstreamTransport.shared().exchange(request, request.length, nameServer, DNS_PORT, 5000);
+        }
+        response = Edns.withoutOpt(response);
+        String name = domain.toLowerCase(Locale.ROOT);
+        if (Log.isTracing(name)) {
+            DnsMessage message = new DnsMessage().wrap(response, response.length);
+            Log.trace(name, "{}: RCODE {}, {} answer RRs", domain, message.rcode(), message.answerCount());
+        }
+        return response;
     }
 
-    private byte[] buildRequest(String domain, int type) {
+    byte[] buildRequest(String domain, int type) {
         byte[] header = new byte[12];
         header[0] = (byte) 0xAA; // ID
         header[1] = (byte) 0xAA; // ID
@@ -91,101 +106,40 @@ public class Resolver implements ResolverInterface {
     }
 
     private InetAddress extractAddress(byte[] response) throws Exception {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(response);
-        DataInputStream dataStream = new DataInputStream(byteStream);
-
-        // Skip header
-        dataStream.skipBytes(12);
-
-        // Skip question section
-        skipSection(dataStream, 1);
-
-        // Number of answer RRs
-        int answerCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Answer RRs: " + answerCount);
-
-        for (int i = 0; i < answerCount; i++) {
-            // Answer section
-            String name = readName(dataStream);
-            int type = readUnsignedShort(dataStream);
-            int cls = readUnsignedShort(dataStream);
-            int ttl = readInt(dataStream);
-            int dataLength = readUnsignedShort(dataStream);
-
-            if (type == 1) { // Type A
-                byte[] ipAddressBytes = new byte[4];
-                dataStream.readFully(ipAddressBytes);
-                return InetAddress.getByAddress(ipAddressBytes);
-            } else {
-                dataStream.skipBytes(dataLength);
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        while (message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A)) {
+            if (message.rdataLength() == 4) {
+                return message.address();
             }
         }
         return null;
     }
 
     private String extractText(byte[] response) throws Exception {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(response);
-        DataInputStream dataStream = new DataInputStream(byteStream);
-
-        // Skip header
-        dataStream.skipBytes(12);
-
-        // Skip question section
-        skipSection(dataStream, 1);
-
-        // Number of answer RRs
-        int answerCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Answer RRs: " + answerCount);
-
-        for (int i = 0; i < answerCount; i++) {
-            // Answer section
-            String name = readName(dataStream);
-            int type = readUnsignedShort(dataStream);
-            int cls = readUnsignedShort(dataStream);
-            int ttl = readInt(dataStream);
-            int dataLength = readUnsignedShort(dataStream);
-
-            if (type == 16) { // Type TXT
-                byte[] txtData = new byte[dataLength];
-                dataStream.readFully(txtData);
-                return new String(txtData, "UTF-8");
-            } else {
-                dataStream.skipBytes(dataLength);
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        if (message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_TXT)) {
+            // RDATA is a run of length-prefixed character strings, joined here
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            int position = message.rdataOffset();
+            int end = position + message.rdataLength();
+            while (position < end) {
+                int length = message.getByte(position++);
+                for (int i = 0; i < length && position < end; i++) {
+                    text.write(message.getByte(position++));
+                }
             }
+            return new String(text.toByteArray(), "UTF-8");
         }
         return null;
     }
 
-    private String extractCNAME(byte[] response) throws Exception {
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(response);
-        DataInputStream dataStream = new DataInputStream(byteStream);
-
-        // Skip header
-        dataStream.skipBytes(12);
-
-        // Skip question section
-        skipSection(dataStream, 1);
-
-        // Number of answer RRs
-        int answerCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Answer RRs: " + answerCount);
-
-        for (int i = 0; i < answerCount; i++) {
-            // Answer section
-            String name = readName(dataStream);
-            int type = readUnsignedShort(dataStream);
-            int cls = readUnsignedShort(dataStream);
-            int ttl = readInt(dataStream);
-            int dataLength = readUnsignedShort(dataStream);
-
-            if (type == 5) { // Type CNAME
-                byte[] cnameData = readData(dataStream, dataLength);
-                ByteArrayInputStream cnameStream = new ByteArrayInputStream(cnameData);
-                DataInputStream cnameDataStream = new DataInputStream(cnameStream);
-                String cname = readName(cnameDataStream);
-                return cname;
-            } else {
-                dataStream.skipBytes(dataLength);
+    // The domain name held by the first answer of the type: CNAME, NS, PTR or MX
+    private String extractName(byte[] response, int type) throws Exception {
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        while (message.nextRecord(DnsMessage.ANSWER, type)) {
+            int nameOffset = message.rdataNameOffset();
+            if (nameOffset >= 0) {
+                return message.readName(nameOffset);
             }
         }
         return null;
@@ -193,105 +147,24 @@ public class Resolver implements ResolverInterface {
 
     private List<String> extractReferral(byte[] response) throws Exception {
         List<String> referrals = new ArrayList<>();
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(response);
-        DataInputStream dataStream = new DataInputStream(byteStream);
-
-        // Skip header
-        dataStream.skipBytes(12);
-
-        // Skip question section
-        skipSection(dataStream, 1);
-
-        // Number of answer RRs
-        int answerCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Answer RRs: " + answerCount);
-
-        // Skip answer section
-        skipSection(dataStream, answerCount);
-
-        // Number of authority RRs
-        int authorityCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Authority RRs: " + authorityCount);
-        referrals.addAll(extractRecords(dataStream, authorityCount));
-
-        // Number of additional RRs
-        int additionalCount = readUnsignedShort(dataStream);
-        System.out.println("Number of Additional RRs: " + additionalCount);
-        // Skip additional section
-        skipSection(dataStream, additionalCount);
-
-        return referrals;
-    }
-
-    private List<String> extractRecords(DataInputStream dataStream, int count) throws IOException {
-        List<String> records = new ArrayList<>();
-        for (int i = 0; i < count; i++) {
-            // Record section
-            String name = readName(dataStream);
-            int type = readUnsignedShort(dataStream);
-            int cls = readUnsignedShort(dataStream);
-            int ttl = readInt(dataStream);
-            int dataLength = readUnsignedShort(dataStream);
-
-            if (type == 2) { // NS record type
-                byte[] nsData = readData(dataStream, dataLength);
-                ByteArrayInputStream nsStream = new ByteArrayInputStream(nsData);
-                DataInputStream nsDataStream = new DataInputStream(nsStream);
-                String ns = readName(nsDataStream);
-                records.add("NS: " + ns);
-            } else if (type == 5) { // CNAME record type
-                byte[] cnameData = readData(dataStream, dataLength);
-                ByteArrayInputStream cnameStream = new ByteArrayInputStream(cnameData);
-                DataInputStream cnameDataStream = new DataInputStream(cnameStream);
-                String cname = readName(cnameDataStream);
-                records.add("CNAME: " + cname);
-            } else {
-                dataStream.skipBytes(dataLength);
-            }
-        }
-        return records;
-    }
-
-    private void skipSection(DataInputStream dataStream, int count) throws IOException {
-        for (int i = 0; i < count; i++) {
-            readName(dataStream); // Name
-            dataStream.skipBytes(10); // Type, Class, TTL, and Data Length
+        DnsMessage message = new DnsMessage().wrap(response, response.length);
+        if (Log.isTracing()) {
+            String name = message.readName(DnsMessage.HEADER_LENGTH).toLowerCase(Locale.ROOT);
+            Log.trace(name, "{}: referral with {} authority and {} additional RRs", name, message.authorityCount(),
+                    message.additionalCount());
         }
-    }
 
-    private String readName(DataInputStream dataStream) throws IOException {
-        ByteArrayOutputStream nameStream = new ByteArrayOutputStream();
-        int length;
-        while ((length = dataStream.readUnsignedByte()) != 0) {
-            if ((length & 0xC0) == 0xC0) {
-                // Pointer
-                int offset = ((length & 0x3F) << 8) | dataStream.readUnsignedByte();
-                dataStream.skipBytes(offset);
-                break;
-            } else {
-                if (nameStream.size() > 0) {
-                    nameStream.write('.');
-                }
-                byte[] label = new byte[length];
-                dataStream.readFully(label);
-                nameStream.write(label);
+        while (message.nextRecord()) {
+            if (message.section() != DnsMessage.AUTHORITY) {
+                continue;
+            }
+            if (message.type() == DnsMessage.TYPE_NS) {
+                referrals.add("NS: " + message.readName(message.rdataOffset()));
+            } else if (message.type() == DnsMessage.TYPE_CNAME) {
+                referrals.add("CNAME: " + message.readName(message.rdataOffset()));
             }
         }
-        return nameStream.toString("UTF-8");
-    }
-
-    private byte[] readData(DataInputStream dataStream, int length) throws IOException {
-        byte[] data = new byte[length];
-        dataStream.readFully(data);
-        return data;
-    }
-
-    private int readUnsignedShort(DataInputStream dataStream) throws IOException {
-        return dataStream.readUnsignedShort();
-    }
-
-    private int readInt(DataInputStream dataStream) throws IOException {
-        return dataStream.readInt();
+        return referrals;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,712 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Response cache used by NameServer. Entries are keyed by the question (name,
+ * type, class) and live for the smallest TTL found in the response. TTLs in
+ * the responses handed back are counted down by the time spent in the cache.
+ * Memory is bounded by a byte budget enforced with W-TinyLFU eviction.
+ */
+class ResponseCache {
+	static final long MAX_TTL = 86400; // Never hold a response for more than a day
+	static final long DEFAULT_TTL = 10; // For responses without any record to take a TTL from
+	static final long MAX_NEGATIVE_TTL = 10800; // RFC 2308 suggests at most one to three hours
+	static final int NXDOMAIN_TYPE = 0; // Reserved type, used to key NXDOMAIN for a whole name
+
+	static final class Key {
+		final NameKey name;
+		final int type;
+		final int cls;
+		private final int hash;
+
+		Key(String name, int type, int cls) {
+			this(NameKey.of(name), type, cls);
+		}
+
+		/**
+		 * @param name May view a packet for a lookup; see copy() before keeping it.
+		 */
+		Key(NameKey name, int type, int cls) {
+			this.name = name;
+			this.type = type;
+			this.cls = cls;
+			this.hash = (name.hashCode() * 31 + type) * 31 + cls;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return type == other.type && cls == other.cls && name.equals(other.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		/**
+		 * @return A key that does not depend on the packet it was read from.
+		 */
+		Key copy() {
+			NameKey owned = name.copy();
+			return owned == name ? this : new Key(owned, type, cls);
+		}
+
+		// An NXDOMAIN answers every type, so it is cached once for the name
+		Key nxdomainKey() {
+			return new Key(name, NXDOMAIN_TYPE, cls);
+		}
+
+		@Override
+		public String toString() {
+			return name + "/" + type + "/" + cls;
+		}
+	}
+
+	// A response template: the stored message plus where its TTL fields are, so a
+	// hit can be served by copying and patching without parsing anything. The
+	// transaction ID and flags are always at offsets 0 and 2.
+	private static final class Entry {
+		final byte[] data; // Null when the message lives in the slab store
+		final long slot; // Slab store handle, -1 when on the heap
+		final int length;
+		final int[] ttlOffsets;
+		final long storedAt;
+		final long expiresAt;
+		volatile int refreshing; // Set once a refresh-ahead has been started
+
+		Entry(byte[] data, long slot, int length, int[] ttlOffsets, long storedAt, long expiresAt) {
+			this.data = data;
+			this.slot = slot;
+			this.length = length;
+			this.ttlOffsets = ttlOffsets;
+			this.storedAt = storedAt;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Which eviction queue a node is on
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final class Node {
+		final Key key;
+		volatile Entry entry;
+		int weight;
+		int queue;
+		Node previous;
+		Node next;
+
+		Node(Key key, Entry entry, int weight) {
+			this.key = key;
+			this.entry = entry;
+			this.weight = weight;
+		}
+	}
+
+	// Doubly linked LRU list, most recently used at the head
+	private static final class AccessQueue {
+		Node head;
+		Node tail;
+		long bytes;
+
+		void addFirst(Node node) {
+			node.previous = null;
+			node.next = head;
+			if (head != null) {
+				head.previous = node;
+			} else {
+				tail = node;
+			}
+			head = node;
+			bytes += node.weight;
+		}
+
+		void remove(Node node) {
+			if (node.previous != null) {
+				node.previous.next = node.next;
+			} else {
+				head = node.next;
+			}
+			if (node.next != null) {
+				node.next.previous = node.previous;
+			} else {
+				tail = node.previous;
+			}
+			node.previous = null;
+			node.next = null;
+			bytes -= node.weight;
+		}
+	}
+
+	static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024 * 1024;
+	private static final int ENTRY_OVERHEAD = 160; // Key, Entry, Node and map slot, roughly
+	private static final int AVERAGE_ENTRY_BYTES = 256; // Used to size the frequency sketch
+	private static final int VICTIM_SCAN = 16; // Entries looked at from a queue's tail for one of a size class
+
+	private final ConcurrentHashMap<Key, Node> entries = new ConcurrentHashMap<>();
+
+	// W-TinyLFU: new entries land in a small LRU window. Entries leaving the
+	// window only get into the main segmented LRU if the frequency sketch says
+	// they are asked for more often than the entry they would push out, so a
+	// flood of one-off names cannot flush the hot working set.
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final AccessQueue window = new AccessQueue();
+	private final AccessQueue probation = new AccessQueue();
+	private final AccessQueue protectedQueue = new AccessQueue();
+	private FrequencySketch sketch;
+	private long maximumBytes;
+	private long windowMaximum;
+	private long protectedMaximum;
+
+	private final SlabStore slabs; // Null keeps messages on the heap
+
+	static final int STALE_ANSWER_TTL = 30; // RFC 8767 recommends 30 seconds
+	private static final AtomicIntegerFieldUpdater<Entry> REFRESHING = AtomicIntegerFieldUpdater
+			.newUpdater(Entry.class, "refreshing");
+	private volatile Consumer<Key> refresher;
+	private volatile double refreshFraction = 1.0;
+	private volatile long maxStaleMillis = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+
+	ResponseCache() {
+		this(DEFAULT_MAXIMUM_BYTES);
+	}
+
+	ResponseCache(long maximumBytes) {
+		this(maximumBytes, false);
+	}
+
+	/**
+	 * @param maximumBytes Memory budget for the cache.
+	 * @param offHeap      Keep the messages themselves in direct memory, sized by
+	 *                     class. The index stays on the heap, about ENTRY_OVERHEAD
+	 *                     bytes per entry. The budget then covers both.
+	 */
+	ResponseCache(long maximumBytes, boolean offHeap) {
+		this.slabs = offHeap ? new SlabStore(maximumBytes) : null;
+		setMaximumBytes(maximumBytes);
+	}
+
+	/**
+	 * Change the memory budget, evicting straight away if the cache is now over it.
+	 * 
+	 * @param maximumBytes Approximate heap the cached responses may use.
+	 */
+	void setMaximumBytes(long maximumBytes) {
+		if (maximumBytes <= 0) {
+			throw new IllegalArgumentException("maximumBytes must be positive");
+		}
+		evictionLock.lock();
+		try {
+			this.maximumBytes = maximumBytes;
+			this.windowMaximum = Math.max(1, maximumBytes / 100); // 1% window
+			this.protectedMaximum = (maximumBytes - windowMaximum) * 8 / 10; // 80% of main
+			this.sketch = new FrequencySketch(maximumBytes / AVERAGE_ENTRY_BYTES);
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Ask for popular entries to be refreshed before they expire.
+	 *
+	 * @param refresher Called at most once per entry, on the first hit after
+	 *                  the entry has used up refreshFraction of its TTL. It
+	 *                  should re-resolve and put() the key, without blocking.
+	 *                  The key is the cache's own copy, so it may be kept.
+	 * @param fraction  Share of the TTL after which a hit triggers a refresh,
+	 *                  between 0 and 1. 1 turns refresh-ahead off.
+	 */
+	void setRefresher(Consumer<Key> refresher, double fraction) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be in (0, 1]");
+		}
+		this.refreshFraction = fraction;
+		this.refresher = fraction < 1 ? refresher : null;
+	}
+
+	/**
+	 * Keep expired entries for serve-stale.
+	 *
+	 * @param maxStaleSeconds How long after expiry an entry may still be served
+	 *                        by copyStaleTo. 0 drops entries when they expire.
+	 */
+	void setMaxStale(long maxStaleSeconds) {
+		if (maxStaleSeconds < 0) {
+			throw new IllegalArgumentException("maxStaleSeconds must not be negative");
+		}
+		this.maxStaleMillis = maxStaleSeconds * 1000;
+	}
+
+	/**
+	 * Look up a cached response.
+	 *
+	 * @param key The question being asked.
+	 * @return A private copy of the response with TTLs counted down, or null on a
+	 *         miss or if the entry has expired.
+	 */
+	byte[] get(Key key) {
+		Node node = entries.get(key);
+		if (node == null) {
+			node = entries.get(key.nxdomainKey());
+		}
+		Entry entry = node == null ? null : node.entry;
+		byte[] response = new byte[entry == null ? 0 : entry.length];
+		int length = copyTo(key, response);
+		if (length < 0) {
+			return null;
+		}
+		return length == response.length ? response : Arrays.copyOf(response, length);
+	}
+
+	/**
+	 * Serve a hit into the caller's buffer: copy the template, then count its TTLs
+	 * down. Nothing is parsed or allocated.
+	 *
+	 * @param key         The question being asked.
+	 * @param destination Buffer to copy the response into, starting at offset 0.
+	 * @return The length of the response, or -1 on a miss, if the entry has
+	 *         expired or if it does not fit in the buffer.
+	 */
+	int copyTo(Key key, byte[] destination) {
+		int length = copyEntry(key, destination);
+		if (length < 0 && key.type != NXDOMAIN_TYPE) {
+			length = copyEntry(key.nxdomainKey(), destination);
+		}
+		if (length < 0) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return length;
+	}
+
+	/**
+	 * Serve-stale (RFC 8767): copy an entry even though it has expired, as long as
+	 * it is within the stale window. All TTLs in the copy are set to
+	 * STALE_ANSWER_TTL so clients come back soon.
+	 *
+	 * @return The length of the response, or -1 if there is nothing to serve.
+	 */
+	int copyStaleTo(Key key, byte[] destination) {
+		int length = copyEntry(key, destination, true);
+		if (length < 0 && key.type != NXDOMAIN_TYPE) {
+			length = copyEntry(key.nxdomainKey(), destination, true);
+		}
+		if (length >= 0) {
+			staleHits.increment();
+		}
+		return length;
+	}
+
+	/**
+	 * @return True if copyStaleTo would currently find something for the key.
+	 */
+	boolean hasStale(Key key) {
+		long now = System.currentTimeMillis();
+		Node node = entries.get(key);
+		if (node == null && key.type != NXDOMAIN_TYPE) {
+			node = entries.get(key.nxdomainKey());
+		}
+		Entry entry = node == null ? null : node.entry;
+		return entry != null && now < entry.expiresAt + maxStaleMillis;
+	}
+
+	private int copyEntry(Key key, byte[] destination) {
+		return copyEntry(key, destination, false);
+	}
+
+	private int copyEntry(Key key, byte[] destination, boolean allowStale) {
+		Node node = entries.get(key);
+		Entry entry = node == null ? null : node.entry;
+		long now = System.currentTimeMillis();
+		boolean expired = entry != null && now >= entry.expiresAt;
+		if (entry == null || (expired && !allowStale)) {
+			if (!allowStale) {
+				// Expired entries stay around for serve-stale until the window closes
+				recordAccess(key, node, expired && now >= entry.expiresAt + maxStaleMillis);
+			}
+			return -1;
+		}
+		if (expired && now >= entry.expiresAt + maxStaleMillis) {
+			return -1;
+		}
+		if (entry.length > destination.length) {
+			return -1;
+		}
+
+		if (entry.data != null) {
+			System.arraycopy(entry.data, 0, destination, 0, entry.length);
+		} else {
+			// Bulk copy straight out of the slab. The chunk may have been released and
+			// reused while copying, so only trust the bytes if the entry is still live.
+			if (slabs.read(entry.slot, destination, 0) < 0 || node.entry != entry || entries.get(key) != node) {
+				return -1;
+			}
+		}
+
+		if (expired) {
+			for (int offset : entry.ttlOffsets) {
+				DnsMessage.putInt(destination, offset, STALE_ANSWER_TTL);
+			}
+			return entry.length;
+		}
+		recordAccess(key, node, false);
+
+		// Refresh-ahead: a hit late in the entry's life means it is still wanted, so
+		// re-resolve in the background before clients start missing
+		Consumer<Key> refresher = this.refresher;
+		if (refresher != null && key.type != NXDOMAIN_TYPE
+				&& now - entry.storedAt >= (entry.expiresAt - entry.storedAt) * refreshFraction
+				&& REFRESHING.compareAndSet(entry, 0, 1)) {
+			refresher.accept(node.key); // Not key: it may view the client's packet buffer
+		}
+
+		long elapsed = (now - entry.storedAt) / 1000;
+		if (elapsed > 0) {
+			for (int offset : entry.ttlOffsets) {
+				long ttl = DnsMessage.getInt(destination, offset) - elapsed;
+				DnsMessage.putInt(destination, offset, Math.max(ttl, 0));
+			}
+		}
+		return entry.length;
+	}
+
+	/**
+	 * Store a response for as long as its shortest TTL. Responses with a zero TTL
+	 * or that cannot be walked are not cached.
+	 * <p>
+	 * Negative answers follow RFC 2308: they live for the smaller of the SOA's TTL
+	 * and its MINIMUM field. NODATA is cached for the name and type asked, NXDOMAIN
+	 * for the name as a whole unless it ends a CNAME or DNAME chain.
+	 *
+	 * @param key      The question the response answers.
+	 * @param response The response, exactly as long as the message.
+	 */
+	void put(Key key, byte[] response) {
+		int[] ttlOffsets = ttlOffsets(response);
+		if (ttlOffsets == null) {
+			return;
+		}
+		key = key.copy(); // Held by the cache, so it must not view a packet
+
+		long ttl;
+		int rcode = response[3] & 0x0F;
+		if (rcode == 3 || (rcode == 0 && DnsMessage.getShort(response, 6) == 0)) { // NXDOMAIN or NODATA
+			ttl = Math.min(MAX_NEGATIVE_TTL, negativeTTL(response));
+			if (rcode == 3 && DnsMessage.getShort(response, 6) == 0) {
+				key = key.nxdomainKey();
+			} else if (rcode == 3) {
+				// After a CNAME chain the NXDOMAIN is about the chain's target, not the name
+				// asked: keep it for this type only, and no longer than the chain
+				for (int offset : ttlOffsets) {
+					ttl = Math.min(ttl, DnsMessage.getInt(response, offset));
+				}
+			}
+		} else {
+			ttl = DEFAULT_TTL;
+			if (ttlOffsets.length > 0) {
+				ttl = MAX_TTL;
+				for (int offset : ttlOffsets) {
+					ttl = Math.min(ttl, DnsMessage.getInt(response, offset));
+				}
+			}
+		}
+		if (ttl <= 0) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Entry entry;
+		int weight = key.name.length() + ENTRY_OVERHEAD;
+		if (slabs != null) {
+			int chunkSize = SlabStore.chunkSizeFor(response.length);
+			if (chunkSize < 0 || weight + chunkSize > maximumBytes) {
+				return; // Would never fit
+			}
+			long slot = slabs.store(response, response.length);
+			if (slot < 0) {
+				slot = storeEvicting(response);
+				if (slot < 0) {
+					return; // Nothing of this size class left to evict
+				}
+			}
+			entry = new Entry(null, slot, response.length, ttlOffsets, now, now + ttl * 1000);
+			weight += chunkSize;
+		} else {
+			entry = new Entry(response, -1, response.length, ttlOffsets, now, now + ttl * 1000);
+			weight += response.length;
+		}
+
+		evictionLock.lock();
+		try {
+			if (weight > maximumBytes) {
+				release(entry);
+				return; // Would never fit
+			}
+			Node node = entries.get(key);
+			if (node != null) {
+				queueOf(node).remove(node);
+				Entry replaced = node.entry;
+				node.entry = entry;
+				release(replaced);
+				node.weight = weight;
+				queueOf(node).addFirst(node);
+			} else {
+				node = new Node(key, entry, weight);
+				node.queue = WINDOW;
+				window.addFirst(node);
+				entries.put(key, node);
+			}
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * The slab store has no chunk of the response's size class free and no slab to
+	 * spare. Evict entries of that class from near the tails of the probation and
+	 * window segments until one is freed, rather than stop caching responses of
+	 * this size. The protected segment is left alone: its entries have been hit
+	 * since they were admitted, and are worth more than the response being stored.
+	 *
+	 * @return A slab store handle, or -1 if no entry of the class is near a tail.
+	 */
+	private long storeEvicting(byte[] response) {
+		evictionLock.lock();
+		try {
+			for (int attempt = 0; attempt < 8; attempt++) { // A concurrent put may take the freed chunk
+				Node victim = leastRecentInClass(probation, response.length);
+				if (victim == null) {
+					victim = leastRecentInClass(window, response.length);
+				}
+				if (victim == null) {
+					return -1;
+				}
+				removeNode(victim);
+				long slot = slabs.store(response, response.length);
+				if (slot >= 0) {
+					return slot;
+				}
+			}
+			return -1;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	// Only the last few entries are looked at, so a put never walks a whole queue under the lock
+	private static Node leastRecentInClass(AccessQueue queue, int length) {
+		Node node = queue.tail;
+		for (int scanned = 0; node != null && scanned < VICTIM_SCAN; scanned++, node = node.previous) {
+			if (SlabStore.sameClass(node.entry.slot, length)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	// Reordering is best effort: if another thread holds the lock the access is
+	// dropped rather than making the lookup wait.
+	private void recordAccess(Key key, Node node, boolean expired) {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		try {
+			sketch.increment(key.hashCode());
+			if (node == null || entries.get(key) != node) {
+				return; // Not cached, or evicted since the lookup
+			}
+			if (expired) {
+				queueOf(node).remove(node); // Expiry is not counted as an eviction
+				entries.remove(key, node);
+				release(node.entry);
+				return;
+			}
+			switch (node.queue) {
+			case WINDOW:
+				window.remove(node);
+				window.addFirst(node);
+				break;
+			case PROBATION:
+				// A second hit promotes to the protected segment
+				probation.remove(node);
+				node.queue = PROTECTED;
+				protectedQueue.addFirst(node);
+				while (protectedQueue.bytes > protectedMaximum && protectedQueue.tail != null) {
+					Node demoted = protectedQueue.tail;
+					protectedQueue.remove(demoted);
+					demoted.queue = PROBATION;
+					probation.addFirst(demoted);
+				}
+				break;
+			default:
+				protectedQueue.remove(node);
+				protectedQueue.addFirst(node);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private void evict() {
+		long mainMaximum = maximumBytes - windowMaximum;
+
+		while (window.bytes > windowMaximum && window.tail != null) {
+			Node candidate = window.tail;
+			window.remove(candidate);
+
+			// The candidate has to beat the main segment's LRU victims until it fits
+			boolean admitted = true;
+			while (probation.bytes + protectedQueue.bytes + candidate.weight > mainMaximum) {
+				Node victim = probation.tail != null ? probation.tail : protectedQueue.tail;
+				if (victim == null) {
+					break;
+				}
+				if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+					removeNode(victim);
+				} else {
+					admitted = false;
+					break;
+				}
+			}
+
+			if (admitted) {
+				candidate.queue = PROBATION;
+				probation.addFirst(candidate);
+			} else {
+				entries.remove(candidate.key, candidate);
+				release(candidate.entry);
+				evictions.increment();
+			}
+		}
+
+		// The window itself can be over budget when it holds everything
+		while (window.bytes + probation.bytes + protectedQueue.bytes > maximumBytes) {
+			Node victim = window.tail != null ? window.tail
+					: probation.tail != null ? probation.tail : protectedQueue.tail;
+			removeNode(victim);
+		}
+	}
+
+	private void removeNode(Node node) {
+		queueOf(node).remove(node);
+		entries.remove(node.key, node);
+		release(node.entry);
+		evictions.increment();
+	}
+
+	// Only called once the entry can no longer be reached from the map
+	private void release(Entry entry) {
+		if (entry.data == null) {
+			slabs.release(entry.slot);
+		}
+	}
+
+	private AccessQueue queueOf(Node node) {
+		switch (node.queue) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		default:
+			return protectedQueue;
+		}
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long hitCount() {
+		return hits.sum();
+	}
+
+	long missCount() {
+		return misses.sum();
+	}
+
+	long evictionCount() {
+		return evictions.sum();
+	}
+
+	long staleHitCount() {
+		return staleHits.sum();
+	}
+
+	double hitRatio() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 0.0 : (double) hitCount / total;
+	}
+
+	/**
+	 * @return Approximate heap used by cached entries, as counted against the budget.
+	 */
+	long weightedSize() {
+		evictionLock.lock();
+		try {
+			return window.bytes + probation.bytes + protectedQueue.bytes;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Find the TTL field of every resource record in a message.
+	 *
+	 * @param data The DNS message.
+	 * @return Offsets of each 4-byte TTL field, or null if the message is malformed.
+	 */
+	static int[] ttlOffsets(byte[] data) {
+		DnsMessage message = new DnsMessage().wrap(data, data.length);
+		if (!message.rewind()) {
+			return null;
+		}
+		int[] offsets = new int[message.answerCount() + message.authorityCount() + message.additionalCount()];
+		int found = 0;
+		while (message.nextRecord()) {
+			if (message.type() != DnsMessage.TYPE_OPT) { // Its TTL field holds EDNS flags
+				offsets[found++] = message.rdataOffset() - 6; // TTL, then RDLENGTH
+			}
+		}
+		if (!message.isComplete()) {
+			return null;
+		}
+		return found == offsets.length ? offsets : Arrays.copyOf(offsets, found);
+	}
+
+	/**
+	 * @return min(SOA TTL, SOA MINIMUM) from the authority section of a negative
+	 *         answer, DEFAULT_TTL if it carries no SOA, or 0 if it is malformed.
+	 */
+	static long negativeTTL(byte[] data) {
+		DnsMessage message = new DnsMessage().wrap(data, data.length);
+		while (message.nextRecord()) {
+			if (message.section() == DnsMessage.AUTHORITY && message.type() == DnsMessage.TYPE_SOA
+					&& message.rdataLength() >= 22) {
+				// MINIMUM ends the RDATA
+				return Math.min(message.ttl(), message.getInt(message.rdataOffset() + message.rdataLength() - 4));
+			}
+		}
+		return message.isComplete() ? DEFAULT_TTL : 0;
+	}
+}
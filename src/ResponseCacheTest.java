@@ -0,0 +1,393 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ResponseCacheTest {
+
+    private ResponseCache cache;
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Before
+    public void setUp() {
+        cache = new ResponseCache();
+    }
+
+    @Test
+    public void testKeyIsCaseInsensitiveAndTypeSpecific() {
+        System.out.println("\nStarting test: Cache key");
+
+        cache.put(new ResponseCache.Key("Example.COM", 1, 1), buildResponse("example.com", 1, 300, 600));
+
+        assertNotNull("Lookup should ignore case", cache.get(new ResponseCache.Key("example.com", 1, 1)));
+        assertNull("An MX query must not be answered from an A entry", cache.get(new ResponseCache.Key("example.com", 15, 1)));
+        System.out.println(ANSI_GREEN + "Success: Cache keys use name, type and class." + ANSI_RESET);
+    }
+
+    @Test
+    public void testKeyReadFromPacket() {
+        System.out.println("\nStarting test: Cache key from a packet");
+
+        cache.put(new ResponseCache.Key("example.com", 1, 1), buildResponse("example.com", 1, 300));
+        byte[] query = buildResponse("EXAMPLE.com", 1);
+        DnsMessage message = new DnsMessage().wrap(query, query.length);
+        ResponseCache.Key viewed = new ResponseCache.Key(NameKey.of(message, 12), 1, 1);
+        assertNotNull("A key viewing the packet should find the entry", cache.get(viewed));
+
+        ResponseCache.Key copied = viewed.copy();
+        query[13] = 'x'; // The packet buffer is reused for the next query
+        assertEquals("The copy must not change with the packet", new ResponseCache.Key("example.com", 1, 1), copied);
+        assertEquals("Names decode lowercased", "example.com", copied.name.toString());
+        System.out.println(ANSI_GREEN + "Success: Keys read from packets match keys built from names." + ANSI_RESET);
+    }
+
+    @Test
+    public void testTTLsCountDown() throws Exception {
+        System.out.println("\nStarting test: TTL count down");
+
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        byte[] response = buildResponse("example.com", 1, 300, 600);
+        cache.put(key, response);
+        Thread.sleep(1100);
+
+        byte[] cached = cache.get(key);
+        int[] offsets = ResponseCache.ttlOffsets(cached);
+        assertEquals("Both answers should have a TTL", 2, offsets.length);
+        ByteBuffer buffer = ByteBuffer.wrap(cached);
+        assertTrue("TTL should have been decremented", buffer.getInt(offsets[0]) < 300);
+        assertTrue("TTL should have been decremented", buffer.getInt(offsets[1]) < 600);
+        assertEquals("The stored response must not be modified", 300, ByteBuffer.wrap(response).getInt(offsets[0]));
+        System.out.println(ANSI_GREEN + "Success: TTLs are decremented on the way out." + ANSI_RESET);
+    }
+
+    @Test
+    public void testZeroTTLIsNotCached() {
+        System.out.println("\nStarting test: Zero TTL");
+
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        cache.put(key, buildResponse("example.com", 1, 0, 600));
+
+        assertNull("A response with a zero TTL must not be cached", cache.get(key));
+        System.out.println(ANSI_GREEN + "Success: Zero TTL responses are not cached." + ANSI_RESET);
+    }
+
+    @Test
+    public void testMalformedResponseIsNotCached() {
+        System.out.println("\nStarting test: Malformed response");
+
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        byte[] response = buildResponse("example.com", 1, 300, 600);
+        cache.put(key, Arrays.copyOf(response, response.length - 6));
+
+        assertNull("A truncated response must not be cached", cache.get(key));
+        System.out.println(ANSI_GREEN + "Success: Malformed responses are not cached." + ANSI_RESET);
+    }
+
+    @Test
+    public void testCopyToPooledBuffer() {
+        System.out.println("\nStarting test: Copy to buffer");
+
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        byte[] response = buildResponse("example.com", 1, 300);
+        cache.put(key, response);
+
+        byte[] outbound = new byte[512];
+        int length = cache.copyTo(key, outbound);
+        assertEquals("Only the real message length should be reported", response.length, length);
+        assertArrayEquals("Copied bytes should match the template", response, Arrays.copyOf(outbound, length));
+        assertEquals("A buffer that is too small should miss", -1, cache.copyTo(key, new byte[16]));
+        System.out.println(ANSI_GREEN + "Success: Hits are copied into the caller's buffer." + ANSI_RESET);
+    }
+
+    @Test
+    public void testMemoryBudgetIsEnforced() {
+        System.out.println("\nStarting test: Memory budget");
+
+        cache = new ResponseCache(64 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 1, 1), buildResponse(name, 1, 300));
+        }
+
+        assertTrue("Cache should stay within its byte budget", cache.weightedSize() <= 64 * 1024);
+        assertTrue("Entries should have been evicted", cache.evictionCount() > 0);
+        System.out.println(ANSI_GREEN + "Success: Cache stays within " + cache.weightedSize() + " bytes." + ANSI_RESET);
+    }
+
+    @Test
+    public void testOneOffNamesDoNotFlushHotEntries() {
+        System.out.println("\nStarting test: Scan resistance");
+
+        cache = new ResponseCache(64 * 1024);
+        ResponseCache.Key[] hot = new ResponseCache.Key[50];
+        for (int i = 0; i < hot.length; i++) {
+            String name = "hot" + i + ".example.com";
+            hot[i] = new ResponseCache.Key(name, 1, 1);
+            cache.put(hot[i], buildResponse(name, 1, 300));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (ResponseCache.Key key : hot) {
+                cache.get(key);
+            }
+        }
+
+        // A random-subdomain flood, every name asked for once
+        for (int i = 0; i < 20000; i++) {
+            String name = "x" + i + ".flood.example.com";
+            ResponseCache.Key key = new ResponseCache.Key(name, 1, 1);
+            cache.get(key);
+            cache.put(key, buildResponse(name, 1, 300));
+        }
+
+        int survivors = 0;
+        for (ResponseCache.Key key : hot) {
+            if (cache.get(key) != null) {
+                survivors++;
+            }
+        }
+        assertTrue("Hot entries should survive the flood, only " + survivors + " did", survivors >= 45);
+        System.out.println(ANSI_GREEN + "Success: " + survivors + " of 50 hot entries survived, hit ratio "
+                + cache.hitRatio() + ANSI_RESET);
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        System.out.println("\nStarting test: Off-heap storage");
+
+        cache = new ResponseCache(256 * 1024, true);
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        byte[] response = buildResponse("example.com", 1, 300, 600);
+        cache.put(key, response);
+        assertArrayEquals("Off-heap copy should match what was stored", response, cache.get(key));
+
+        // Churn well past the budget so chunks are released and reused
+        for (int i = 0; i < 20000; i++) {
+            String name = "host" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 1, 1), buildResponse(name, 1, 300));
+        }
+        String last = "host19999.example.com";
+        assertArrayEquals("Reused chunks should hold the newest message", buildResponse(last, 1, 300),
+                cache.get(new ResponseCache.Key(last, 1, 1)));
+        assertTrue("Cache should stay within its byte budget", cache.weightedSize() <= 256 * 1024);
+        System.out.println(ANSI_GREEN + "Success: Off-heap entries round trip." + ANSI_RESET);
+    }
+
+    @Test
+    public void testOffHeapSizeMixChange() {
+        System.out.println("\nStarting test: Off-heap size mix change");
+
+        long budget = 12 * 1024 * 1024;
+        cache = new ResponseCache(budget, true);
+        for (int i = 0; i < 5600; i++) { // 2 KB chunks take nearly the whole budget in slabs
+            String name = "medium" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 16, 1), buildTxtResponse(name, 1500));
+        }
+        // Popular 4 KB answers take over; the slabs the 2 KB answers held must serve them
+        for (int i = 0; i < 2800; i++) {
+            String name = "large" + i + ".example.com";
+            ResponseCache.Key key = new ResponseCache.Key(name, 16, 1);
+            cache.put(key, buildTxtResponse(name, 3000));
+            cache.get(key);
+            assertNotNull("New answers should still be cached", cache.get(key));
+        }
+        assertTrue("Cache should stay within its byte budget", cache.weightedSize() <= budget);
+        System.out.println(ANSI_GREEN + "Success: A size class that runs out of slabs keeps caching." + ANSI_RESET);
+    }
+
+    @Test
+    public void testSlabEvictionSparesProtected() {
+        System.out.println("\nStarting test: Evicting for a full size class");
+
+        cache = new ResponseCache(2 * 1024 * 1024, true);
+        cache.put(new ResponseCache.Key("medium.example.com", 16, 1), buildTxtResponse("medium.example.com", 1500));
+        for (int i = 0; i < 256; i++) { // The one slab of 4 KB chunks, with the budget spent on slabs
+            String name = "large" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 16, 1), buildTxtResponse(name, 3000));
+        }
+        for (int i = 0; i < 200; i++) { // Small answers push the last of them out of the window
+            String name = "small" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 16, 1), buildTxtResponse(name, 100));
+        }
+        for (int i = 0; i < 256; i++) { // A hit in probation moves them on to the protected segment
+            assertNotNull(cache.get(new ResponseCache.Key("large" + i + ".example.com", 16, 1)));
+        }
+        for (int i = 0; i < 20; i++) {
+            String name = "new" + i + ".example.com";
+            cache.put(new ResponseCache.Key(name, 16, 1), buildTxtResponse(name, 3000));
+        }
+        for (int i = 0; i < 256; i++) {
+            assertNotNull("Protected entries are never taken for room",
+                    cache.get(new ResponseCache.Key("large" + i + ".example.com", 16, 1)));
+        }
+        System.out.println(ANSI_GREEN + "Success: A full size class only evicts from probation and the window."
+                + ANSI_RESET);
+    }
+
+    @Test
+    public void testNegativeAnswers() {
+        System.out.println("\nStarting test: Negative caching");
+
+        byte[] nxdomain = buildNegativeResponse("missing.example.com", 1, 3, 3600, 300);
+        assertEquals("Negative TTL should be min(SOA TTL, MINIMUM)", 300, ResponseCache.negativeTTL(nxdomain));
+        cache.put(new ResponseCache.Key("missing.example.com", 1, 1), nxdomain);
+        assertNotNull("NXDOMAIN should answer every type for the name",
+                cache.get(new ResponseCache.Key("missing.example.com", 15, 1)));
+
+        cache.put(new ResponseCache.Key("example.com", 28, 1), buildNegativeResponse("example.com", 28, 0, 60, 900));
+        assertNotNull("NODATA should be cached for its type", cache.get(new ResponseCache.Key("example.com", 28, 1)));
+        assertNull("NODATA must not answer other types", cache.get(new ResponseCache.Key("example.com", 1, 1)));
+        System.out.println(ANSI_GREEN + "Success: NXDOMAIN and NODATA are cached per RFC 2308." + ANSI_RESET);
+    }
+
+    @Test
+    public void testNxdomainAfterCname() {
+        System.out.println("\nStarting test: NXDOMAIN at the end of a CNAME chain");
+
+        byte[] buffer = new byte[512];
+        int length = new DnsWriter().start(buffer, buffer.length).header(0x1234, 0x8183)
+                .question("alias.example.com", DnsMessage.TYPE_A, 1)
+                .beginRecord(DnsMessage.ANSWER, "alias.example.com", DnsMessage.TYPE_CNAME, 1, 120)
+                .name("gone.example.net").endRecord()
+                .beginRecord(DnsMessage.AUTHORITY, "example.net", DnsMessage.TYPE_SOA, 1, 3600)
+                .name("ns.example.net").name("hostmaster.example.net")
+                .putInt(1).putInt(7200).putInt(3600).putInt(1209600).putInt(900).endRecord()
+                .finish();
+        byte[] response = Arrays.copyOf(buffer, length);
+        cache.put(new ResponseCache.Key("alias.example.com", DnsMessage.TYPE_A, 1), response);
+
+        byte[] cached = cache.get(new ResponseCache.Key("alias.example.com", DnsMessage.TYPE_A, 1));
+        assertNotNull("Cached for the type asked", cached);
+        assertNull("The alias itself exists, so other types must not get NXDOMAIN",
+                cache.get(new ResponseCache.Key("alias.example.com", DnsMessage.TYPE_MX, 1)));
+        System.out.println(ANSI_GREEN + "Success: NXDOMAIN after a CNAME is cached per name and type." + ANSI_RESET);
+    }
+
+    @Test
+    public void testRefreshAheadAndServeStale() throws Exception {
+        System.out.println("\nStarting test: Refresh-ahead and serve-stale");
+
+        List<ResponseCache.Key> refreshed = new ArrayList<>();
+        cache.setRefresher(refreshed::add, 0.5);
+        cache.setMaxStale(60);
+        ResponseCache.Key key = new ResponseCache.Key("example.com", 1, 1);
+        cache.put(key, buildResponse("example.com", 1, 2));
+
+        Thread.sleep(1100);
+        byte[] query = buildResponse("example.com", 1);
+        ResponseCache.Key viewed = new ResponseCache.Key(NameKey.of(new DnsMessage().wrap(query, query.length), 12), 1, 1);
+        byte[] outbound = new byte[512];
+        cache.copyTo(viewed, outbound);
+        cache.copyTo(key, outbound);
+        assertEquals("A late hit should trigger exactly one refresh", 1, refreshed.size());
+        query[13] = 'x'; // The packet buffer is reused for the next query
+        assertEquals("The refresh must not see the reused packet", key, refreshed.get(0));
+
+        Thread.sleep(1000);
+        assertEquals("Expired entries are a miss", -1, cache.copyTo(key, outbound));
+        int length = cache.copyStaleTo(key, outbound);
+        assertTrue("Expired entry should still be served stale", length > 0);
+        int[] offsets = ResponseCache.ttlOffsets(Arrays.copyOf(outbound, length));
+        assertEquals("Stale answers carry a short TTL", ResponseCache.STALE_ANSWER_TTL,
+                ByteBuffer.wrap(outbound).getInt(offsets[0]));
+        System.out.println(ANSI_GREEN + "Success: Hot entries refresh early and expired ones are served stale." + ANSI_RESET);
+    }
+
+    // A negative response with just an SOA in the authority section
+    static byte[] buildNegativeResponse(String domain, int type, int rcode, long soaTTL, long minimum) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) (0x8180 | rcode));
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) type);
+        buffer.putShort((short) 1);
+
+        buffer.putShort((short) 0xC00C);
+        buffer.putShort((short) 6); // SOA
+        buffer.putShort((short) 1);
+        buffer.putInt((int) soaTTL);
+        buffer.putShort((short) 25);
+        buffer.put(new byte[] { 2, 'n', 's', 0 }); // MNAME
+        buffer.put(new byte[] { 0 }); // RNAME
+        buffer.putInt(1); // SERIAL
+        buffer.putInt(7200); // REFRESH
+        buffer.putInt(3600); // RETRY
+        buffer.putInt(1209600); // EXPIRE
+        buffer.putInt((int) minimum);
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // A response of about the given length, one TXT answer padding it out
+    static byte[] buildTxtResponse(String domain, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length + 64);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x8180);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) 16);
+        buffer.putShort((short) 1);
+
+        buffer.putShort((short) 0xC00C);
+        buffer.putShort((short) 16);
+        buffer.putShort((short) 1);
+        buffer.putInt(300);
+        int dataLength = Math.max(1, length - buffer.position() - 2);
+        buffer.putShort((short) dataLength);
+        buffer.put(new byte[dataLength]); // Empty strings
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    // A response with one answer per TTL, each pointing back at the question name
+    static byte[] buildResponse(String domain, int type, long... ttls) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) 0x1234);
+        buffer.putShort((short) 0x8180);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) ttls.length);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+
+        for (String label : domain.split("\\.")) {
+            buffer.put((byte) label.length());
+            buffer.put(label.getBytes());
+        }
+        buffer.put((byte) 0);
+        buffer.putShort((short) type);
+        buffer.putShort((short) 1);
+
+        for (int i = 0; i < ttls.length; i++) {
+            buffer.putShort((short) 0xC00C); // Pointer to the question name
+            buffer.putShort((short) type);
+            buffer.putShort((short) 1);
+            buffer.putInt((int) ttls[i]);
+            buffer.putShort((short) 4);
+            buffer.put(new byte[] { 10, 0, 0, (byte) (i + 1) });
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
@@ -0,0 +1,107 @@
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses which name server of a delegation to ask next. Keeps a smoothed
+ * round trip time per server address, inflated on every timeout, and picks the
+ * server with the lowest expected latency. A small share of picks go to a
+ * random server so penalised or unmeasured servers get re-measured.
+ */
+class ServerSelector {
+	private static final double SMOOTHING = 0.3; // Weight of the newest sample
+	private static final long MAX_RTT_MILLIS = 10000;
+	private static final long TIMEOUT_PENALTY_MILLIS = 1000;
+	private static final double EXPLORATION = 0.05;
+	private static final int MIN_TIMEOUT_MILLIS = 300;
+	private static final int MAX_TIMEOUT_MILLIS = 2000;
+
+	private static final class ServerStats {
+		volatile double srtt;
+		volatile int failures;
+
+		ServerStats(double srtt) {
+			this.srtt = srtt;
+		}
+	}
+
+	private final ConcurrentHashMap<InetAddress, ServerStats> servers = new ConcurrentHashMap<>();
+
+	/**
+	 * Pick the next server to try.
+	 *
+	 * @param candidates Addresses of every name server for the zone.
+	 * @param tried      Servers already tried for this hop, never picked again.
+	 * @return The chosen server, or null if every candidate has been tried.
+	 */
+	InetAddress select(List<InetAddress> candidates, Set<InetAddress> tried) {
+		int untried = 0;
+		for (InetAddress candidate : candidates) {
+			if (!tried.contains(candidate)) {
+				untried++;
+			}
+		}
+		if (untried == 0) {
+			return null;
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (untried > 1 && random.nextDouble() < EXPLORATION) {
+			int pick = random.nextInt(untried);
+			for (InetAddress candidate : candidates) {
+				if (!tried.contains(candidate) && pick-- == 0) {
+					return candidate;
+				}
+			}
+		}
+
+		InetAddress best = null;
+		double bestRtt = Double.MAX_VALUE;
+		for (InetAddress candidate : candidates) {
+			if (tried.contains(candidate)) {
+				continue;
+			}
+			// Servers never measured count as fastest so each one gets tried once
+			ServerStats stats = servers.get(candidate);
+			double rtt = stats == null ? 0 : stats.srtt;
+			if (rtt < bestRtt) {
+				best = candidate;
+				bestRtt = rtt;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return How long to wait for this server before moving on to the next one.
+	 */
+	int timeoutFor(InetAddress server) {
+		ServerStats stats = servers.get(server);
+		if (stats == null || stats.failures > 0) {
+			return MAX_TIMEOUT_MILLIS;
+		}
+		return (int) Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, stats.srtt * 4));
+	}
+
+	void recordResponse(InetAddress server, long rttMillis) {
+		ServerStats stats = servers.computeIfAbsent(server, s -> new ServerStats(rttMillis));
+		stats.srtt = stats.srtt * (1 - SMOOTHING) + rttMillis * SMOOTHING;
+		stats.failures = 0;
+	}
+
+	void recordTimeout(InetAddress server) {
+		ServerStats stats = servers.computeIfAbsent(server, s -> new ServerStats(0));
+		stats.srtt = Math.min(MAX_RTT_MILLIS, stats.srtt * 2 + TIMEOUT_PENALTY_MILLIS);
+		stats.failures++;
+	}
+
+	/**
+	 * @return The smoothed RTT of a server in milliseconds, or -1 if never measured.
+	 */
+	double smoothedRtt(InetAddress server) {
+		ServerStats stats = servers.get(server);
+		return stats == null ? -1 : stats.srtt;
+	}
+}
@@ -0,0 +1,282 @@
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Off-heap storage for cached wire responses. Memory is taken from the OS in
+ * 1 MB direct buffers ("slabs"), each cut into equal chunks of one size class.
+ * A stored message is identified by a single long handle holding its size
+ * class, chunk number and exact length, so the store itself keeps no object
+ * per message.
+ * <p>
+ * Slabs are not tied to a class for good. When a class runs out of chunks and
+ * the budget allows no new slab, a slab that another class has emptied is cut
+ * up again for it, so a change in the mix of response sizes does not leave
+ * memory stranded in classes nobody uses any more.
+ * <p>
+ * Reads take no lock. Each class publishes its slabs as a copy-on-write array,
+ * and a generation stamp bumped whenever a slab leaves the class tells a reader
+ * that what it copied may belong to another class by now.
+ */
+class SlabStore {
+	private static final int SLAB_SIZE = 1024 * 1024;
+	private static final int[] SIZE_CLASSES = { 64, 128, 256, 512, 1024, 2048, 4096 };
+
+	static final int MAX_MESSAGE_SIZE = SIZE_CLASSES[SIZE_CLASSES.length - 1];
+
+	private static final class SizeClass {
+		final int chunkSize;
+		final int chunksPerSlab;
+		volatile ByteBuffer[] slabs = new ByteBuffer[0]; // Copied on change; null where a slab went to another class
+		volatile int generation; // Bumped under the class lock when a slab leaves it
+		int slabCount; // Slabs given to the class, changed under the store's lock
+		int[] liveChunks = new int[4]; // Chunks handed out and not released, per slab
+		int[] freeChunks = new int[64]; // Stack of released chunk numbers
+		int freeCount;
+		int bumpSlab = -1; // The slab with chunks never handed out, or -1
+		int nextUnused; // Next never handed out chunk in bumpSlab
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerSlab = SLAB_SIZE / chunkSize;
+		}
+	}
+
+	private final SizeClass[] classes = new SizeClass[SIZE_CLASSES.length];
+	private final long maximumBytes;
+	private long allocatedBytes;
+
+	/**
+	 * @param maximumBytes Most off-heap memory to reserve. Each size class may
+	 *                     round this up by one slab.
+	 */
+	SlabStore(long maximumBytes) {
+		this.maximumBytes = maximumBytes;
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			classes[i] = new SizeClass(SIZE_CLASSES[i]);
+		}
+	}
+
+	/**
+	 * @return The off-heap bytes a message of this length will occupy, or -1 if
+	 *         it is too big to store.
+	 */
+	static int chunkSizeFor(int length) {
+		int index = classIndex(length);
+		return index < 0 ? -1 : SIZE_CLASSES[index];
+	}
+
+	/**
+	 * Copy a message into the store.
+	 *
+	 * @return A handle for the stored copy, or -1 if there is no room: the size
+	 *         class is full, the budget is spent and no other class has an empty
+	 *         slab to give up. Releasing a handle of the same class makes room.
+	 */
+	long store(byte[] data, int length) {
+		int index = classIndex(length);
+		if (index < 0) {
+			return -1;
+		}
+		SizeClass sizeClass = classes[index];
+
+		int chunk;
+		synchronized (sizeClass) {
+			chunk = take(sizeClass);
+			if (chunk >= 0) {
+				slabOf(sizeClass, chunk).put(offsetOf(sizeClass, chunk), data, 0, length);
+			}
+		}
+		if (chunk < 0) {
+			// Out of chunks. Class locks are never held while taking the store's own lock,
+			// which findSlab needs to look through the other classes.
+			ByteBuffer slab = findSlab(sizeClass);
+			if (slab == null) {
+				return -1;
+			}
+			synchronized (sizeClass) {
+				addSlab(sizeClass, slab);
+				chunk = take(sizeClass);
+				slabOf(sizeClass, chunk).put(offsetOf(sizeClass, chunk), data, 0, length);
+			}
+		}
+		return ((long) index << 56) | ((long) chunk << 16) | length;
+	}
+
+	/**
+	 * Bulk copy a stored message into a caller's buffer.
+	 *
+	 * @return The number of bytes copied, or -1 if the handle was released and
+	 *         its slab has gone to another class, before or during the copy.
+	 */
+	int read(long handle, byte[] destination, int destinationOffset) {
+		SizeClass sizeClass = classes[(int) (handle >>> 56)];
+		int chunk = (int) (handle >>> 16);
+		int length = (int) (handle & 0xFFFF);
+		int generation = sizeClass.generation;
+		ByteBuffer slab = slabOf(sizeClass, chunk);
+		if (slab == null) {
+			return -1;
+		}
+		slab.get(offsetOf(sizeClass, chunk), destination, destinationOffset, length);
+		VarHandle.loadLoadFence(); // The copy is done before the stamp is checked again
+		return sizeClass.generation == generation ? length : -1;
+	}
+
+	/**
+	 * Return a message's chunk to its size class. The caller must make sure no
+	 * reader can still be copying from the handle, or will notice if one was.
+	 */
+	void release(long handle) {
+		SizeClass sizeClass = classes[(int) (handle >>> 56)];
+		int chunk = (int) (handle >>> 16);
+		synchronized (sizeClass) {
+			pushFree(sizeClass, chunk);
+			sizeClass.liveChunks[chunk / sizeClass.chunksPerSlab]--;
+		}
+	}
+
+	static int lengthOf(long handle) {
+		return (int) (handle & 0xFFFF);
+	}
+
+	/**
+	 * @return True if releasing the handle frees a chunk a message of this length
+	 *         could be stored in.
+	 */
+	static boolean sameClass(long handle, int length) {
+		return (int) (handle >>> 56) == classIndex(length);
+	}
+
+	synchronized long allocatedBytes() {
+		return allocatedBytes;
+	}
+
+	// Next free chunk of the class, or -1 if it needs another slab
+	private static int take(SizeClass sizeClass) {
+		int chunk;
+		if (sizeClass.freeCount > 0) {
+			chunk = sizeClass.freeChunks[--sizeClass.freeCount];
+		} else if (sizeClass.bumpSlab >= 0) {
+			chunk = sizeClass.nextUnused++;
+			if (sizeClass.nextUnused == (sizeClass.bumpSlab + 1) * sizeClass.chunksPerSlab) {
+				sizeClass.bumpSlab = -1;
+			}
+		} else {
+			return -1;
+		}
+		sizeClass.liveChunks[chunk / sizeClass.chunksPerSlab]++;
+		return chunk;
+	}
+
+	private static void addSlab(SizeClass sizeClass, ByteBuffer slab) {
+		if (sizeClass.bumpSlab >= 0) {
+			// Another thread added a slab meanwhile; keep its unused chunks reachable
+			while (sizeClass.bumpSlab >= 0) {
+				int chunk = take(sizeClass);
+				sizeClass.liveChunks[chunk / sizeClass.chunksPerSlab]--;
+				pushFree(sizeClass, chunk);
+			}
+		}
+		ByteBuffer[] slabs = sizeClass.slabs;
+		int slot = 0;
+		while (slot < slabs.length && slabs[slot] != null) {
+			slot++;
+		}
+		slabs = Arrays.copyOf(slabs, Math.max(slabs.length, slot + 1));
+		slabs[slot] = slab;
+		sizeClass.slabs = slabs; // Published whole, for readers that take no lock
+		if (slot == sizeClass.liveChunks.length) {
+			sizeClass.liveChunks = Arrays.copyOf(sizeClass.liveChunks, slot * 2);
+		}
+		sizeClass.bumpSlab = slot;
+		sizeClass.nextUnused = slot * sizeClass.chunksPerSlab;
+	}
+
+	private static void pushFree(SizeClass sizeClass, int chunk) {
+		if (sizeClass.freeCount == sizeClass.freeChunks.length) {
+			int[] grown = new int[sizeClass.freeCount * 2];
+			System.arraycopy(sizeClass.freeChunks, 0, grown, 0, sizeClass.freeCount);
+			sizeClass.freeChunks = grown;
+		}
+		sizeClass.freeChunks[sizeClass.freeCount++] = chunk;
+	}
+
+	/**
+	 * A slab for a class that is out of chunks: a new one while the budget allows,
+	 * or the class has none yet, else an empty one taken from another class.
+	 *
+	 * @return The slab, or null if there is none to be had.
+	 */
+	private synchronized ByteBuffer findSlab(SizeClass starved) {
+		ByteBuffer slab = null;
+		if (starved.slabCount == 0 || allocatedBytes + SLAB_SIZE <= maximumBytes) {
+			allocatedBytes += SLAB_SIZE;
+			slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		} else {
+			for (int i = 0; i < classes.length && slab == null; i++) {
+				if (classes[i] != starved) {
+					slab = reclaimEmptySlab(classes[i]);
+				}
+			}
+		}
+		if (slab != null) {
+			starved.slabCount++;
+		}
+		return slab;
+	}
+
+	// Take away a slab none of whose chunks are in use, leaving the class at least one
+	private static ByteBuffer reclaimEmptySlab(SizeClass sizeClass) {
+		synchronized (sizeClass) {
+			if (sizeClass.slabCount < 2) {
+				return null;
+			}
+			ByteBuffer[] slabs = sizeClass.slabs;
+			for (int slot = 0; slot < slabs.length; slot++) {
+				ByteBuffer slab = slabs[slot];
+				if (slab == null || sizeClass.liveChunks[slot] != 0) {
+					continue;
+				}
+				// Forget its chunks: drop them from the free stack, and stop bumping into it
+				int kept = 0;
+				for (int i = 0; i < sizeClass.freeCount; i++) {
+					int chunk = sizeClass.freeChunks[i];
+					if (chunk / sizeClass.chunksPerSlab != slot) {
+						sizeClass.freeChunks[kept++] = chunk;
+					}
+				}
+				sizeClass.freeCount = kept;
+				if (sizeClass.bumpSlab == slot) {
+					sizeClass.bumpSlab = -1;
+				}
+				slabs = slabs.clone();
+				slabs[slot] = null;
+				sizeClass.slabs = slabs;
+				sizeClass.generation++; // Before the slab is handed on and written to
+				sizeClass.slabCount--;
+				return slab;
+			}
+			return null;
+		}
+	}
+
+	private static int classIndex(int length) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (length <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static ByteBuffer slabOf(SizeClass sizeClass, int chunk) {
+		int slot = chunk / sizeClass.chunksPerSlab;
+		ByteBuffer[] slabs = sizeClass.slabs;
+		return slot < slabs.length ? slabs[slot] : null;
+	}
+
+	private static int offsetOf(SizeClass sizeClass, int chunk) {
+		return (chunk % sizeClass.chunksPerSlab) * sizeClass.chunkSize;
+	}
+}
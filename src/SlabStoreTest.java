@@ -0,0 +1,103 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SlabStoreTest {
+
+    private static final int MB = 1024 * 1024;
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Test
+    public void testSizeClasses() {
+        System.out.println("\nStarting test: Size classes");
+
+        assertEquals("Smallest class", 64, SlabStore.chunkSizeFor(1));
+        assertEquals("Exact fit", 64, SlabStore.chunkSizeFor(64));
+        assertEquals("Next class up", 128, SlabStore.chunkSizeFor(65));
+        assertEquals("Largest class", 4096, SlabStore.chunkSizeFor(4096));
+        assertEquals("Too big to store", -1, SlabStore.chunkSizeFor(4097));
+
+        SlabStore store = new SlabStore(8 * MB);
+        assertEquals("Too big to store", -1, store.store(new byte[4097], 4097));
+        for (int length : new int[] { 12, 64, 100, 300, 3000, 4096 }) {
+            byte[] message = message(length, length);
+            long handle = store.store(message, length);
+            assertTrue("Should be stored", handle >= 0);
+            assertEquals("Exact length kept", length, SlabStore.lengthOf(handle));
+            byte[] read = new byte[4096];
+            assertEquals("Whole message read", length, store.read(handle, read, 0));
+            assertArrayEquals("Same bytes back", message, Arrays.copyOf(read, length));
+        }
+        assertEquals("One slab for each of the four classes used", 4L * MB, store.allocatedBytes());
+        System.out.println(ANSI_GREEN + "Success: Messages are stored by size class at their exact length." + ANSI_RESET);
+    }
+
+    @Test
+    public void testFullClass() {
+        System.out.println("\nStarting test: A full size class");
+
+        SlabStore store = new SlabStore(2 * MB);
+        long[] large = new long[512]; // Two slabs of 4 KB chunks
+        for (int i = 0; i < large.length; i++) {
+            large[i] = store.store(message(4000, i), 4000);
+            assertTrue("Within the budget", large[i] >= 0);
+        }
+        assertEquals("The budget is spent", -1, store.store(message(4000, 0), 4000));
+        assertTrue("Every class still gets its first slab", store.store(message(2000, 0), 2000) >= 0);
+        for (int i = 1; i < 512; i++) {
+            assertTrue("The first slab has room", store.store(message(2000, i), 2000) >= 0);
+        }
+        assertEquals("No slab to spare while every chunk is in use", -1, store.store(message(2000, 0), 2000));
+        assertEquals(3L * MB, store.allocatedBytes());
+
+        // Empty one of the large class's slabs: it is cut up for the starved class
+        for (int i = 0; i < 256; i++) {
+            store.release(large[i]);
+        }
+        long moved = store.store(message(2000, 7), 2000);
+        assertTrue("Should take over the empty slab", moved >= 0);
+        assertEquals("No new memory", 3L * MB, store.allocatedBytes());
+        byte[] read = new byte[4096];
+        store.read(moved, read, 0);
+        assertArrayEquals(message(2000, 7), Arrays.copyOf(read, 2000));
+        assertEquals("Its slab is gone from the large class", -1, store.read(large[0], read, 0));
+        byte[] kept = new byte[4096];
+        assertEquals(4000, store.read(large[300], kept, 0));
+        assertArrayEquals("The other slab is untouched", message(4000, 300), Arrays.copyOf(kept, 4000));
+        assertEquals("The large class is down to one slab", -1, store.store(message(4000, 0), 4000));
+        System.out.println(ANSI_GREEN + "Success: Full classes refuse, and empty slabs move." + ANSI_RESET);
+    }
+
+    @Test
+    public void testFreedChunkIsReused() {
+        System.out.println("\nStarting test: Reusing a freed chunk");
+
+        SlabStore store = new SlabStore(MB);
+        long first = store.store(message(100, 1), 100);
+        long other = store.store(message(100, 2), 100);
+        store.release(first);
+        long reused = store.store(message(90, 3), 90);
+        assertEquals("Same chunk", first & ~0xFFFFL, reused & ~0xFFFFL);
+        assertEquals("New length", 90, SlabStore.lengthOf(reused));
+        assertEquals("No new memory", MB, store.allocatedBytes());
+
+        byte[] read = new byte[4096];
+        store.read(reused, read, 0);
+        assertArrayEquals("Holds the new message", message(90, 3), Arrays.copyOf(read, 90));
+        store.read(other, read, 0);
+        assertArrayEquals("Neighbour untouched", message(100, 2), Arrays.copyOf(read, 100));
+        System.out.println(ANSI_GREEN + "Success: Released chunks are handed out again." + ANSI_RESET);
+    }
+
+    private static byte[] message(int length, int seed) {
+        byte[] message = new byte[length];
+        for (int i = 0; i < length; i++) {
+            message[i] = (byte) (seed * 31 + i);
+        }
+        return message;
+    }
+}
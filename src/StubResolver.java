@@ -1,5 +1,6 @@
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 interface StubResolverInterface {
 	void setNameServer(InetAddress ipAddress, int port);
@@ -15,6 +16,7 @@ public class StubResolver implements StubResolverInterface {
 
 	private InetAddress dnsServer;
 	private int dnsPort;
+	private int ednsPayloadSize = Edns.DEFAULT_PAYLOAD_SIZE;
 
 	@Override
 	public void setNameServer(InetAddress ipAddress, int port) {
@@ -22,6 +24,18 @@ public class StubResolver implements StubResolverInterface {
 		this.dnsPort = port;
 	}
 
+	/**
+	 * Set the UDP payload size advertised in an EDNS(0) OPT record with each query.
+	 *
+	 * @param payloadSize Between 512 and 4096, or 0 to send plain queries.
+	 */
+	public void setEdnsPayloadSize(int payloadSize) {
+		if (payloadSize != 0 && (payloadSize < Edns.MIN_PAYLOAD_SIZE || payloadSize > 4096)) {
+			throw new IllegalArgumentException("payloadSize must be 0 or between 512 and 4096");
+		}
+		this.ednsPayloadSize = payloadSize;
+	}
+
 	@Override
 	public InetAddress recursiveResolveAddress(String domainName) throws Exception {
 		if (domainName == null || domainName.trim().isEmpty()) {
@@ -30,61 +44,57 @@ public class StubResolver implements StubResolverInterface {
 		if (domainName.matches(".*[\\x00-\\x1F].*")) {  // Regex to check for control characters
 			throw new IllegalArgumentException("Invalid or malicious query detected: Malformed domain name.");
 		}
-		ByteBuffer buffer = recursiveResolve(domainName, 1); // Type A
-		if (buffer == null) {
+		DnsMessage message = recursiveResolve(domainName, DnsMessage.TYPE_A);
+		if (message == null) {
 			throw new Exception("DNS resolution failed: No response received");
 		}
-		return parseInetAddressFromBuffer(buffer); // Parse and return the InetAddress
+		return parseInetAddress(message); // Parse and return the InetAddress
 	}
 
 	@Override
 	public String recursiveResolveText(String domainName) throws Exception {
-		ByteBuffer buffer = recursiveResolve(domainName, 16); // Type TXT
-		if (buffer == null) {
+		DnsMessage message = recursiveResolve(domainName, DnsMessage.TYPE_TXT);
+		if (message == null) {
 			throw new Exception("DNS resolution failed: No response received for TXT record");
 		}
-		return extractTextFromDNSResponse(buffer);
+		return extractText(message);
 	}
 
 	@Override
 	public String recursiveResolveName(String domainName, int type) throws Exception {
-		ByteBuffer buffer = recursiveResolve(domainName, type);
-		if (buffer == null) {
+		DnsMessage message = recursiveResolve(domainName, type);
+		if (message == null) {
 			throw new Exception("DNS resolution failed: No response received for record type: " + type);
 		}
-		return extractDomainName(buffer);
+		return extractDomainName(message);
 	}
 
-	private ByteBuffer recursiveResolve(String domainName, int recordType) throws Exception {
-		byte[] queryPacket = buildDNSQuery(domainName, recordType);
-		DatagramSocket socket = new DatagramSocket();
-		socket.setSoTimeout(5000); // 5 seconds timeout
-
-		DatagramPacket sendPacket = new DatagramPacket(queryPacket, queryPacket.length, dnsServer, dnsPort);
-		socket.send(sendPacket);
-
-		byte[] responseBuffer = new byte[512];
-		DatagramPacket receivePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+	// Returns the response with its cursor on the first answer of the record type
+	private DnsMessage recursiveResolve(String domainName, int recordType) throws Exception {
+		byte[] queryPacket = Edns.withOpt(buildDNSQuery(domainName, recordType), ednsPayloadSize);
+		byte[] response;
 		try {
-			socket.receive(receivePacket);
+			response = UpstreamTransport.shared().exchange(queryPacket, queryPacket.length, dnsServer, dnsPort, 5000); // 5 seconds timeout
+			if (ednsPayloadSize > 0 && Edns.rcode(response, response.length) == Edns.RCODE_FORMERR) {
+				// Server does not understand EDNS, ask again without it
+				queryPacket = buildDNSQuery(domainName, recordType);
+				response = UpstreamTransport.shared().exchange(queryPacket, queryPacket.length, dnsServer, dnsPort, 5000);
+			}
 		} catch (SocketTimeoutException e) {
 			throw new Exception("DNS server timed out");
-		} finally {
-			socket.close();
 		}
-
-		ByteBuffer buffer = ByteBuffer.wrap(responseBuffer);
-		int responseCode = (buffer.getShort(2) & 0xF);
+		DnsMessage message = new DnsMessage().wrap(response, response.length);
+		int responseCode = message.rcode();
 		if (responseCode != 0) {
 			throw new Exception("DNS query failed with response code: " + responseCode);
 		}
-		if (!isExpectedTypeInResponse(buffer, recordType)) {
+		if (!message.hasRecord(DnsMessage.ANSWER, recordType)) {
 			throw new Exception("No relevant answer found in DNS response for record type: " + recordType);
 		}
-		return buffer;
+		return message;
 	}
 
-	private byte[] buildDNSQuery(String domainName, int recordType) {
+	byte[] buildDNSQuery(String domainName, int recordType) {
 		ByteBuffer buffer = ByteBuffer.allocate(512);
 		buffer.putShort((short) 0x1234); // Transaction ID
 		buffer.putShort((short) 0x0100); // Flags: standard query with recursion desired
@@ -101,112 +111,45 @@ public class StubResolver implements StubResolverInterface {
 		buffer.putShort((short) recordType); // Record type (e.g., A, TXT, MX, etc.)
 		buffer.putShort((short) 1); // Class: IN (Internet)
 
-		return buffer.array();
+		return Arrays.copyOf(buffer.array(), buffer.position());
 	}
 
-	private boolean isExpectedTypeInResponse(ByteBuffer buffer, int expectedType) throws Exception {
-		buffer.position(12); // Skip DNS header
-
-		while (buffer.get() != 0) { // Skip question section
-			// Skip domain name in question
-		}
-		buffer.position(buffer.position() + 4); // Skip type and class in question
-
-		// Parse the answer section
-		while (buffer.hasRemaining()) {
-			buffer.getShort(); // Skip name pointer
-			int type = buffer.getShort();
-			buffer.getShort(); // Class
-			buffer.getInt(); // TTL
-			int dataLength = buffer.getShort();
-
-			if (dataLength < 0 || dataLength > buffer.remaining()) {
-				throw new IllegalArgumentException("Data length exceeds buffer limit or is invalid: " + dataLength);
+	InetAddress parseInetAddress(DnsMessage message) throws Exception {
+		do {
+			if (message.rdataLength() == 4) { // IPv4 address
+				return message.address();
 			}
-
-			if (type == expectedType) {
-				return true; // Found the expected type
-			} else {
-				buffer.position(buffer.position() + dataLength); // Skip data section of the record
-			}
-		}
-		return false; // No relevant answer found
-	}
-
-	private InetAddress parseInetAddressFromBuffer(ByteBuffer buffer) throws Exception {
-		buffer.position(12); // Start parsing after the DNS header and question section
-		while (buffer.get() != 0) { // Skip the question section
-			// Skip domain name in the question
-		}
-		buffer.position(buffer.position() + 4); // Skip the question's type and class
-
-		while (buffer.hasRemaining()) {
-			buffer.getShort(); // Skip name pointer
-			int type = buffer.getShort(); // Record type
-			buffer.getShort(); // Class
-			buffer.getInt(); // TTL
-			int dataLength = buffer.getShort() & 0xFFFF; // Data length
-
-			if (type == 1 && dataLength == 4) { // Type A and data length is 4 bytes
-				byte[] ipBytes = new byte[4];
-				buffer.get(ipBytes); // Extract the IP address bytes
-				return InetAddress.getByAddress(ipBytes);
-			} else {
-				buffer.position(buffer.position() + dataLength); // Skip irrelevant data
-			}
-		}
+		} while (message.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
 
 		throw new Exception("No A record found in the DNS response");
 	}
 
-	private String extractDomainName(ByteBuffer buffer) {
+	// The name in the answer's RDATA, in dotted form with a trailing dot
+	private String extractDomainName(DnsMessage message) {
+		int offset = message.rdataNameOffset();
+		if (offset < 0) {
+			offset = message.rdataOffset(); // Not a known name type, read RDATA as a name
+		}
 		StringBuilder domainName = new StringBuilder();
-		while (true) {
-			byte length = buffer.get();
-			if (length == 0)
-				break;
-			if ((length & 0xC0) == 0xC0) { // Name compression
-				int pointer = ((length & 0x3F) << 8) | (buffer.get() & 0xFF);
-				extractDomainNameFromPointer(buffer, pointer, domainName);
-				break;
-			} else {
-				for (int i = 0; i < length; i++) {
-					domainName.append((char) buffer.get());
-				}
-				domainName.append('.');
-			}
+		if (!message.appendName(offset, domainName)) {
+			return null;
+		}
+		if (domainName.length() > 0) {
+			domainName.append('.');
 		}
 		return domainName.toString();
 	}
 
-	private void extractDomainNameFromPointer(ByteBuffer buffer, int pointer, StringBuilder domainName) {
-		int originalPosition = buffer.position();
-		buffer.position(pointer);
-		while (true) {
-			byte length = buffer.get();
-			if (length == 0)
-				break;
-			if ((length & 0xC0) == 0xC0) { // Compression pointer
-				int nestedPointer = ((length & 0x3F) << 8) | (buffer.get() & 0xFF);
-				extractDomainNameFromPointer(buffer, nestedPointer, domainName);
-				break;
-			} else {
-				for (int i = 0; i < length; i++) {
-					domainName.append((char) buffer.get());
-				}
-				domainName.append('.');
-			}
+	// The first character string of the TXT record
+	private String extractText(DnsMessage message) {
+		if (message.rdataLength() == 0) {
+			return null;
 		}
-		buffer.position(originalPosition); // Restore buffer position
-	}
-
-	private String extractTextFromDNSResponse(ByteBuffer buffer) {
-		if (buffer != null && buffer.hasRemaining()) {
-			int length = buffer.get() & 0xFF;
-			byte[] textBytes = new byte[length];
-			buffer.get(textBytes);
-			return new String(textBytes);
+		int length = Math.min(message.getByte(message.rdataOffset()), message.rdataLength() - 1);
+		byte[] textBytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			textBytes[i] = (byte) message.getByte(message.rdataOffset() + 1 + i);
 		}
-		return null;
+		return new String(textBytes);
 	}
 }
@@ -0,0 +1,134 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hashed timer wheel for the many short timeouts of outstanding upstream
+ * queries. Timeouts are dropped into one of a ring of buckets by deadline and a
+ * single thread walks the ring one tick at a time, so scheduling and cancelling
+ * are O(1) and no thread sleeps per query. Tasks run on the wheel thread and
+ * must be short: completing a future, not doing its follow-up work.
+ */
+class TimerWheel {
+	private static final long TICK_MILLIS = 10;
+	private static final int BUCKETS = 512; // Power of two, one lap is about 5 seconds
+
+	private static volatile TimerWheel shared;
+
+	/**
+	 * A scheduled task. Cancelling is cheap and only marks it; the wheel drops
+	 * it when its bucket comes round.
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline; // In ticks since the wheel started
+		private final AtomicBoolean done = new AtomicBoolean();
+		private Timeout next; // Bucket list, only touched by the wheel thread
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return True if the task had not run yet and now never will.
+		 */
+		boolean cancel() {
+			return done.compareAndSet(false, true);
+		}
+	}
+
+	private final Timeout[] buckets = new Timeout[BUCKETS];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final long startNanos = System.nanoTime();
+	private long tick; // Next tick to expire, only touched by the wheel thread
+
+	/**
+	 * @return The process-wide wheel, started on first use.
+	 */
+	static TimerWheel shared() {
+		TimerWheel wheel = shared;
+		if (wheel == null) {
+			synchronized (TimerWheel.class) {
+				wheel = shared;
+				if (wheel == null) {
+					wheel = new TimerWheel();
+					shared = wheel;
+				}
+			}
+		}
+		return wheel;
+	}
+
+	TimerWheel() {
+		Thread worker = new Thread(this::run, "dns-timer-wheel");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Run a task once, after a delay. It may run up to one tick late.
+	 */
+	Timeout schedule(Runnable task, long delayMillis) {
+		long deadline = (System.nanoTime() - startNanos) / 1000000 + Math.max(0, delayMillis);
+		Timeout timeout = new Timeout(task, (deadline + TICK_MILLIS - 1) / TICK_MILLIS);
+		added.add(timeout);
+		return timeout;
+	}
+
+	private void run() {
+		while (true) {
+			long now = (System.nanoTime() - startNanos) / 1000000 / TICK_MILLIS;
+			while (tick <= now) {
+				transferAdded();
+				expire(tick);
+				tick++;
+			}
+			try {
+				Thread.sleep(TICK_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.done.get()) {
+				continue;
+			}
+			// Overdue timeouts go in the current bucket so this tick expires them
+			int bucket = (int) (Math.max(timeout.deadline, tick) & (BUCKETS - 1));
+			timeout.next = buckets[bucket];
+			buckets[bucket] = timeout;
+		}
+	}
+
+	private void expire(long currentTick) {
+		int bucket = (int) (currentTick & (BUCKETS - 1));
+		Timeout previous = null;
+		Timeout timeout = buckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			boolean due = timeout.deadline <= currentTick;
+			if (due || timeout.done.get()) {
+				// Unlink: cancelled, or due now
+				if (previous == null) {
+					buckets[bucket] = next;
+				} else {
+					previous.next = next;
+				}
+				if (due && timeout.done.compareAndSet(false, true)) {
+					try {
+						timeout.task.run();
+					} catch (RuntimeException e) {
+						Log.error("Timer task failed: {}", e);
+					}
+				}
+			} else {
+				previous = timeout; // Due on a later lap
+			}
+			timeout = next;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimerWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final long LAP_MILLIS = 512 * TICK_MILLIS;
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Test
+    public void testCancel() throws Exception {
+        System.out.println("\nStarting test: Cancelling a timeout");
+
+        TimerWheel wheel = new TimerWheel();
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout cancelled = wheel.schedule(runs::incrementAndGet, 50);
+        assertTrue("Not run yet", cancelled.cancel());
+        assertFalse("Already cancelled", cancelled.cancel());
+
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout kept = wheel.schedule(fired::countDown, 100);
+        assertTrue("The later timeout still fires", fired.await(2, TimeUnit.SECONDS));
+        assertEquals("The cancelled one never ran", 0, runs.get());
+        assertFalse("Too late to cancel once run", kept.cancel());
+        System.out.println(ANSI_GREEN + "Success: Cancelled timeouts never run." + ANSI_RESET);
+    }
+
+    @Test
+    public void testFiresWithinOneTick() throws Exception {
+        System.out.println("\nStarting test: Timeout accuracy");
+
+        TimerWheel wheel = new TimerWheel();
+        long[] delays = { 0, 15, 50, 123, 400 };
+        AtomicLong[] firedAt = new AtomicLong[delays.length];
+        CountDownLatch fired = new CountDownLatch(delays.length);
+        long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            AtomicLong at = firedAt[i] = new AtomicLong();
+            wheel.schedule(() -> {
+                at.set(System.nanoTime());
+                fired.countDown();
+            }, delays[i]);
+        }
+        assertTrue("Every timeout fires", fired.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            long elapsed = (firedAt[i].get() - start) / 1000000;
+            // Deadlines are rounded to the millisecond, so a timeout may look 1 ms early
+            assertTrue("Not before its deadline: " + elapsed + " ms for " + delays[i], elapsed >= delays[i] - 1);
+            // One tick for the rounding up, one for the wheel thread's own sleep
+            assertTrue("Within a tick of its deadline: " + elapsed + " ms for " + delays[i],
+                    elapsed <= delays[i] + 2 * TICK_MILLIS + 5);
+        }
+        System.out.println(ANSI_GREEN + "Success: Timeouts fire on the tick after their deadline." + ANSI_RESET);
+    }
+
+    @Test
+    public void testLongerThanOneLap() throws Exception {
+        System.out.println("\nStarting test: Timeouts longer than a lap of the wheel");
+
+        TimerWheel wheel = new TimerWheel();
+        long start = System.nanoTime();
+        AtomicLong longFiredAt = new AtomicLong();
+        CountDownLatch longFired = new CountDownLatch(1);
+        // Both land in the same bucket, one lap apart
+        wheel.schedule(() -> {
+            longFiredAt.set(System.nanoTime());
+            longFired.countDown();
+        }, LAP_MILLIS + 300);
+        CountDownLatch shortFired = new CountDownLatch(1);
+        wheel.schedule(shortFired::countDown, 300);
+
+        assertTrue("The short timeout fires", shortFired.await(2, TimeUnit.SECONDS));
+        Thread.sleep(3 * TICK_MILLIS);
+        assertEquals("The long one waits for its own lap", 1, longFired.getCount());
+        assertTrue("The long timeout fires", longFired.await(LAP_MILLIS + 2000, TimeUnit.MILLISECONDS));
+        long elapsed = (longFiredAt.get() - start) / 1000000;
+        assertTrue("Not a lap early: " + elapsed + " ms", elapsed >= LAP_MILLIS + 300 - 1);
+        assertTrue("On time: " + elapsed + " ms", elapsed <= LAP_MILLIS + 300 + 2 * TICK_MILLIS + 5);
+        System.out.println(ANSI_GREEN + "Success: Long timeouts wrap round the wheel." + ANSI_RESET);
+    }
+}
@@ -0,0 +1,285 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Outbound UDP transport shared by everything that talks to upstream servers.
+ * A fixed pool of channels, each bound to a kernel-chosen random port, stays
+ * open for the life of the process. Every query gets a random transaction ID
+ * that is free on its channel, and one receive loop hands each response to the
+ * query it belongs to by matching channel, ID, source address and question.
+ */
+class UpstreamTransport {
+	private static final int DEFAULT_CHANNELS = 4;
+	private static final int MAX_DATAGRAM = 65535;
+
+	private static volatile UpstreamTransport shared;
+
+	private static final class Pending {
+		final InetSocketAddress server;
+		final byte[] query;
+		final int questionEnd;
+		final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+		Pending(InetSocketAddress server, byte[] query, int questionEnd) {
+			this.server = server;
+			this.query = query;
+			this.questionEnd = questionEnd;
+		}
+	}
+
+	private final DatagramChannel[] channels;
+	// One slot per transaction ID per channel
+	private final List<AtomicReferenceArray<Pending>> pending;
+	private final Selector selector;
+	private final TimerWheel timers = TimerWheel.shared();
+	private final ExecutorService tcpExecutor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "dns-upstream-tcp");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * @return The process-wide transport, opened on first use.
+	 */
+	static UpstreamTransport shared() throws IOException {
+		UpstreamTransport transport = shared;
+		if (transport == null) {
+			synchronized (UpstreamTransport.class) {
+				transport = shared;
+				if (transport == null) {
+					transport = new UpstreamTransport(DEFAULT_CHANNELS);
+					shared = transport;
+				}
+			}
+		}
+		return transport;
+	}
+
+	UpstreamTransport(int channelCount) throws IOException {
+		channels = new DatagramChannel[channelCount];
+		pending = new ArrayList<>(channelCount);
+		selector = Selector.open();
+		for (int i = 0; i < channelCount; i++) {
+			channels[i] = DatagramChannel.open();
+			channels[i].bind(new InetSocketAddress(0)); // Port 0: the kernel picks a random ephemeral port
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ, i);
+			pending.add(new AtomicReferenceArray<>(65536));
+		}
+
+		Thread receiver = new Thread(this::receiveLoop, "dns-upstream-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+	}
+
+	/**
+	 * Send a query and wait for its response.
+	 *
+	 * @param query         The query message. Its ID is replaced; the array
+	 *                      itself is not modified.
+	 * @param length        Length of the query message.
+	 * @param timeoutMillis How long to wait for the response.
+	 * @return The response, exactly as long as the message.
+	 * @throws SocketTimeoutException If no matching response arrived in time.
+	 * @throws IOException            If the query could not be sent.
+	 */
+	byte[] exchange(byte[] query, int length, InetAddress server, int port, int timeoutMillis) throws IOException {
+		CompletableFuture<byte[]> response = send(query, length, new InetSocketAddress(server, port), timeoutMillis);
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			response.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + server.getHostAddress());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Send a query without waiting. The returned future completes with the
+	 * response, or fails with a SocketTimeoutException once the timeout passes.
+	 * Cancelling it frees the transaction ID.
+	 */
+	CompletableFuture<byte[]> send(byte[] query, int length, InetSocketAddress server, int timeoutMillis)
+			throws IOException {
+		int questionEnd = questionEnd(query, length);
+		if (questionEnd < 0) {
+			throw new IOException("Malformed query");
+		}
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int channel = random.nextInt(channels.length);
+		byte[] message = new byte[length];
+		System.arraycopy(query, 0, message, 0, length);
+		Pending request = new Pending(server, message, questionEnd);
+
+		// Claim a random free ID so responses cannot be guessed or confused
+		int id;
+		int attempts = 0;
+		do {
+			if (++attempts > 1000) {
+				throw new IOException("No free transaction IDs");
+			}
+			id = random.nextInt(65536);
+		} while (!pending.get(channel).compareAndSet(id, null, request));
+		message[0] = (byte) (id >> 8);
+		message[1] = (byte) id;
+
+		// The wheel fails the query if no answer comes, no thread waits for it
+		TimerWheel.Timeout timeout = timers.schedule(() -> request.response
+				.completeExceptionally(new SocketTimeoutException("Receive timed out")), timeoutMillis);
+		int slot = id;
+		request.response.whenComplete((r, t) -> {
+			timeout.cancel();
+			pending.get(channel).compareAndSet(slot, request, null);
+		});
+		try {
+			channels[channel].send(ByteBuffer.wrap(message), server);
+		} catch (IOException e) {
+			request.response.completeExceptionally(e);
+			throw e;
+		}
+		return request.response;
+	}
+
+	/**
+	 * Send a query over TCP, for answers that came back truncated over UDP. TCP
+	 * fallback is rare, so each exchange gets its own connection and runs on a
+	 * thread of its own rather than on the receive loop.
+	 */
+	CompletableFuture<byte[]> sendTcp(byte[] query, int length, InetSocketAddress server, int timeoutMillis) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return exchangeTcp(query, length, server, timeoutMillis);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, tcpExecutor);
+	}
+
+	private byte[] exchangeTcp(byte[] query, int length, InetSocketAddress server, int timeoutMillis)
+			throws IOException {
+		int questionEnd = questionEnd(query, length);
+		if (questionEnd < 0) {
+			throw new IOException("Malformed query");
+		}
+		int id = ThreadLocalRandom.current().nextInt(65536);
+		byte[] message = new byte[length + 2]; // Two byte length prefix (RFC 1035 4.2.2)
+		message[0] = (byte) (length >> 8);
+		message[1] = (byte) length;
+		System.arraycopy(query, 0, message, 2, length);
+		message[2] = (byte) (id >> 8);
+		message[3] = (byte) id;
+
+		try (Socket socket = new Socket()) {
+			socket.connect(server, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.getOutputStream().write(message);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			int responseLength = in.readUnsignedShort();
+			byte[] response = new byte[responseLength];
+			in.readFully(response);
+			int responseId = responseLength < 12 ? -1 : DnsMessage.getShort(response, 0);
+			if (responseId != id || !sameQuestion(query, questionEnd, response, responseLength)) {
+				throw new IOException("Mismatched TCP response from " + server.getAddress().getHostAddress());
+			}
+			return response;
+		}
+	}
+
+	private void receiveLoop() {
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					int index = (Integer) key.attachment();
+					while (true) {
+						buffer.clear();
+						InetSocketAddress source = (InetSocketAddress) channels[index].receive(buffer);
+						if (source == null) {
+							break;
+						}
+						dispatch(index, source, buffer.array(), buffer.position());
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return; // Closed
+			} catch (Exception e) {
+				Log.error("Upstream receive error: {}", e);
+			} finally {
+				// Also after a failure, or the same keys would be handled again
+				if (selector.isOpen()) {
+					selector.selectedKeys().clear();
+				}
+			}
+		}
+	}
+
+	private void dispatch(int channel, InetSocketAddress source, byte[] data, int length) {
+		if (length < 12) {
+			return;
+		}
+		int id = DnsMessage.getShort(data, 0);
+		Pending request = pending.get(channel).get(id);
+		// Anything that does not match what we sent is a late duplicate or a spoof
+		if (request == null || !request.server.equals(source) || !sameQuestion(request.query, request.questionEnd, data, length)) {
+			return;
+		}
+		byte[] response = new byte[length];
+		System.arraycopy(data, 0, response, 0, length);
+		request.response.complete(response);
+	}
+
+	private static boolean sameQuestion(byte[] query, int questionEnd, byte[] data, int length) {
+		if (length < questionEnd) {
+			return false;
+		}
+		for (int i = 4; i < questionEnd; i++) {
+			if (i >= 6 && i < 12) {
+				continue; // Record counts differ, QDCOUNT was checked at 4
+			}
+			if (DnsMessage.toLower(query[i]) != DnsMessage.toLower(data[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Offset just past the first question, or -1 if the query is malformed
+	private static int questionEnd(byte[] query, int length) {
+		int end = DnsMessage.skipName(query, DnsMessage.HEADER_LENGTH, length);
+		return end < 0 || end + 4 > length ? -1 : end + 4; // Type and class
+	}
+
+	void close() throws IOException {
+		tcpExecutor.shutdown();
+		selector.close();
+		for (DatagramChannel channel : channels) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,433 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A zone read from a master file in the format of RFC 1035 section 5:
+ * $ORIGIN and $TTL, @ for the origin, names relative to it, a blank owner for
+ * the previous one, parentheses across lines, ; comments and quoted strings.
+ * TTLs may use the usual units, as in 1h30m. Records are class IN of types A,
+ * AAAA, NS, CNAME, PTR, MX, TXT and SOA; anything else, $INCLUDE and wildcard
+ * owners are rejected with the line they are on, rather than served wrongly.
+ */
+final class ZoneFile {
+	/**
+	 * One resource record. RDATA is kept as the bytes before its names, the
+	 * names, and the bytes after them, so it can be written with the names
+	 * compressed.
+	 */
+	static final class Record {
+		final String owner; // Lowercase, no trailing dot
+		final int type;
+		final long ttl;
+		final byte[] prefix;
+		final String[] names;
+		final byte[] suffix;
+
+		Record(String owner, int type, long ttl, byte[] prefix, String[] names, byte[] suffix) {
+			this.owner = owner;
+			this.type = type;
+			this.ttl = ttl;
+			this.prefix = prefix;
+			this.names = names;
+			this.suffix = suffix;
+		}
+
+		Record withTtl(long newTtl) {
+			return new Record(owner, type, newTtl, prefix, names, suffix);
+		}
+
+		/**
+		 * @return The name an NS, CNAME, PTR or MX record points at, null for other types.
+		 */
+		String target() {
+			return type == DnsMessage.TYPE_SOA || names.length == 0 ? null : names[0];
+		}
+
+		void write(DnsWriter writer, int section) {
+			writer.beginRecord(section, owner, type, 1, ttl).putBytes(prefix, 0, prefix.length);
+			for (String name : names) {
+				writer.name(name);
+			}
+			writer.putBytes(suffix, 0, suffix.length).endRecord();
+		}
+	}
+
+	private static final byte[] NONE = new byte[0];
+	private static final String[] NO_NAMES = new String[0];
+
+	final String path;
+	final String origin; // Owner of the SOA record: the zone's apex
+	final Record soa;
+	final Record negativeSoa; // The SOA for NXDOMAIN and NODATA answers
+	final List<Record> records;
+
+	private ZoneFile(String path, String origin, Record soa, List<Record> records) {
+		this.path = path;
+		this.origin = origin;
+		this.soa = soa;
+		this.records = records;
+		// Negative answers live for the lesser of the SOA's TTL and MINIMUM (RFC 2308 section 5)
+		long minimum = DnsMessage.getInt(soa.suffix, 16);
+		this.negativeSoa = soa.withTtl(Math.min(soa.ttl, minimum));
+	}
+
+	/**
+	 * @param origin Origin to start with, null if the file sets one with $ORIGIN.
+	 */
+	static ZoneFile read(String path, String origin) throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+			return parse(path, in, origin);
+		}
+	}
+
+	static ZoneFile parse(String path, BufferedReader in, String origin) throws IOException {
+		if (origin != null) {
+			origin = absolute(path, 0, origin, "");
+		}
+		List<Record> records = new ArrayList<>();
+		Record soa = null;
+		long defaultTtl = -1;
+		String owner = null;
+		long lastTtl = -1;
+		for (Line line : tokenize(path, in)) {
+			List<Token> tokens = line.tokens;
+			String first = tokens.get(0).text;
+			if (!line.indented && first.startsWith("$")) {
+				if (tokens.size() < 2) {
+					throw error(path, line.number, first + " needs a value");
+				}
+				if (first.equalsIgnoreCase("$ORIGIN")) {
+					origin = absolute(path, line.number, tokens.get(1).text, origin == null ? "" : origin);
+				} else if (first.equalsIgnoreCase("$TTL")) {
+					defaultTtl = parseTtl(path, line.number, tokens.get(1).text);
+				} else {
+					throw error(path, line.number, first + " is not supported");
+				}
+				continue;
+			}
+
+			int i = 0;
+			if (!line.indented) {
+				if (origin == null && !first.endsWith(".")) {
+					throw error(path, line.number, "Relative name before any $ORIGIN");
+				}
+				owner = absolute(path, line.number, first, origin);
+				i++;
+			} else if (owner == null) {
+				throw error(path, line.number, "No owner name");
+			}
+			if (owner.startsWith("*")) {
+				throw error(path, line.number, "Wildcards are not supported");
+			}
+
+			// TTL and class come in either order before the type
+			long ttl = -1;
+			for (int fields = 0; fields < 2 && i < tokens.size(); fields++) {
+				String field = tokens.get(i).text;
+				if (Character.isDigit(field.charAt(0))) {
+					ttl = parseTtl(path, line.number, field);
+					i++;
+				} else if (field.equalsIgnoreCase("IN")) {
+					i++;
+				} else if (field.equalsIgnoreCase("CH") || field.equalsIgnoreCase("HS")
+						|| field.equalsIgnoreCase("CS")) {
+					throw error(path, line.number, "Only class IN is supported");
+				}
+			}
+			if (i >= tokens.size()) {
+				throw error(path, line.number, "No record type");
+			}
+			if (ttl < 0) {
+				ttl = defaultTtl >= 0 ? defaultTtl : lastTtl;
+			}
+			if (ttl < 0) {
+				throw error(path, line.number, "No TTL and no $TTL before it");
+			}
+			lastTtl = ttl;
+
+			Record record = record(path, line.number, owner, ttl, tokens, i, origin);
+			if (record.type == DnsMessage.TYPE_SOA) {
+				if (soa != null) {
+					throw error(path, line.number, "Second SOA record");
+				}
+				soa = record;
+			}
+			records.add(record);
+		}
+
+		if (soa == null) {
+			throw new IOException(path + ": No SOA record");
+		}
+		for (Record record : records) {
+			if (!DelegationCache.isWithin(record.owner, soa.owner)) {
+				throw new IOException(path + ": " + record.owner + " is outside the zone " + soa.owner);
+			}
+		}
+		return new ZoneFile(path, soa.owner, soa, records);
+	}
+
+	private static Record record(String path, int number, String owner, long ttl, List<Token> tokens, int i,
+			String origin) throws IOException {
+		String type = tokens.get(i++).text.toUpperCase(Locale.ROOT);
+		int fields = tokens.size() - i;
+		switch (type) {
+		case "A":
+			expect(path, number, type, fields, 1);
+			return new Record(owner, DnsMessage.TYPE_A, ttl, parseIpv4(path, number, tokens.get(i).text), NO_NAMES,
+					NONE);
+		case "AAAA":
+			expect(path, number, type, fields, 1);
+			return new Record(owner, 28, ttl, parseIpv6(path, number, tokens.get(i).text), NO_NAMES, NONE);
+		case "NS":
+		case "CNAME":
+		case "PTR":
+			expect(path, number, type, fields, 1);
+			int nameType = type.equals("NS") ? DnsMessage.TYPE_NS
+					: type.equals("CNAME") ? DnsMessage.TYPE_CNAME : DnsMessage.TYPE_PTR;
+			return new Record(owner, nameType, ttl, NONE,
+					new String[] { absolute(path, number, tokens.get(i).text, origin) }, NONE);
+		case "MX":
+			expect(path, number, type, fields, 2);
+			int preference = (int) parseNumber(path, number, tokens.get(i).text, 0xFFFF);
+			return new Record(owner, DnsMessage.TYPE_MX, ttl,
+					new byte[] { (byte) (preference >> 8), (byte) preference },
+					new String[] { absolute(path, number, tokens.get(i + 1).text, origin) }, NONE);
+		case "TXT":
+			if (fields < 1) {
+				throw error(path, number, "TXT needs at least one string");
+			}
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			for (; i < tokens.size(); i++) {
+				byte[] string = tokens.get(i).bytes;
+				if (string.length > 255) {
+					throw error(path, number, "TXT string longer than 255 bytes");
+				}
+				text.write(string.length);
+				text.write(string, 0, string.length);
+			}
+			return new Record(owner, DnsMessage.TYPE_TXT, ttl, text.toByteArray(), NO_NAMES, NONE);
+		case "SOA":
+			expect(path, number, type, fields, 7);
+			byte[] numbers = new byte[20];
+			for (int n = 0; n < 5; n++) {
+				String field = tokens.get(i + 2 + n).text;
+				long value = n == 0 ? parseNumber(path, number, field, 0xFFFFFFFFL) : parseTtl(path, number, field);
+				for (int b = 0; b < 4; b++) {
+					numbers[n * 4 + b] = (byte) (value >> (24 - 8 * b));
+				}
+			}
+			return new Record(owner, DnsMessage.TYPE_SOA, ttl, NONE,
+					new String[] { absolute(path, number, tokens.get(i).text, origin),
+							absolute(path, number, tokens.get(i + 1).text, origin) },
+					numbers);
+		default:
+			throw error(path, number, "Record type " + type + " is not supported");
+		}
+	}
+
+	private static void expect(String path, int number, String type, int fields, int wanted) throws IOException {
+		if (fields != wanted) {
+			throw error(path, number, type + " needs " + wanted + " field" + (wanted == 1 ? "" : "s"));
+		}
+	}
+
+	// Lowercase, no trailing dot, "" for the root
+	private static String absolute(String path, int number, String name, String origin) throws IOException {
+		String result;
+		if (name.equals("@")) {
+			if (origin == null) {
+				throw error(path, number, "@ before any $ORIGIN");
+			}
+			result = origin;
+		} else if (name.endsWith(".")) {
+			result = name.substring(0, name.length() - 1);
+		} else if (origin == null) {
+			throw error(path, number, "Relative name " + name + " before any $ORIGIN");
+		} else {
+			result = origin.isEmpty() ? name : name + "." + origin;
+		}
+		if (result.indexOf('\\') >= 0) {
+			throw error(path, number, "Escapes in names are not supported: " + name);
+		}
+		try {
+			NameKey.of(result); // Checks label and name lengths
+		} catch (IllegalArgumentException e) {
+			throw error(path, number, e.getMessage());
+		}
+		return result.toLowerCase(Locale.ROOT);
+	}
+
+	private static byte[] parseIpv4(String path, int number, String text) throws IOException {
+		String[] parts = text.split("\\.", -1);
+		if (parts.length != 4) {
+			throw error(path, number, "Bad IPv4 address " + text);
+		}
+		byte[] address = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			address[i] = (byte) parseNumber(path, number, parts[i], 255);
+		}
+		return address;
+	}
+
+	private static byte[] parseIpv6(String path, int number, String text) throws IOException {
+		if (text.indexOf(':') < 0 || !text.matches("[0-9A-Fa-f:.]+")) {
+			throw error(path, number, "Bad IPv6 address " + text); // Also keeps getByName from looking a name up
+		}
+		InetAddress address = InetAddress.getByName(text);
+		if (!(address instanceof Inet6Address)) {
+			throw error(path, number, "Bad IPv6 address " + text);
+		}
+		return address.getAddress();
+	}
+
+	private static long parseNumber(String path, int number, String text, long max) throws IOException {
+		if (text.isEmpty() || text.length() > 10 || !text.chars().allMatch(Character::isDigit)) {
+			throw error(path, number, "Bad number " + text);
+		}
+		long value = Long.parseLong(text);
+		if (value > max) {
+			throw error(path, number, "Number too large: " + text);
+		}
+		return value;
+	}
+
+	// Seconds, or a sum of numbers each with a unit: 1w2d3h4m5s
+	private static long parseTtl(String path, int number, String text) throws IOException {
+		long total = 0;
+		long value = -1;
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			if (Character.isDigit(c)) {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+				if (value > 0xFFFFFFFFL) {
+					throw error(path, number, "TTL too large: " + text);
+				}
+				continue;
+			}
+			long unit = c == 's' ? 1 : c == 'm' ? 60 : c == 'h' ? 3600 : c == 'd' ? 86400 : c == 'w' ? 604800 : -1;
+			if (unit < 0 || value < 0) {
+				throw error(path, number, "Bad TTL " + text);
+			}
+			total += value * unit;
+			value = -1;
+		}
+		total += Math.max(value, 0);
+		if (total > 0x7FFFFFFFL) {
+			throw error(path, number, "TTL too large: " + text);
+		}
+		return total;
+	}
+
+	private static IOException error(String path, int number, String message) {
+		return new IOException(path + ":" + number + ": " + message);
+	}
+
+	// Tokenizing
+
+	private static final class Token {
+		final String text;
+		final byte[] bytes; // For character strings: quotes removed, escapes applied
+
+		Token(String text, byte[] bytes) {
+			this.text = text;
+			this.bytes = bytes;
+		}
+	}
+
+	// One entry, which parentheses may spread over several lines of the file
+	private static final class Line {
+		final int number;
+		final boolean indented; // Starts with a blank, so the owner is the previous one
+		final List<Token> tokens = new ArrayList<>();
+
+		Line(int number, boolean indented) {
+			this.number = number;
+			this.indented = indented;
+		}
+	}
+
+	private static List<Line> tokenize(String path, BufferedReader in) throws IOException {
+		List<Line> lines = new ArrayList<>();
+		Line line = null;
+		int depth = 0; // Open parentheses
+		int number = 0;
+		String raw;
+		while ((raw = in.readLine()) != null) {
+			number++;
+			if (depth == 0) {
+				line = new Line(number, !raw.isEmpty() && Character.isWhitespace(raw.charAt(0)));
+			}
+			int i = 0;
+			while (i < raw.length()) {
+				char c = raw.charAt(i);
+				if (c == ';') {
+					break;
+				} else if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '(') {
+					depth++;
+					i++;
+				} else if (c == ')') {
+					if (--depth < 0) {
+						throw error(path, number, "Unbalanced )");
+					}
+					i++;
+				} else {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					boolean quoted = c == '"';
+					int start = i;
+					if (quoted) {
+						i++;
+					}
+					while (i < raw.length()) {
+						c = raw.charAt(i);
+						if (quoted ? c == '"' : Character.isWhitespace(c) || c == ';' || c == '(' || c == ')') {
+							break;
+						}
+						if (c == '\\' && i + 1 < raw.length()) {
+							if (i + 3 < raw.length() && raw.substring(i + 1, i + 4).chars().allMatch(Character::isDigit)) {
+								int value = Integer.parseInt(raw.substring(i + 1, i + 4));
+								if (value > 255) {
+									throw error(path, number, "Escape \\" + raw.substring(i + 1, i + 4) + " is not a byte");
+								}
+								bytes.write(value);
+								i += 4;
+							} else {
+								byte[] escaped = raw.substring(i + 1, i + 2).getBytes(StandardCharsets.UTF_8);
+								bytes.write(escaped, 0, escaped.length);
+								i += 2;
+							}
+							continue;
+						}
+						byte[] plain = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+						bytes.write(plain, 0, plain.length);
+						i++;
+					}
+					if (quoted) {
+						if (i >= raw.length()) {
+							throw error(path, number, "Unterminated string");
+						}
+						i++; // Closing quote
+					}
+					line.tokens.add(new Token(raw.substring(start, i), bytes.toByteArray()));
+				}
+			}
+			if (depth == 0 && !line.tokens.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		if (depth > 0) {
+			throw error(path, number, "Unbalanced (");
+		}
+		return lines;
+	}
+}
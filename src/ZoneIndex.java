@@ -0,0 +1,405 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The names of every zone served authoritatively, with the answers to them
+ * worked out in advance. Each name is stored once in lowercase wire format in
+ * a static open-addressed table; a query is looked up straight from the bytes
+ * of its question, so nothing is decoded or allocated. Every (name, type) that
+ * has records gets a finished response message, and each name one more for
+ * every other type (NODATA, or its CNAME); answering is a copy, after which
+ * NameServer puts in the ID and the client's question as usual. CNAME chains
+ * within the zones are followed when the answers are worked out, up to
+ * MAX_CNAME_CHAIN aliases, so a query for an alias gets every CNAME and the
+ * final target's records in one response.
+ *
+ * Names that are not in the table are answered by walking up to the closest
+ * name that is: below a zone cut that is a referral, anywhere else NXDOMAIN.
+ * Those two are written per query, as the question is part of them.
+ *
+ * A stub resolver cannot follow a referral, so names at or below a zone cut
+ * are only referred for queries without RD. With RD set they are left to
+ * resolution like any name outside the zones, which starts at the cut's own
+ * name servers through delegation, as the public root may know nothing of
+ * them.
+ *
+ * An index never changes once built. Reloading builds a new one and swaps it
+ * in, so queries are never paused and never see half a zone.
+ */
+final class ZoneIndex {
+	private static final int ANSWER_FLAGS = 0x8480; // QR, AA, RA
+	private static final int REFERRAL_FLAGS = 0x8080; // QR, RA
+	private static final int NXDOMAIN = 3;
+	private static final int TYPE_AAAA = 28;
+	private static final int MAX_MESSAGE_SIZE = 65535;
+	private static final int MAX_CNAME_CHAIN = 8; // Aliases followed; longer chains and loops are left to the client
+
+	private static final class Node {
+		final String name;
+		final ZoneFile zone;
+		final Map<Integer, List<ZoneFile.Record>> rrsets = new LinkedHashMap<>();
+		Node cut; // The delegation this name is at or below, null if the zone is authoritative here
+		List<ZoneFile.Record> glue; // At a cut: addresses of its name servers below it
+		int[] types; // Types with a response of their own
+		byte[][] responses;
+		byte[] otherTypes; // Response for any other type
+
+		Node(String name, ZoneFile zone) {
+			this.name = name;
+			this.zone = zone;
+		}
+	}
+
+	private final byte[][] names; // Lowercase wire format, null for a free slot
+	private final int[] hashes;
+	private final Node[] nodes;
+	private final int mask;
+	private final List<ZoneFile> zones;
+	private final Map<String, DelegationCache.Delegation> delegations = new HashMap<>(); // By cut, those with glue
+
+	/**
+	 * @throws IOException If two zones have the same apex, or an answer cannot
+	 *                     fit in a message.
+	 */
+	ZoneIndex(List<ZoneFile> zones) throws IOException {
+		this.zones = zones;
+		Map<String, ZoneFile> apexes = new HashMap<>();
+		for (ZoneFile zone : zones) {
+			if (apexes.put(zone.origin, zone) != null) {
+				throw new IOException(zone.path + ": zone " + zone.origin + " is loaded twice");
+			}
+		}
+
+		// Every owner name, and every name between an owner and its apex
+		Map<String, Node> byName = new LinkedHashMap<>();
+		for (ZoneFile zone : zones) {
+			for (ZoneFile.Record record : zone.records) {
+				if (servingZone(record.owner, apexes) != zone) {
+					continue; // Delegation or glue for a child zone loaded as well; its own data wins
+				}
+				node(byName, record.owner, zone).rrsets.computeIfAbsent(record.type, t -> new ArrayList<>())
+						.add(record);
+				for (String name = record.owner; !name.equals(zone.origin); ) {
+					name = parent(name);
+					node(byName, name, zone);
+				}
+			}
+		}
+		for (Node node : byName.values()) {
+			node.cut = cutAbove(node, byName);
+			if (node.cut == node) {
+				node.glue = new ArrayList<>();
+				for (ZoneFile.Record nameServer : node.rrsets.get(DnsMessage.TYPE_NS)) {
+					Node target = byName.get(nameServer.target());
+					if (target != null && DelegationCache.isWithin(target.name, node.name)) {
+						addresses(target, node.glue);
+					}
+				}
+				addDelegation(node);
+			}
+		}
+
+		int capacity = Integer.highestOneBit(Math.max(byName.size(), 1) * 2 - 1) << 1;
+		names = new byte[capacity][];
+		hashes = new int[capacity];
+		nodes = new Node[capacity];
+		mask = capacity - 1;
+		byte[] scratch = new byte[MAX_MESSAGE_SIZE];
+		DnsWriter writer = new DnsWriter();
+		for (Node node : byName.values()) {
+			precompute(node, byName, writer, scratch);
+			byte[] wire = toWire(node.name);
+			int hash = DnsMessage.hashName(wire, 0);
+			int slot = hash & mask;
+			while (names[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			names[slot] = wire;
+			hashes[slot] = hash;
+			nodes[slot] = node;
+		}
+	}
+
+	List<ZoneFile> zones() {
+		return zones;
+	}
+
+	/**
+	 * @param name Lowercase, no trailing dot.
+	 * @return The deepest delegation out of the zones that the name is at or
+	 *         below, or null if there is none or it came without glue.
+	 */
+	DelegationCache.Delegation delegation(String name) {
+		if (delegations.isEmpty()) {
+			return null;
+		}
+		for (String suffix = name; ; suffix = parent(suffix)) {
+			DelegationCache.Delegation delegation = delegations.get(suffix);
+			if (delegation != null || suffix.isEmpty()) {
+				return delegation;
+			}
+		}
+	}
+
+	/**
+	 * @return Names indexed, owners and the empty names between them and their apex.
+	 */
+	int size() {
+		int size = 0;
+		for (byte[] name : names) {
+			if (name != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Answer a query from the zones if its name is in one of them.
+	 *
+	 * @param request A valid query; its question name starts at the header's end.
+	 * @return The length of the response copied or written into out, or -1 if
+	 *         the name is in none of the zones, the class is not IN, or the name
+	 *         is delegated away and the client asked for recursion.
+	 */
+	int copyTo(DnsMessage request, byte[] out, DnsWriter writer) {
+		if (!request.hasArray() || request.questionClass() != 1) {
+			return -1; // Zones only hold class IN
+		}
+		byte[] data = request.array();
+		int type = request.questionType();
+		boolean recursionDesired = (request.getShort(2) & 0x0100) != 0;
+		for (int offset = DnsMessage.HEADER_LENGTH; ; offset += (data[offset] & 0xFF) + 1) {
+			int labelLength = data[offset] & 0xFF;
+			if ((labelLength & 0xC0) != 0) {
+				return -1; // A compressed question, which nobody sends; let resolution deal with it
+			}
+			Node node = find(data, offset);
+			if (node != null) {
+				if (node.cut != null && recursionDesired) {
+					return -1; // Not ours to answer: resolved, starting at the cut
+				}
+				if (offset == DnsMessage.HEADER_LENGTH) {
+					byte[] response = node.otherTypes;
+					for (int i = 0; i < node.types.length; i++) {
+						if (node.types[i] == type) {
+							response = node.responses[i];
+							break;
+						}
+					}
+					System.arraycopy(response, 0, out, 0, response.length);
+					return response.length;
+				}
+				// The closest name we have: the query is below a cut, or names nothing
+				writer.start(out, out.length);
+				if (node.cut != null) {
+					writer.header(0, REFERRAL_FLAGS).question(request, DnsMessage.HEADER_LENGTH, type, 1);
+					referral(node.cut, writer);
+				} else {
+					writer.header(0, ANSWER_FLAGS | NXDOMAIN).question(request, DnsMessage.HEADER_LENGTH, type, 1);
+					node.zone.negativeSoa.write(writer, DnsMessage.AUTHORITY);
+				}
+				return writer.finish();
+			}
+			if (labelLength == 0) {
+				return -1;
+			}
+		}
+	}
+
+	private Node find(byte[] data, int offset) {
+		int hash = DnsMessage.hashName(data, offset);
+		for (int slot = hash & mask; names[slot] != null; slot = (slot + 1) & mask) {
+			if (hashes[slot] == hash && equalsIgnoreCase(names[slot], data, offset)) {
+				return nodes[slot];
+			}
+		}
+		return null;
+	}
+
+	private static boolean equalsIgnoreCase(byte[] name, byte[] data, int offset) {
+		if (offset + name.length > data.length) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if ((name[i] & 0xFF) != DnsMessage.toLower(data[offset + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Building
+
+	private static Node node(Map<String, Node> byName, String name, ZoneFile zone) {
+		return byName.computeIfAbsent(name, n -> new Node(n, zone));
+	}
+
+	private static String parent(String name) {
+		int dot = name.indexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1);
+	}
+
+	// The zone with the longest apex containing the name
+	private static ZoneFile servingZone(String name, Map<String, ZoneFile> apexes) {
+		for (String suffix = name; ; suffix = parent(suffix)) {
+			ZoneFile zone = apexes.get(suffix);
+			if (zone != null || suffix.isEmpty()) {
+				return zone;
+			}
+		}
+	}
+
+	// The highest delegation between the apex and the name, the name included
+	private static Node cutAbove(Node node, Map<String, Node> byName) {
+		Node cut = null;
+		for (String name = node.name; !name.equals(node.zone.origin); name = parent(name)) {
+			Node ancestor = byName.get(name);
+			if (ancestor != null && ancestor.rrsets.containsKey(DnsMessage.TYPE_NS)) {
+				cut = ancestor;
+			}
+		}
+		return cut;
+	}
+
+	private void precompute(Node node, Map<String, Node> byName, DnsWriter writer, byte[] scratch)
+			throws IOException {
+		List<Integer> types = new ArrayList<>();
+		List<byte[]> responses = new ArrayList<>();
+		List<ZoneFile.Record> cname = node.rrsets.get(DnsMessage.TYPE_CNAME);
+		if (node.cut != null) {
+			start(writer, scratch, node, REFERRAL_FLAGS);
+			referral(node.cut, writer);
+			node.otherTypes = finish(writer, scratch, node);
+		} else if (cname != null) {
+			// Any type gets the chain of CNAMEs, and the last target's records of that
+			// type if we have them
+			List<ZoneFile.Record> chain = new ArrayList<>(cname);
+			Node target = byName.get(cname.get(0).target());
+			for (int aliases = 1; target != null && target.cut == null && target != node
+					&& target.rrsets.containsKey(DnsMessage.TYPE_CNAME) && aliases < MAX_CNAME_CHAIN; aliases++) {
+				List<ZoneFile.Record> next = target.rrsets.get(DnsMessage.TYPE_CNAME);
+				chain.addAll(next);
+				target = byName.get(next.get(0).target());
+			}
+			start(writer, scratch, node, ANSWER_FLAGS);
+			writeAll(chain, writer, DnsMessage.ANSWER);
+			node.otherTypes = finish(writer, scratch, node);
+			if (chain.size() > cname.size()) {
+				start(writer, scratch, node, ANSWER_FLAGS); // Asked for the CNAME itself
+				writeAll(cname, writer, DnsMessage.ANSWER);
+				types.add(DnsMessage.TYPE_CNAME);
+				responses.add(finish(writer, scratch, node));
+			}
+			if (target != null && target.cut == null && !target.rrsets.containsKey(DnsMessage.TYPE_CNAME)) {
+				for (Map.Entry<Integer, List<ZoneFile.Record>> rrset : target.rrsets.entrySet()) {
+					start(writer, scratch, node, ANSWER_FLAGS);
+					writeAll(chain, writer, DnsMessage.ANSWER);
+					writeAll(rrset.getValue(), writer, DnsMessage.ANSWER);
+					types.add(rrset.getKey());
+					responses.add(finish(writer, scratch, node));
+				}
+			}
+		} else {
+			for (Map.Entry<Integer, List<ZoneFile.Record>> rrset : node.rrsets.entrySet()) {
+				start(writer, scratch, node, ANSWER_FLAGS);
+				writeAll(rrset.getValue(), writer, DnsMessage.ANSWER);
+				int type = rrset.getKey();
+				if (type == DnsMessage.TYPE_NS || type == DnsMessage.TYPE_MX) {
+					List<ZoneFile.Record> additional = new ArrayList<>();
+					for (ZoneFile.Record record : rrset.getValue()) {
+						addresses(byName.get(record.target()), additional);
+					}
+					writeAll(additional, writer, DnsMessage.ADDITIONAL);
+				}
+				types.add(type);
+				responses.add(finish(writer, scratch, node));
+			}
+			// NODATA: the name exists, so NOERROR with the SOA to cache the absence by
+			start(writer, scratch, node, ANSWER_FLAGS);
+			node.zone.negativeSoa.write(writer, DnsMessage.AUTHORITY);
+			node.otherTypes = finish(writer, scratch, node);
+		}
+		node.types = types.stream().mapToInt(Integer::intValue).toArray();
+		node.responses = responses.toArray(new byte[0][]);
+	}
+
+	// NS records of the cut, and the glue for those servers
+	private static void referral(Node cut, DnsWriter writer) {
+		writeAll(cut.rrsets.get(DnsMessage.TYPE_NS), writer, DnsMessage.AUTHORITY);
+		writeAll(cut.glue, writer, DnsMessage.ADDITIONAL);
+	}
+
+	// The cut's name servers and glue, for resolving names below it; skipped without glue
+	private void addDelegation(Node cut) throws IOException {
+		List<String> nameServers = new ArrayList<>();
+		for (ZoneFile.Record nameServer : cut.rrsets.get(DnsMessage.TYPE_NS)) {
+			nameServers.add(nameServer.target());
+		}
+		List<InetAddress> addresses = new ArrayList<>();
+		for (ZoneFile.Record glue : cut.glue) {
+			if (glue.type == DnsMessage.TYPE_A) {
+				addresses.add(InetAddress.getByAddress(glue.prefix));
+			}
+		}
+		if (!addresses.isEmpty()) {
+			// Lives as long as the index does, whatever the NS TTL
+			delegations.put(cut.name, new DelegationCache.Delegation(cut.name, nameServers, addresses, Long.MAX_VALUE));
+		}
+	}
+
+	// A and AAAA records of the name, if we have it
+	private static void addresses(Node node, List<ZoneFile.Record> into) {
+		if (node == null) {
+			return;
+		}
+		for (int type : new int[] { DnsMessage.TYPE_A, TYPE_AAAA }) {
+			List<ZoneFile.Record> records = node.rrsets.get(type);
+			if (records != null) {
+				into.addAll(records);
+			}
+		}
+	}
+
+	private static void writeAll(List<ZoneFile.Record> records, DnsWriter writer, int section) {
+		for (ZoneFile.Record record : records) {
+			record.write(writer, section);
+		}
+	}
+
+	// Question type 0 is a placeholder; NameServer copies the client's question over it
+	private static void start(DnsWriter writer, byte[] scratch, Node node, int flags) {
+		writer.start(scratch, scratch.length).header(0, flags).question(node.name, 0, 1);
+	}
+
+	private static byte[] finish(DnsWriter writer, byte[] scratch, Node node) throws IOException {
+		int length = writer.finish();
+		if (length < 0) {
+			throw new IOException(node.zone.path + ": the answer for " + node.name + " does not fit in a message");
+		}
+		return Arrays.copyOf(scratch, length);
+	}
+
+	private static byte[] toWire(String name) {
+		byte[] wire = new byte[name.isEmpty() ? 1 : name.length() + 2];
+		int position = 0;
+		for (int labelStart = 0; labelStart < name.length(); ) {
+			int labelEnd = name.indexOf('.', labelStart);
+			if (labelEnd < 0) {
+				labelEnd = name.length();
+			}
+			wire[position++] = (byte) (labelEnd - labelStart);
+			for (int i = labelStart; i < labelEnd; i++) {
+				wire[position++] = (byte) name.charAt(i);
+			}
+			labelStart = labelEnd + 1;
+		}
+		return wire;
+	}
+}
@@ -0,0 +1,195 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+public class ZoneIndexTest {
+
+    private static final String EXAMPLE_ZONE = String.join("\n",
+            "$ORIGIN example.com.",
+            "$TTL 1h",
+            "@       IN SOA ns1 hostmaster ( 2024010101 ; serial",
+            "                7200 3600 1209600",
+            "                300 )        ; negative TTL",
+            "        IN NS  ns1",
+            "        IN MX  10 mail",
+            "ns1     IN A   192.0.2.1",
+            "mail    IN A   192.0.2.25",
+            "        IN AAAA 2001:db8::25",
+            "www  60 IN A   192.0.2.80",
+            "alias   IN CNAME www",
+            "chain   IN CNAME alias",
+            "loop1   IN CNAME loop2",
+            "loop2   IN CNAME loop1",
+            "txt     IN TXT \"v=spf1 -all\" \"two\\032words\"",
+            "a.b.c   IN A   192.0.2.3",
+            "sub     IN NS  ns.sub",
+            "ns.sub  IN A   192.0.2.53",
+            "");
+
+    private ZoneIndex index;
+
+    // ANSI escape codes for coloring
+    private static final String ANSI_RESET = "\u001B[0m";
+    private static final String ANSI_GREEN = "\u001B[32m";
+
+    @Before
+    public void setUp() throws Exception {
+        index = new ZoneIndex(Arrays.asList(zone(EXAMPLE_ZONE)));
+    }
+
+    @Test
+    public void testExactAnswer() {
+        System.out.println("\nStarting test: Exact answers");
+
+        DnsMessage response = lookup("WWW.Example.COM", DnsMessage.TYPE_A);
+        assertEquals("Should answer", 0, response.rcode());
+        assertTrue("Authoritative", (response.getByte(2) & 0x04) != 0);
+        assertTrue("Should carry the A record", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertEquals("TTL from the record", 60, response.ttl());
+        assertEquals("Address from the zone", 80, response.getByte(response.rdataOffset() + 3));
+
+        response = lookup("txt.example.com", DnsMessage.TYPE_TXT);
+        assertTrue("Should carry the TXT record", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_TXT));
+        assertEquals("Two strings, the escape decoded", 2 + 11 + 9, response.rdataLength());
+        assertEquals("Default TTL", 3600, response.ttl());
+        System.out.println(ANSI_GREEN + "Success: Names are answered case-insensitively." + ANSI_RESET);
+    }
+
+    @Test
+    public void testNegativeAnswers() {
+        System.out.println("\nStarting test: Negative answers");
+
+        DnsMessage response = lookup("www.example.com", DnsMessage.TYPE_MX);
+        assertEquals("NODATA", 0, response.rcode());
+        assertEquals("No answers", 0, response.answerCount());
+        assertTrue("SOA in authority", response.nextRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_SOA));
+        assertEquals("Negative TTL is the SOA minimum", 300, response.ttl());
+
+        response = lookup("nothere.example.com", DnsMessage.TYPE_A);
+        assertEquals("NXDOMAIN", 3, response.rcode());
+        assertTrue("SOA in authority", response.nextRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_SOA));
+        assertEquals("Negative TTL is the SOA minimum", 300, response.ttl());
+
+        response = lookup("b.c.example.com", DnsMessage.TYPE_A);
+        assertEquals("An empty non-terminal exists", 0, response.rcode());
+        assertEquals("But has no data", 0, response.answerCount());
+        System.out.println(ANSI_GREEN + "Success: NODATA and NXDOMAIN carry the SOA." + ANSI_RESET);
+    }
+
+    @Test
+    public void testAnswersFollowAliasesAndAddAddresses() {
+        System.out.println("\nStarting test: CNAME and additional records");
+
+        DnsMessage response = lookup("alias.example.com", DnsMessage.TYPE_A);
+        assertEquals("Should answer", 0, response.rcode());
+        assertEquals("CNAME and its target", 2, response.answerCount());
+        assertTrue("CNAME first", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_CNAME));
+        assertTrue("Then the address", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+
+        response = lookup("chain.example.com", DnsMessage.TYPE_A);
+        assertEquals("Both CNAMEs and the address", 3, response.answerCount());
+        assertTrue(response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_CNAME));
+        assertEquals("alias.example.com", response.readName(response.rdataOffset()));
+        assertTrue(response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_CNAME));
+        assertEquals("www.example.com", response.readName(response.rdataOffset()));
+        assertTrue("Then the address", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_A));
+        assertEquals("Asked for the CNAME, just the first", 1,
+                lookup("chain.example.com", DnsMessage.TYPE_CNAME).answerCount());
+        assertEquals("A loop stops where it started", 2, lookup("loop1.example.com", DnsMessage.TYPE_A).answerCount());
+
+        response = lookup("example.com", DnsMessage.TYPE_MX);
+        assertTrue("Should carry the MX record", response.nextRecord(DnsMessage.ANSWER, DnsMessage.TYPE_MX));
+        assertEquals("Both addresses of the exchange", 2, response.additionalCount());
+        System.out.println(ANSI_GREEN + "Success: Aliases are followed and addresses added." + ANSI_RESET);
+    }
+
+    @Test
+    public void testReferralBelowCut() throws Exception {
+        System.out.println("\nStarting test: Delegated names");
+
+        DnsMessage response = lookup("www.sub.example.com", DnsMessage.TYPE_A, 0);
+        assertEquals("Not an error", 0, response.rcode());
+        assertFalse("Not authoritative", (response.getByte(2) & 0x04) != 0);
+        assertEquals("No answers", 0, response.answerCount());
+        assertTrue("NS in authority", response.nextRecord(DnsMessage.AUTHORITY, DnsMessage.TYPE_NS));
+        assertTrue("Glue in additional", response.nextRecord(DnsMessage.ADDITIONAL, DnsMessage.TYPE_A));
+
+        response = lookup("ns.sub.example.com", DnsMessage.TYPE_A, 0);
+        assertEquals("Glue is not answered as data", 0, response.answerCount());
+
+        // A client asking for recursion cannot follow a referral: the name is resolved, from the cut
+        assertEquals("Below the cut", -1, copyTo("www.sub.example.com", DnsMessage.TYPE_A, 1, 0x0100, new byte[4096]));
+        assertEquals("At the cut", -1, copyTo("sub.example.com", DnsMessage.TYPE_NS, 1, 0x0100, new byte[4096]));
+        DelegationCache.Delegation delegation = index.delegation("www.sub.example.com");
+        assertEquals("sub.example.com", delegation.zone);
+        assertEquals(Arrays.asList("ns.sub.example.com"), delegation.nameServers);
+        assertEquals(Arrays.asList(InetAddress.getByName("192.0.2.53")), delegation.addresses);
+        assertNull("Not delegated", index.delegation("www.example.com"));
+        System.out.println(ANSI_GREEN + "Success: Names below a cut get a referral, or are resolved from it." + ANSI_RESET);
+    }
+
+    @Test
+    public void testOtherNamesLeftToResolution() {
+        System.out.println("\nStarting test: Names outside the zones");
+
+        assertEquals("Outside", -1, copy("www.example.org", DnsMessage.TYPE_A, 1));
+        assertEquals("Above the apex", -1, copy("com", DnsMessage.TYPE_A, 1));
+        assertEquals("Class CH", -1, copy("www.example.com", DnsMessage.TYPE_A, 3));
+        System.out.println(ANSI_GREEN + "Success: Other names are not answered." + ANSI_RESET);
+    }
+
+    @Test
+    public void testParseErrors() {
+        System.out.println("\nStarting test: Broken zone files");
+
+        assertParseError("No SOA record", "$ORIGIN example.com.\nwww 60 IN A 192.0.2.1\n");
+        assertParseError("zone:2:", "$ORIGIN example.com.\nwww 60 IN A 192.0.2\n");
+        assertParseError("zone:3:", "$ORIGIN example.com.\n@ 60 IN SOA ns1 host 1 2 3 4 5\nwww 60 IN WKS 1\n");
+        assertParseError("outside the zone",
+                "$ORIGIN example.com.\n@ 60 IN SOA ns1 host 1 2 3 4 5\nwww.example.org. 60 IN A 192.0.2.1\n");
+        assertParseError("zone:3: Escape \\256 is not a byte",
+                "$ORIGIN example.com.\n@ 60 IN SOA ns1 host 1 2 3 4 5\ntxt 60 IN TXT \"\\256\"\n");
+        System.out.println(ANSI_GREEN + "Success: Errors name the file and line." + ANSI_RESET);
+    }
+
+    private static ZoneFile zone(String text) throws IOException {
+        return ZoneFile.parse("zone", new BufferedReader(new StringReader(text)), null);
+    }
+
+    private static void assertParseError(String expected, String text) {
+        try {
+            zone(text);
+            fail("Should not parse: " + text);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+
+    private DnsMessage lookup(String name, int type) {
+        return lookup(name, type, 0x0100);
+    }
+
+    private DnsMessage lookup(String name, int type, int flags) {
+        byte[] out = new byte[4096];
+        int length = copyTo(name, type, 1, flags, out);
+        assertTrue("Should be answered from the zone", length > 0);
+        return new DnsMessage().wrap(out, length);
+    }
+
+    private int copy(String name, int type, int cls) {
+        return copyTo(name, type, cls, 0x0100, new byte[4096]);
+    }
+
+    private int copyTo(String name, int type, int cls, int flags, byte[] out) {
+        byte[] query = new byte[512];
+        int length = new DnsWriter().start(query, query.length).header(0x2a2a, flags).question(name, type, cls)
+                .finish();
+        return index.copyTo(new DnsMessage().wrap(query, length), out, new DnsWriter());
+    }
+}